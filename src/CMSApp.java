@@ -1,3 +1,6 @@
+import javax.swing.*;
+import java.io.IOException;
+
 /**
  * Main Method to run the applicaton
  * @author karimbounekhla
@@ -6,16 +9,74 @@ public class CMSApp {
 
     /**
      * Method used to initialize objects and run the application
-     * @param args unused
+     * @param args none for the GUI, or '--server [port]' to serve the HTTP API without a GUI
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = ClientServer.DEFAULT_PORT;
+            try {
+                if (args.length > 1) {
+                    port = Integer.parseInt(args[1]);
+                }
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535 || args.length > 2) {
+                usage();
+                System.exit(1);
+            }
+            runServer(port);
+            return;
+        }
+        // Show the window right away - connecting (and migrating or filling the table on first
+        // start) can take a while on a remote database
         CMSView cmsv = new CMSView();
-        InsertClientView icv = new InsertClientView();
-        CMSModel cmsm = new CMSModel();
-        CMSController theController = new CMSController(cmsv, icv, cmsm);
+        SwingUtilities.invokeLater(() -> {
+            cmsv.run();
+            cmsv.setConnecting(true);
+        });
+
+        // Backend is selected in cms.properties (MySQL unless configured otherwise)
+        ClientRepository cmsm;
+        try {
+            cmsm = RepositoryConfig.load(RepositoryConfig.DEFAULT_FILE).createRepository();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            SwingUtilities.invokeLater(() -> {
+                cmsv.errorMessage(cmsv, "Could not open the client database: " + e.getMessage());
+                System.exit(1);
+            });
+            return;
+        }
+
+        // Run the Application once the Model is ready
+        SwingUtilities.invokeLater(() -> new CMSController(cmsv, cmsm).run());
+    }
 
-        // Run the Application
-        theController.run();
+    private static void usage() {
+        System.err.println("Usage: CMSApp [--server [port]]\n" +
+                "    port is 0-65535 (default " + ClientServer.DEFAULT_PORT + ", 0 for any free port)");
+    }
+
+    /**
+     * Helper method that serves the HTTP API until the process is stopped
+     * @param port TCP port to listen on
+     */
+    private static void runServer(int port) {
+        ClientRepository repository = RepositoryConfig.load(RepositoryConfig.DEFAULT_FILE).createRepository();
+        ClientServer server = new ClientServer(repository, port);
+        try {
+            server.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            repository.close();
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            repository.close();
+        }, "cms-shutdown"));
+        System.out.println("Serving the client API on http://localhost:" + server.getPort() + "/clients");
     }
 
 }
@@ -0,0 +1,376 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark suite for the Model operations. Each run seeds a database with a configurable number of
+ * rows, then measures every operation for a fixed time after a warm-up: throughput, latency
+ * percentiles and bytes allocated per operation (from the JVM's per-thread allocation counters).
+ * Results are written as JSON so runs on different commits can be compared.
+ *
+ * Meant to be run against an embedded database on the classpath, e.g.
+ *   java -cp out:h2.jar CMSBenchmark --url "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1"
+ *        --rows 10000,1000000 --label $(git rev-parse --short HEAD) --output bench.json
+ * @author karimbounekhla
+ */
+public class CMSBenchmark {
+    private static final String[] SYLLABLES = {"an", "bel", "car", "dor", "el", "fin", "gar", "hal",
+            "is", "jon", "kel", "lor", "mar", "nor", "os", "per", "quin", "ros", "sam", "tor"};
+    private static final String[] OPERATIONS = {"searchById", "searchByLastName",
+            "searchByClientType", "addClient", "updateClient", "deleteClient"};
+
+    // Settings (see usage())
+    private String url = "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private String user = "sa";
+    private String password = "";
+    private long[] rowCounts = {10_000};
+    private int threads = 1;
+    private int warmupSeconds = 5;
+    private int measureSeconds = 10;
+    private String label = "";
+    private String output = "cms-benchmark.json";
+    private List<String> operations = Arrays.asList(OPERATIONS);
+
+    // Seeded data set
+    private CMSModel model;
+    private int maxSeededId;
+    private String[] lastNames;
+    // IDs added by the addClient benchmark, consumed by the deleteClient benchmark
+    private final List<Integer> addedIds = new ArrayList<>();
+
+    /**
+     * Runs the benchmark suite
+     * @param args command line options (see usage())
+     */
+    public static void main(String[] args) throws Exception {
+        CMSBenchmark benchmark = new CMSBenchmark();
+        if (!benchmark.parseArgs(args)) {
+            usage();
+            System.exit(1);
+        }
+        benchmark.run();
+    }
+
+    /**
+     * Runs every selected operation for every row count and writes the results
+     */
+    private void run() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (long rows : rowCounts) {
+            results.add(seed(rows));
+            for (String operation : operations) {
+                System.out.println("Benchmarking " + operation + " on " + rows + " rows...");
+                Result result = measure(operation, rows);
+                System.out.println("  " + result);
+                results.add(result);
+            }
+            model.close();
+        }
+        writeResults(results);
+        System.out.println("Results written to " + output);
+    }
+
+    /**
+     * Drops the tables, then creates a model that fills the table from a generated data file.
+     * The time taken by fillTable is reported as its own result.
+     * @param rows number of rows to seed
+     * @return result of the fillTable benchmark
+     */
+    private Result seed(long rows) throws IOException, SQLException {
+        try (Connection conn = DriverManager.getConnection(url, user, password);
+             Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS Client");
+            statement.executeUpdate("DROP TABLE IF EXISTS " + SchemaMigrator.METADATA_TABLE);
+        }
+
+        Random random = new Random(42);
+        lastNames = new String[Math.max(100, (int) Math.min(rows / 20, 50_000))];
+        for (int i = 0; i < lastNames.length; i++) {
+            lastNames[i] = randomName(random);
+        }
+
+        File dataFile = File.createTempFile("cms-benchmark", ".txt");
+        dataFile.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(dataFile, "UTF-8")) {
+            for (long i = 0; i < rows; i++) {
+                out.println(toLine(randomClient(random)));
+            }
+        }
+
+        System.out.println("Seeding " + rows + " rows...");
+        long start = System.nanoTime();
+        model = new CMSModel(url, user, password, dataFile.getPath());
+        long elapsed = System.nanoTime() - start;
+        maxSeededId = (int) rows;
+        addedIds.clear();
+
+        Result result = new Result("fillTable", rows, 1);
+        result.operations = rows;
+        result.seconds = elapsed / 1e9;
+        result.latencies.record(elapsed);
+        System.out.println("  " + result);
+        return result;
+    }
+
+    /**
+     * Runs one operation on all threads for the warm-up period, then for the measurement period
+     * @param operation name of the operation
+     * @param rows number of rows in the table
+     * @return the measured result
+     */
+    private Result measure(String operation, long rows) throws InterruptedException {
+        runFor(operation, warmupSeconds, null);
+        Result result = new Result(operation, rows, threads);
+        runFor(operation, measureSeconds, result);
+        return result;
+    }
+
+    /**
+     * Helper method that runs an operation in a loop on every thread for a number of seconds
+     * @param operation name of the operation
+     * @param seconds duration
+     * @param result where measurements are recorded, or null for a warm-up
+     */
+    private void runFor(String operation, int seconds, Result result) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        // Fixed size and shared by the threads, so recording allocates nothing in the measured window
+        LatencyHistogram latencies = result == null ? new LatencyHistogram() : result.latencies;
+        int[] counts = new int[threads];
+        long[] allocated = new long[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            new Thread(() -> {
+                int count = 0;
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                while (System.nanoTime() < deadline) {
+                    long opStart = System.nanoTime();
+                    if (!runOnce(operation)) {
+                        break;
+                    }
+                    latencies.recordSince(opStart);
+                    count++;
+                }
+                allocated[thread] = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+                counts[thread] = count;
+                done.countDown();
+            }, "benchmark-" + t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        if (result != null) {
+            result.operations = Arrays.stream(counts).sum();
+            result.seconds = elapsed / 1e9;
+            result.allocatedBytes = Arrays.stream(allocated).sum();
+        }
+    }
+
+    /**
+     * Helper method that runs one invocation of an operation
+     * @param operation name of the operation
+     * @return false if the operation has nothing left to do (no added clients left to delete)
+     */
+    private boolean runOnce(String operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operation) {
+            case "searchById":
+                model.getSearchResults("id", String.valueOf(1 + random.nextInt(maxSeededId)));
+                return true;
+            case "searchByLastName":
+                model.getSearchResults("lastName", lastNames[random.nextInt(lastNames.length)]);
+                return true;
+            case "searchByClientType":
+                model.getSearchResults("clientType", random.nextBoolean() ? "C" : "R");
+                return true;
+            case "addClient":
+                Client added = randomClient(random);
+                model.addClient(added);
+                synchronized (addedIds) {
+                    addedIds.add(added.getId());
+                }
+                return true;
+            case "updateClient":
+                int id = 1 + random.nextInt(maxSeededId);
+                Client updated = randomClient(random);
+                updated.setId(id);
+                model.updateClient(id, updated);
+                return true;
+            case "deleteClient":
+                Integer toDelete;
+                synchronized (addedIds) {
+                    if (addedIds.isEmpty()) {
+                        return false;
+                    }
+                    toDelete = addedIds.remove(addedIds.size() - 1);
+                }
+                model.deleteClient(toDelete);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+
+    /**
+     * Helper method that generates a valid client
+     */
+    private Client randomClient(Random random) {
+        String firstName = randomName(random);
+        String lastName = lastNames[random.nextInt(lastNames.length)];
+        String address = (1 + random.nextInt(9999)) + " " + randomName(random) + " Street";
+        String postalCode = "" + letter(random) + random.nextInt(10) + letter(random) + " "
+                + random.nextInt(10) + letter(random) + random.nextInt(10);
+        String phoneNumber = String.format("%03d-%03d-%04d", 200 + random.nextInt(800),
+                random.nextInt(1000), random.nextInt(10000));
+        return new Client(firstName, lastName, address, postalCode, phoneNumber,
+                          random.nextBoolean() ? "C" : "R");
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int parts = 2 + random.nextInt(2);
+        for (int i = 0; i < parts; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+
+    private static char letter(Random random) {
+        return (char) ('A' + random.nextInt(26));
+    }
+
+    private static String toLine(Client c) {
+        return c.getFirstName() + ";" + c.getLastName() + ";" + c.getAddress() + ";"
+                + c.getPostalCode() + ";" + c.getPhoneNumber() + ";" + c.getClientType();
+    }
+
+    /**
+     * Helper method that writes all results as a JSON array
+     */
+    private void writeResults(List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(output, "UTF-8")) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                out.print("  " + results.get(i).toJson());
+                out.println(i < results.size() - 1 ? "," : "");
+            }
+            out.println("]");
+        }
+    }
+
+    /**
+     * Helper method that reads the command line options
+     * @return false if an option is invalid
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--url": url = value; break;
+                    case "--user": user = value; break;
+                    case "--password": password = value; break;
+                    case "--rows":
+                        rowCounts = Arrays.stream(value.split(",")).mapToLong(CMSBenchmark::parseCount).toArray();
+                        break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                    case "--measure": measureSeconds = Integer.parseInt(value); break;
+                    case "--label": label = value; break;
+                    case "--output": output = value; break;
+                    case "--ops": operations = Arrays.asList(value.split(",")); break;
+                    default: return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Helper method that parses a row count such as 10000, 10k, 1M or 10M
+     */
+    private static long parseCount(String count) {
+        String c = count.trim().toLowerCase();
+        if (c.endsWith("k")) {
+            return Long.parseLong(c.substring(0, c.length() - 1)) * 1_000;
+        }
+        if (c.endsWith("m")) {
+            return Long.parseLong(c.substring(0, c.length() - 1)) * 1_000_000;
+        }
+        return Long.parseLong(c);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CMSBenchmark [--url jdbcUrl] [--user user] [--password password]\n" +
+                "    [--rows 10k,1M,10M] [--threads n] [--warmup seconds] [--measure seconds]\n" +
+                "    [--ops " + String.join(",", OPERATIONS) + "]\n" +
+                "    [--label commit] [--output results.json]");
+    }
+
+    /**
+     * Measurements of one operation on one data set
+     */
+    private class Result {
+        private final String operation;
+        private final long rows;
+        private final int threads;
+        private long operations;
+        private double seconds;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long allocatedBytes;
+
+        private Result(String operation, long rows, int threads) {
+            this.operation = operation;
+            this.rows = rows;
+            this.threads = threads;
+        }
+
+        private double throughput() {
+            return seconds == 0 ? 0 : operations / seconds;
+        }
+
+        private double percentileMicros(double percentile) {
+            return latencies.snapshot().getPercentile(percentile) / 1000.0;
+        }
+
+        private double allocatedBytesPerOp() {
+            return operations == 0 ? 0 : (double) allocatedBytes / operations;
+        }
+
+        private String toJson() {
+            return String.format("{\"label\": \"%s\", \"operation\": \"%s\", \"rows\": %d, " +
+                            "\"threads\": %d, \"operations\": %d, \"seconds\": %.3f, \"opsPerSecond\": %.1f, " +
+                            "\"p50Micros\": %.1f, \"p90Micros\": %.1f, \"p99Micros\": %.1f, " +
+                            "\"p999Micros\": %.1f, \"maxMicros\": %.1f, \"allocBytesPerOp\": %.1f}",
+                    label.replace("\"", "'"), operation, rows, threads, operations, seconds,
+                    throughput(), percentileMicros(50), percentileMicros(90), percentileMicros(99),
+                    percentileMicros(99.9), percentileMicros(100), allocatedBytesPerOp());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f ops/s, p50 %.1f us, p99 %.1f us, max %.1f us, %.0f B/op",
+                    throughput(), percentileMicros(50), percentileMicros(99), percentileMicros(100),
+                    allocatedBytesPerOp());
+        }
+    }
+}
@@ -1,9 +1,13 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Controller class for the Application. Controls the data flow between the model and the view,
@@ -12,30 +16,68 @@ import java.util.ArrayList;
  * @author karimbounekhla
  */
 public class CMSController {
+    // Maximum number of clients shown for a last name prefix search
+    private static final int PREFIX_SEARCH_LIMIT = 10000;
+    // Time without typing after which a search-as-you-type query is run
+    private static final int SEARCH_DEBOUNCE_MILLIS = 250;
+
     private CMSView theCMSView;
     private InsertClientView theInsertView;
-    private CMSModel theModel;
+    private ClientRepository theModel;
     private InputVerify verifyInput;
+    // Runs model operations off the Event Dispatch Thread
+    private ModelExecutor executor;
+    // In-flight search and the number of the latest search - older results are discarded
+    private QueryHandle currentSearch;
+    private long searchGeneration;
+    // Complete result of the last last name search - refined locally when the user keeps typing
+    private LastNameIndex.PrefixMatch lastMatch;
+    // Restarted on every keystroke, so a burst of typing results in a single search
+    private Timer searchDebounce;
+    // Tells whether a client matches the displayed search, so added clients can be shown
+    // (null while no search is displayed)
+    private Predicate<Client> displayedSearch;
 
     /**
-     * Constructor used to set references to the Model and view Objects
+     * Constructor used to set references to the Model and view Objects. The Insert Customer View
+     * is created the first time it is needed.
      * @param cmsv the Customer Management System View
-     * @param icv the Insert Customer View
-     * @param cmsm the Customer Management System Model
+     * @param cmsm the Customer Management System Model (any client repository backend)
      */
-    public CMSController(CMSView cmsv, InsertClientView icv, CMSModel cmsm) {
+    public CMSController(CMSView cmsv, ClientRepository cmsm) {
         theCMSView = cmsv;
-        theInsertView = icv;
         theModel = cmsm;
         verifyInput = new InputVerify(theCMSView);
+        executor = new ModelExecutor(4, theCMSView::setBusy);
+        searchDebounce = new Timer(SEARCH_DEBOUNCE_MILLIS, e -> searchAsYouType());
+        searchDebounce.setRepeats(false);
         addListeners();
+        // Changes are applied to the displayed rows, whichever part of the application made them
+        theModel.addChangeListener(event -> SwingUtilities.invokeLater(() -> applyChange(event)));
     }
 
     /**
-     * Displays CMS view
+     * Enables the CMS view, which is shown while the Model is starting. A query typed in the
+     * meantime is searched right away.
      */
     public void run() {
-        theCMSView.run();
+        theCMSView.setConnecting(false);
+        if (!theCMSView.getSearchQuery().isEmpty()) {
+            searchDebounce.restart();
+        }
+    }
+
+    /**
+     * Returns the Insert Customer View, creating it on first use
+     * @return the Insert Customer View
+     */
+    private InsertClientView insertView() {
+        if (theInsertView == null) {
+            theInsertView = new InsertClientView();
+            theInsertView.addInsertListener(new insertListener());
+            theInsertView.addCancelListener(new cancelListener());
+        }
+        return theInsertView;
     }
 
     /**
@@ -60,13 +102,268 @@ public class CMSController {
                 validQuery = false;
         }
 
-        // If query valid, fetch result list from Model and display on view (if any results found)
         if (validQuery) {
-            ArrayList<Client> searchResults = theModel.getSearchResults(criteria, query);
-            if (searchResults != null) {
-                theCMSView.refreshResults(searchResults);
+            runSearch(criteria, query);
+        }
+    }
+
+    /**
+     * Searches while the user types, once the search field has not changed for a short time.
+     * Invalid or incomplete queries are skipped silently. If the query extends the previous last
+     * name prefix, the previous result is narrowed locally instead of searching again.
+     */
+    private void searchAsYouType() {
+        String criteria = theCMSView.getSearchCriteria();
+        String query = theCMSView.getSearchQuery();
+        if (query.isEmpty()) {
+            cancelSearch();
+            lastMatch = null;
+            displayedSearch = null;
+            theCMSView.clearResults();
+            return;
+        }
+        if (!verifyInput.isSearchable(criteria, query)) {
+            return;
+        }
+
+        if (criteria.equals("lastName") && lastMatch != null) {
+            LastNameIndex.PrefixMatch refined = lastMatch.refine(query);
+            if (refined != null) {
+                cancelSearch();
+                lastMatch = refined;
+                displayedSearch = searchMatcher(criteria, query, true);
+                theCMSView.refreshResults(refined.getIds(), this::loadClients);
+                return;
+            }
+        }
+        runSearch(criteria, query);
+    }
+
+    /**
+     * Fetches the IDs of all matches from Model in the background and displays them on view (if
+     * any results found). A newer search cancels this one.
+     * @param criteria search criteria (id, lastName or type)
+     * @param query search query
+     */
+    private void runSearch(String criteria, String query) {
+        QueryHandle handle = startSearch();
+        long generation = searchGeneration;
+        executor.submit(() -> findMatches(criteria, query, handle),
+                result -> {
+                    // Drop results of a search that was superseded while it was running
+                    if (generation != searchGeneration) {
+                        return;
+                    }
+                    currentSearch = null;
+                    lastMatch = result.prefixMatch;
+                    displayedSearch = searchMatcher(criteria, query, result.prefixMatch != null);
+                    theCMSView.refreshResults(result.ids, this::loadClients);
+                }, this::modelError);
+    }
+
+    /**
+     * Finds the clients matching a search. Last names are matched by prefix using the Model's
+     * in-memory index, falling back to an exact database search while it is loading.
+     * @param criteria search criteria (id, lastName or type)
+     * @param query search query
+     * @param handle handle used to cancel a database search
+     * @return the matching clients
+     */
+    private SearchResult findMatches(String criteria, String query, QueryHandle handle) {
+        if (criteria.equals("lastName")) {
+            LastNameIndex.PrefixMatch match = theModel.getLastNamePrefixMatches(query, PREFIX_SEARCH_LIMIT);
+            if (match != null) {
+                return new SearchResult(match.getIds(), match);
             }
         }
+        return new SearchResult(theModel.getSearchIds(criteria, query, handle), null);
+    }
+
+    /**
+     * IDs found by a search, along with the last name prefix match they came from (if any)
+     */
+    private static class SearchResult {
+        private final int[] ids;
+        private final LastNameIndex.PrefixMatch prefixMatch;
+
+        private SearchResult(int[] ids, LastNameIndex.PrefixMatch prefixMatch) {
+            this.ids = ids;
+            this.prefixMatch = prefixMatch;
+        }
+    }
+
+    /**
+     * Loads the clients of the rows the result list is about to display
+     * @param ids IDs of the clients
+     * @param done called on the EDT with the loaded clients
+     */
+    private void loadClients(int[] ids, Consumer<Client[]> done) {
+        executor.submit(() -> theModel.getClientsByIds(ids), done, this::modelError);
+    }
+
+    /**
+     * Returns a test telling whether a client matches a search, like the search itself does
+     * @param criteria search criteria (id, lastName or clientType)
+     * @param query search query
+     * @param lastNamePrefix true if last names were matched by prefix rather than in full
+     * @return the test
+     */
+    private static Predicate<Client> searchMatcher(String criteria, String query, boolean lastNamePrefix) {
+        switch (criteria) {
+            case "id":
+                int id = Integer.parseInt(query.trim());
+                return client -> client.getId() == id;
+            case "lastName":
+                String name = query.toLowerCase();
+                return lastNamePrefix
+                        ? client -> client.getLastName().toLowerCase().startsWith(name)
+                        : client -> client.getLastName().equalsIgnoreCase(query);
+            default:
+                return client -> client.getClientType().equalsIgnoreCase(query);
+        }
+    }
+
+    /**
+     * Applies a change made through the Model to the displayed search results, one row at a time:
+     * added clients matching the search are appended, updated clients are redrawn (or reloaded if
+     * their new information is not known) and deleted clients are removed. The search is not run
+     * again.
+     * @param event the changed clients
+     */
+    private void applyChange(ClientChangeEvent event) {
+        // Clients changed - the previous result can no longer be refined locally
+        lastMatch = null;
+        switch (event.getType()) {
+            case ADDED:
+                for (int i = 0; i < event.size(); i++) {
+                    if (displayedSearch != null && displayedSearch.test(event.getClient(i))) {
+                        theCMSView.resultAdded(event.getClient(i));
+                    }
+                }
+                break;
+            case UPDATED:
+                int[] unknown = new int[event.size()];
+                int unknownCount = 0;
+                for (int i = 0; i < event.size(); i++) {
+                    if (event.getClient(i) != null) {
+                        theCMSView.clientUpdated(event.getClient(i));
+                    } else {
+                        unknown[unknownCount++] = event.getIds()[i];
+                    }
+                }
+                if (unknownCount > 0) {
+                    theCMSView.resultsChanged(Arrays.copyOf(unknown, unknownCount));
+                }
+                break;
+            default:
+                theCMSView.removeResults(event.getIds());
+        }
+    }
+
+    /**
+     * Cancels the in-flight search (if any) and starts a new search generation
+     * @return handle for the new search
+     */
+    private QueryHandle startSearch() {
+        cancelSearch();
+        currentSearch = new QueryHandle();
+        return currentSearch;
+    }
+
+    /**
+     * Cancels the in-flight search (if any) so that its results are never displayed
+     */
+    private void cancelSearch() {
+        searchGeneration++;
+        searchDebounce.stop();
+        if (currentSearch != null) {
+            currentSearch.cancel();
+            currentSearch = null;
+        }
+    }
+
+    /**
+     * Saves an edited client with a compare-and-set update. If another user changed the client in
+     * the meantime, the user chooses between overwriting those changes (the update is retried
+     * against the latest version) and discarding their own edits.
+     * @param clientToUpdate edited copy of the client
+     * @param expectedVersion version of the client the edits were made to
+     */
+    private void saveClient(Client clientToUpdate, int expectedVersion) {
+        int id = clientToUpdate.getId();
+        executor.submit(() -> theModel.updateClient(id, clientToUpdate, expectedVersion), result -> {
+            switch (result) {
+                case OK:
+                    // The row was already redrawn by the change event
+                    theCMSView.successMessage(theCMSView, "Successfully updated " +
+                            "Client (ID: " + id + ")");
+                    break;
+                case NOT_FOUND:
+                    theCMSView.errorMessage(theCMSView, "Client (ID: " + id +
+                            ") was deleted by another user.");
+                    clientDeleted(id);
+                    break;
+                case CONFLICT:
+                    executor.submit(() -> theModel.getClientById(id), latest -> {
+                        if (latest == null) {
+                            theCMSView.errorMessage(theCMSView, "Client (ID: " + id +
+                                    ") was deleted by another user.");
+                            clientDeleted(id);
+                            return;
+                        }
+                        int input = JOptionPane.showConfirmDialog(null,
+                                "Client (ID: " + id + ") was changed by another user since it was " +
+                                "displayed.\nOverwrite their changes with yours?\n(No shows their " +
+                                "version and discards your edits.)", "EDIT CONFLICT",
+                                JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                        if (input == JOptionPane.YES_OPTION) {
+                            saveClient(clientToUpdate, latest.getVersion());
+                        } else {
+                            lastMatch = null;
+                            theCMSView.clientUpdated(latest);
+                            theCMSView.populateClientDetails(latest);
+                        }
+                    }, this::modelError);
+                    break;
+                default:
+                    theCMSView.errorMessage(theCMSView, "Database operation failed: the client " +
+                            "could not be updated.");
+            }
+        }, this::modelError);
+    }
+
+    /**
+     * Helper method that loads the latest information of a client and shows it
+     */
+    private void reloadClient(int id) {
+        executor.submit(() -> theModel.getClientById(id), latest -> {
+            if (latest == null) {
+                clientDeleted(id);
+            } else {
+                lastMatch = null;
+                theCMSView.clientUpdated(latest);
+                theCMSView.populateClientDetails(latest);
+            }
+        }, this::modelError);
+    }
+
+    /**
+     * Helper method that removes a deleted client from the view
+     */
+    private void clientDeleted(int id) {
+        lastMatch = null;
+        // Remove the client from the JList so the search results stay current
+        theCMSView.removeResult(id);
+        theCMSView.clearClientDetails();
+    }
+
+    /**
+     * Displays an error raised by a background model operation
+     * @param error the error
+     */
+    private void modelError(Throwable error) {
+        error.printStackTrace();
+        theCMSView.errorMessage(theCMSView, "Database operation failed: " + error.getMessage());
     }
 
     /**
@@ -80,14 +377,7 @@ public class CMSController {
      */
     private boolean invalidClient(String fName, String lName, String address,
                                   String phone, String postalCode, String type) {
-        if (verifyInput.isInvalidName(fName, lName)
-            || verifyInput.isInvalidAddress(address)
-            || verifyInput.isInvalidPhone(phone)
-            || verifyInput.isInvalidPostalCode(postalCode)
-            || verifyInput.isInvalidType(type)) {
-            return true;
-        }
-        return false;
+        return verifyInput.isInvalidClient(fName, lName, address, postalCode, phone, type);
     }
 
     /**
@@ -95,13 +385,14 @@ public class CMSController {
      */
     private void addListeners() {
         theCMSView.addDeleteListener(new deleteListener());
+        theCMSView.addChangeTypeListener(new changeTypeListener());
         theCMSView.addClearSearchListener(new clearSearchListener());
         theCMSView.addNewClientListener(new addClientListener());
         theCMSView.addResultListListener(new resultDetailsListener());
         theCMSView.addSaveListener(new saveListener());
         theCMSView.addSearchListener(new searchListener());
-        theInsertView.addInsertListener(new insertListener());
-        theInsertView.addCancelListener(new cancelListener());
+        theCMSView.addSearchFieldListener(new searchFieldListener());
+        theCMSView.addSearchCriteriaListener(e -> searchDebounce.restart());
     }
 
     ////////////////////////////////////////////////////
@@ -121,12 +412,34 @@ public class CMSController {
         }
     }
 
+    /**
+     * Listener class for the search input field - searches as the user types
+     */
+    private class searchFieldListener implements DocumentListener {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            searchDebounce.restart();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            searchDebounce.restart();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes do not change the query
+        }
+    }
+
     /**
      * Listener class for the 'Clear Search' Button
      */
     private class clearSearchListener implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
+            cancelSearch();
+            displayedSearch = null;
             theCMSView.clearSearch();
         }
     }
@@ -138,8 +451,8 @@ public class CMSController {
         @Override
         public void actionPerformed(ActionEvent e) {
             // Clears inputs and displays Insert View
-            theInsertView.clearFields();
-            theInsertView.run();
+            insertView().clearFields();
+            insertView().run();
         }
     }
 
@@ -154,6 +467,10 @@ public class CMSController {
                 theCMSView.errorMessage(theCMSView, "No Client Selected.");
                 return;
             }
+            if (theCMSView.getSelectedIds().length > 1) {
+                theCMSView.errorMessage(theCMSView, "Select a single client to edit.");
+                return;
+            }
 
             // Take inputs from Text Fields
             String newFirstName = theCMSView.getFirstNameField();
@@ -169,17 +486,14 @@ public class CMSController {
                 return;
             }
 
-            // Get Client object from selection
-            Client clientToUpdate = theCMSView.getSelectedClient();
-
-            // Update client based on value of text fields
+            // Update a copy of the selected client, so the list is unchanged if the save fails
+            Client selected = theCMSView.getSelectedClient();
+            Client clientToUpdate = selected.copy();
             clientToUpdate.updateInfo(newFirstName, newLastName, newAddress, newPostalCode,
                                       newPhoneNumber, newClientType);
 
-            // Update Database with new information and show confirmation message
-            theModel.updateClient(clientToUpdate.getId(), clientToUpdate);
-            theCMSView.successMessage(theInsertView, "Successfully updated " +
-                    "Client (ID: " + clientToUpdate.getId() + ")");
+            // Only saved if nobody changed the client since it was displayed
+            saveClient(clientToUpdate, selected.getVersion());
         }
     }
 
@@ -189,6 +503,29 @@ public class CMSController {
     private class deleteListener implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
+            // Several clients are deleted together, whatever their versions
+            int[] selectedIds = theCMSView.getSelectedIds();
+            if (selectedIds.length > 1) {
+                int input = JOptionPane.showConfirmDialog(null,
+                        "Do you want to delete the " + selectedIds.length + " selected clients?",
+                        "CONFIRMATION REQUIRED", JOptionPane.YES_NO_CANCEL_OPTION,
+                        JOptionPane.ERROR_MESSAGE);
+                if (input == 0) {
+                    executor.submit(() -> theModel.deleteClientsByIds(selectedIds), deleted -> {
+                        if (deleted < 0) {
+                            theCMSView.errorMessage(theCMSView, "Database operation failed: " +
+                                    "no client was deleted.");
+                            return;
+                        }
+                        // The rows were already removed by the change event
+                        theCMSView.clearClientDetails();
+                        theCMSView.successMessage(theCMSView, "Successfully deleted " + deleted +
+                                " clients.");
+                    }, CMSController.this::modelError);
+                }
+                return;
+            }
+
             // Ensures that a searched client is selected
             if (theCMSView.getSelectedClient() == null) {
                 theCMSView.errorMessage(theCMSView, "No Client Selected.");
@@ -202,23 +539,66 @@ public class CMSController {
 
             // If 'Yes' is pressed, delete client from DB and clear details
             if (input == 0) {
-                int idToDelete = theCMSView.getSelectedClient().getId();
-                theModel.deleteClient(idToDelete);
-                theCMSView.successMessage(theInsertView, "Successfully deleted " +
-                        "Client (ID: " + idToDelete + ")");
-                removeResult();
-                theCMSView.clearClientDetails();
+                Client clientToDelete = theCMSView.getSelectedClient();
+                int idToDelete = clientToDelete.getId();
+                executor.submit(() -> theModel.deleteClient(idToDelete, clientToDelete.getVersion()), result -> {
+                    switch (result) {
+                        case OK:
+                            theCMSView.successMessage(theCMSView, "Successfully deleted " +
+                                    "Client (ID: " + idToDelete + ")");
+                            theCMSView.clearClientDetails();
+                            break;
+                        case NOT_FOUND:
+                            theCMSView.errorMessage(theCMSView, "Client (ID: " + idToDelete +
+                                    ") was already deleted by another user.");
+                            clientDeleted(idToDelete);
+                            break;
+                        case CONFLICT:
+                            // Show what the client looks like now and let the user decide again
+                            theCMSView.errorMessage(theCMSView, "Client (ID: " + idToDelete + ") was " +
+                                    "changed by another user. Its latest information is shown - " +
+                                    "delete it again to confirm.");
+                            reloadClient(idToDelete);
+                            break;
+                        default:
+                            theCMSView.errorMessage(theCMSView, "Database operation failed: the " +
+                                    "client could not be deleted.");
+                    }
+                }, CMSController.this::modelError);
             }
         }
+    }
+
+    /**
+     * Listener Class for the 'Change Type of Selected' Button
+     */
+    private class changeTypeListener implements ActionListener {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            int[] selectedIds = theCMSView.getSelectedIds();
+            if (selectedIds.length == 0) {
+                theCMSView.errorMessage(theCMSView, "No Client Selected.");
+                return;
+            }
 
-        /**
-         * Helper method that removes Object from JList, which allows the search query to
-         * automatically refresh (removing the deleted client)
-         */
-        private void removeResult() {
-            ArrayList<Client> newResults = theCMSView.getCurrResults();
-            newResults.remove(theCMSView.getSelectedClient());
-            theCMSView.refreshResults(newResults);
+            // Ask for the new type of every selected client
+            String[] choices = {"C", "R"};
+            Object clientType = JOptionPane.showInputDialog(null,
+                    "New client type of the " + selectedIds.length + " selected client(s):",
+                    "CHANGE CLIENT TYPE", JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+            if (clientType == null) {
+                return;
+            }
+            executor.submit(() -> theModel.updateClientTypes(selectedIds, clientType.toString()), updated -> {
+                if (updated < 0) {
+                    theCMSView.errorMessage(theCMSView, "Database operation failed: no client " +
+                            "was changed.");
+                    return;
+                }
+                // The details shown may be outdated - they are shown again when a client is selected
+                theCMSView.clearClientDetails();
+                theCMSView.successMessage(theCMSView, "Changed the type of " + updated + " clients.");
+            }, CMSController.this::modelError);
         }
     }
 
@@ -264,9 +644,10 @@ public class CMSController {
 
             // Create client object and add to database
             Client clientToAdd = new Client(firstName, lastName, address, postalCode, phoneNumber, clientType);
-            theModel.addClient(clientToAdd);
-            theCMSView.successMessage(theInsertView, "Client added to the Database successfully!");
-            theInsertView.dispose();
+            executor.run(() -> theModel.addClient(clientToAdd), () -> {
+                theCMSView.successMessage(theInsertView, "Client added to the Database successfully!");
+                theInsertView.dispose();
+            }, CMSController.this::modelError);
         }
     }
 
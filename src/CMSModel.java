@@ -1,40 +1,179 @@
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Model Class for the CMS Application. This class is used to communicate with the MySQL Database
- * using JDBC and executing queries.
+ * Model Class for the CMS Application. This class is the JDBC implementation of the client
+ * repository, used to communicate with the MySQL Database (or an embedded database) by executing
+ * queries. Every operation borrows its own connection from a bounded connection pool, so the model
+ * can be used from several threads at the same time.
  * @author karimbounekhla
  */
-public class CMSModel {
-    public Connection jdbc_connection;
-    public PreparedStatement pStatement; // Use prepared statements to prevent SQL Injections
+public class CMSModel implements ClientRepository {
+    /**
+     * Settings used when the model opens its connection pool, client cache and SQL tracer. They
+     * are read once by the constructor - changing them afterwards has no effect on the model.
+     */
+    public static class Settings {
+        // Connection pool settings
+        public int poolMinSize = 2,
+                poolMaxSize = Math.max(4, Runtime.getRuntime().availableProcessors() * 2),
+                // Prepared statements cached per pooled connection
+                statementCacheSize = 32;
+        public long borrowTimeoutMillis = 5000,
+                // Borrowed connections held longer are reported as leaked (0 turns detection off)
+                leakThresholdMillis = 30000,
+                // Idle connections are validated with a round trip only after this long
+                validationIdleMillis = ConnectionPool.DEFAULT_VALIDATION_IDLE_MILLIS;
+        // Client cache settings (maximum entries, estimated heap and time-to-live)
+        public int cacheMaxEntries = 10000;
+        public long cacheMaxBytes = 16 * 1024 * 1024,
+                cacheTtlMillis = 5 * 60 * 1000;
+        // SQL tracing settings (off unless configured) - statements taking at least the threshold
+        // are appended to the slow query log (null for the console)
+        public boolean traceQueries = false;
+        public long slowQueryThresholdMillis = 200;
+        public String slowQueryLog = null;
+    }
+
+    private final Settings settings;
+    private ConnectionPool pool;
+    private ClientCache cache;
+    private QueryTracer tracer;
+    private int appliedMigrations;
+    private final LastNameIndex lastNameIndex = new LastNameIndex();
+    private final ClientChangeSupport changes = new ClientChangeSupport();
+    private volatile boolean lastNameIndexReady;
+    // Last names written while the index is being loaded (null for removed clients), applied on
+    // top of the loaded rows so no write made during the load is lost
+    private Map<Integer, String> pendingLastNames;
+    private final Object lastNameIndexLock = new Object();
     public String tableName = "Client";
     public String databaseName = "mydb";
     // Table will be created in existing database 'mydb'
     // Ensure that database already created before running
     public String connectionInfo = "jdbc:mysql://localhost/" + databaseName +
-            "?verifyServerCertificate=false&useSSL=true",
+            "?verifyServerCertificate=false&useSSL=true&useCursorFetch=true",
             // Change login information before using.
             login          = "root",
             password       = "karim123",
             // Optional - link to .txt file containing client information
             dataFile = "clients.txt";
+    // Number of rows sent to the database per JDBC batch by the bulk write methods
+    public int batchSize = 500;
+    // Number of IDs fetched per round trip when streaming search IDs
+    public int idFetchSize = 10000;
+    // Number of rows fetched per round trip by the forward-only cursor of scanClients
+    public int scanFetchSize = 1000;
 
     /**
-     * Constructor that establishes connection to MySQL database using JDBC.
+     * Constructor that opens the pool of connections to the MySQL database using JDBC.
      */
     public CMSModel()
+    {
+        this(new Settings());
+    }
+
+    /**
+     * Constructor that opens the pool of connections to the MySQL database using JDBC, with
+     * tuned pool, cache and tracing settings
+     * @param settings the settings
+     */
+    public CMSModel(Settings settings)
+    {
+        this.settings = settings;
+        open();
+    }
+
+    /**
+     * Constructor that opens the pool of connections to the MySQL database using JDBC, with a data
+     * file of its own and tuned pool, cache and tracing settings
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     * @param settings the settings
+     */
+    public CMSModel(String dataFile, Settings settings)
+    {
+        this.settings = settings;
+        this.dataFile = dataFile;
+        open();
+    }
+
+    /**
+     * Constructor that opens the pool of connections to any JDBC database, e.g. an embedded
+     * database for benchmarks
+     * @param connectionInfo JDBC connection URL
+     * @param login database user
+     * @param password database password
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     */
+    public CMSModel(String connectionInfo, String login, String password, String dataFile)
+    {
+        this(connectionInfo, login, password, dataFile, new Settings());
+    }
+
+    /**
+     * Constructor that opens the pool of connections to any JDBC database, with tuned pool, cache
+     * and tracing settings
+     * @param connectionInfo JDBC connection URL
+     * @param login database user
+     * @param password database password
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     * @param settings the settings
+     */
+    public CMSModel(String connectionInfo, String login, String password, String dataFile,
+                    Settings settings)
+    {
+        this.settings = settings;
+        this.connectionInfo = connectionInfo;
+        this.login = login;
+        this.password = password;
+        this.dataFile = dataFile;
+        open();
+    }
+
+    /**
+     * Closes all connections of the model
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Helper method that connects to the database and prepares the table
+     */
+    private void open()
     {
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            jdbc_connection = DriverManager.getConnection(connectionInfo, login, password);
-            // Create table + fill table (if not already done - see methods for details)
-            createTable();
+            // Other JDBC 4 drivers register themselves when they are on the classpath
+            if (isMySQL()) {
+                Class.forName("com.mysql.jdbc.Driver");
+            }
+            cache = new ClientCache(settings.cacheMaxEntries, settings.cacheMaxBytes,
+                                    settings.cacheTtlMillis);
+            if (settings.traceQueries) {
+                tracer = new QueryTracer(settings.slowQueryThresholdMillis, settings.slowQueryLog);
+                // Query parameters of the URL are left out of the name
+                tracer.register(connectionInfo.split("\\?")[0]);
+            }
+            pool = new ConnectionPool(connectionInfo, login, password, settings.poolMinSize,
+                                      settings.poolMaxSize, settings.borrowTimeoutMillis,
+                                      settings.leakThresholdMillis, settings.statementCacheSize,
+                                      settings.validationIdleMillis, tracer);
+            // Create/migrate table + fill table (if not already done - see methods for details)
+            migrateSchema();
             fillTable();
+            // The index is only needed for prefix searches, which use the database until it is
+            // loaded - read it in the background so the model is usable right away
+            Thread indexLoader = new Thread(this::loadLastNameIndex, "cms-last-name-index");
+            indexLoader.setDaemon(true);
+            indexLoader.start();
         } catch(SQLException e) {
             e.printStackTrace();
         } catch(Exception e) {
@@ -42,51 +181,371 @@ public class CMSModel {
         }
     }
 
+    /**
+     * Returns the connection pool used by the model, which exposes pool occupancy and wait times
+     * @return the connection pool
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the tracer of the SQL run by the model, which keeps statistics per statement and logs
+     * slow queries
+     * @return the query tracer, or null if tracing is turned off
+     */
+    public QueryTracer getQueryTracer() {
+        return tracer;
+    }
+
+    /**
+     * Returns the client cache used by the model, which exposes hit, miss and eviction counts
+     * @return the client cache
+     */
+    public ClientCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the number of schema migrations applied to the table when the model was opened
+     * @return migration count, 0 if the schema was already up to date
+     */
+    public int getAppliedMigrations() {
+        return appliedMigrations;
+    }
+
+    /**
+     * Returns the clients whose last name starts with a prefix (ignoring case), using the in-memory
+     * last name index instead of the database
+     * @param prefix the last name prefix
+     * @param limit maximum number of matches returned
+     * @return the matching IDs ordered by last name, or null if the index is not loaded
+     */
+    @Override
+    public LastNameIndex.PrefixMatch getLastNamePrefixMatches(String prefix, int limit) {
+        return lastNameIndexReady ? lastNameIndex.find(prefix, limit) : null;
+    }
+
+    /**
+     * Returns a client by ID, from the cache if possible
+     * @param id ID of the client
+     * @return the client, or null if no client has this ID
+     */
+    @Override
+    public Client getClientById(int id) {
+        Client client = cache.get(id);
+        if (client != null) {
+            return client;
+        }
+
+        // Taken before the read, so a write made meanwhile keeps the row read out of the cache
+        long stamp = cache.readStamp(id);
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.SEARCH_BY_ID, tableName);
+            pStatement.setInt(1, id);
+            try (ResultSet rs = pStatement.executeQuery()) {
+                if (rs.next()) {
+                    client = readClient(rs);
+                    cache.putIfUnchanged(client, stamp);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return client;
+    }
+
     /**
      * Executes a search query and returns the results in an ArrayList
      * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
      * @param searchQuery Search query
      * @return Array List of Client Objects containing all matches - otherwise null.
      */
+    @Override
     public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery) {
-        // Set SQL query statement based on search column
-        String sql = "SELECT * FROM " + tableName + " WHERE " + searchCriteria + "=?";
+        return getSearchResults(searchCriteria, searchQuery, new QueryHandle());
+    }
+
+    /**
+     * Executes a search query that can be cancelled from another thread and returns the results
+     * in an ArrayList
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param handle handle used to cancel the query
+     * @return Array List of Client Objects containing all matches (empty if the query was cancelled)
+     */
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery,
+                                              QueryHandle handle) {
+        // Pick the precompiled statement for the search column (rejects unknown columns)
+        ClientStatement statement = ClientStatement.forSearchCriteria(searchCriteria);
 
         ArrayList<Client> searchResults = new ArrayList<>();
 
-        try {
-            pStatement = jdbc_connection.prepareStatement(sql);
-            pStatement.setString(1, searchQuery);
+        // Lookups by ID read through the cache, so repeating one does not reach the database
+        if (statement == ClientStatement.SEARCH_BY_ID) {
+            int id = parseId(searchQuery);
+            Client client = id > 0 ? getClientById(id) : null;
+            if (client != null) {
+                searchResults.add(client);
+            }
+            return searchResults;
+        }
 
-            ResultSet rs = pStatement.executeQuery();
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(statement, tableName);
+            pStatement.setString(1, searchQuery);
+            if (!handle.attach(pStatement)) {
+                return searchResults;
+            }
 
             // Iterate over Result Set, adding Client object to ArrayList
-            while (rs.next()) {
-                Client toAdd = new Client(rs.getString("firstName"), rs.getString("lastName"),
-                                          rs.getString("address"), rs.getString("postalCode"),
-                                          rs.getString("phoneNumber"),
-                                          rs.getString("clientType"));
-                toAdd.setId(rs.getInt("id"));
-                searchResults.add(toAdd);
+            try (ResultSet rs = pStatement.executeQuery()) {
+                while (rs.next() && !handle.isCancelled()) {
+                    searchResults.add(readClient(rs));
+                }
+            } finally {
+                handle.detach();
             }
-            rs.close();
         } catch (SQLException e) {
-            e.printStackTrace();
+            // A cancelled query is expected to fail
+            if (!handle.isCancelled()) {
+                e.printStackTrace();
+            }
+        }
+        // Never return a partial result for a cancelled query
+        if (handle.isCancelled()) {
+            searchResults.clear();
         }
         // return result
         return searchResults;
     }
 
+    /**
+     * Returns the first page of a search. Pages are ordered by client ID.
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the query
+     * @return the first page of matches
+     */
+    @Override
+    public SearchPage getSearchPage(String searchCriteria, String searchQuery, int pageSize,
+                                    QueryHandle handle) {
+        return getSearchPage(searchCriteria, searchQuery, 0, pageSize, handle);
+    }
+
+    /**
+     * Returns the page following the one a continuation token was taken from
+     * @param continuationToken token returned by SearchPage.getContinuationToken()
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the query
+     * @return the next page of matches
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    @Override
+    public SearchPage getNextPage(String continuationToken, int pageSize, QueryHandle handle) {
+        SearchPage.Token token = SearchPage.Token.parse(continuationToken);
+        return getSearchPage(token.getSearchCriteria(), token.getSearchQuery(), token.getAfterId(),
+                             pageSize, handle);
+    }
+
+    /**
+     * Helper method that fetches the matches with an ID greater than 'afterId'. The query seeks on
+     * (search column, id) so every page costs the same, however deep into the results it is.
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param afterId ID of the last client of the previous page (0 for the first page)
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the query
+     * @return the page of matches (empty if the query was cancelled)
+     */
+    private SearchPage getSearchPage(String searchCriteria, String searchQuery, int afterId,
+                                     int pageSize, QueryHandle handle) {
+        ClientStatement statement = ClientStatement.forPageCriteria(searchCriteria);
+        List<Client> clients = new ArrayList<>(pageSize);
+        boolean hasMore = false;
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(statement, tableName);
+            pStatement.setString(1, searchQuery);
+            pStatement.setInt(2, afterId);
+            // Fetch one extra row to find out whether there is a next page
+            pStatement.setInt(3, pageSize + 1);
+            pStatement.setFetchSize(pageSize + 1);
+            if (!handle.attach(pStatement)) {
+                return new SearchPage(searchCriteria, searchQuery, clients, false);
+            }
+
+            try (ResultSet rs = pStatement.executeQuery()) {
+                while (rs.next() && !handle.isCancelled()) {
+                    if (clients.size() == pageSize) {
+                        hasMore = true;
+                        break;
+                    }
+                    clients.add(readClient(rs));
+                }
+            } finally {
+                handle.detach();
+            }
+        } catch (SQLException e) {
+            // A cancelled query is expected to fail
+            if (!handle.isCancelled()) {
+                e.printStackTrace();
+            }
+        }
+        // Never return a partial page for a cancelled query
+        if (handle.isCancelled()) {
+            clients.clear();
+            hasMore = false;
+        }
+        return new SearchPage(searchCriteria, searchQuery, clients, hasMore);
+    }
+
+    /**
+     * Returns the IDs of all clients matching a search, without loading the clients themselves.
+     * The IDs are streamed from the database so the whole result never has to fit in one fetch.
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param handle handle used to cancel the query
+     * @return IDs of the matches in ascending order (empty if the query was cancelled)
+     */
+    @Override
+    public int[] getSearchIds(String searchCriteria, String searchQuery, QueryHandle handle) {
+        ClientStatement statement = ClientStatement.forIdCriteria(searchCriteria);
+        // Lookups by ID go through the cache, which also makes the client ready for display
+        if (statement == ClientStatement.IDS_BY_ID) {
+            int id = parseId(searchQuery);
+            return id > 0 && getClientById(id) != null ? new int[] {id} : new int[0];
+        }
+        int[] ids = new int[64];
+        int count = 0;
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(statement, tableName);
+            pStatement.setString(1, searchQuery);
+            pStatement.setFetchSize(idFetchSize);
+            if (!handle.attach(pStatement)) {
+                return new int[0];
+            }
+
+            try (ResultSet rs = pStatement.executeQuery()) {
+                while (rs.next() && !handle.isCancelled()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = rs.getInt(1);
+                }
+            } finally {
+                handle.detach();
+            }
+        } catch (SQLException e) {
+            // A cancelled query is expected to fail
+            if (!handle.isCancelled()) {
+                e.printStackTrace();
+            }
+        }
+        return handle.isCancelled() ? new int[0] : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Loads the clients with the given IDs. Cached clients are not read from the database, and the
+     * clients that are read are added to the cache, like getClientById does.
+     * @param ids IDs of the clients to load
+     * @return clients in the same order as the IDs, with null for IDs that do not exist
+     */
+    @Override
+    public Client[] getClientsByIds(int[] ids) {
+        Client[] clients = new Client[ids.length];
+        // Position of each uncached ID in the request, so rows can be put back in request order
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            clients[i] = cache.get(ids[i]);
+            if (clients[i] == null) {
+                positions.put(ids[i], i);
+            }
+        }
+        if (positions.isEmpty()) {
+            return clients;
+        }
+        int[] missing = positions.keySet().stream().mapToInt(Integer::intValue).toArray();
+        // Taken before the reads, so a write made meanwhile keeps the rows read out of the cache
+        Map<Integer, Long> stamps = new HashMap<>();
+        for (int id : missing) {
+            stamps.put(id, cache.readStamp(id));
+        }
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.SELECT_BY_IDS, tableName);
+            for (int start = 0; start < missing.length; start += ClientStatement.ID_LIST_SIZE) {
+                int end = Math.min(start + ClientStatement.ID_LIST_SIZE, missing.length);
+                // Unused parameters repeat the last ID so the same statement serves every chunk
+                for (int i = 0; i < ClientStatement.ID_LIST_SIZE; i++) {
+                    pStatement.setInt(i + 1, missing[Math.min(start + i, end - 1)]);
+                }
+                try (ResultSet rs = pStatement.executeQuery()) {
+                    while (rs.next()) {
+                        Client client = readClient(rs);
+                        clients[positions.get(client.getId())] = client;
+                        cache.putIfUnchanged(client, stamps.get(client.getId()));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return clients;
+    }
+
+    /**
+     * Streams the clients of an ID range through a forward-only, read-only cursor. With
+     * 'useCursorFetch=true' in the MySQL URL the rows stay on the server and are fetched
+     * scanFetchSize at a time, so the scan uses the same memory whatever the size of the table.
+     * Scanned clients are not added to the cache.
+     */
+    @Override
+    public long scanClients(int fromId, int toId, ClientVisitor visitor) throws IOException {
+        long count = 0;
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.SCAN_RANGE, tableName);
+            pStatement.setInt(1, fromId);
+            pStatement.setInt(2, toId);
+            pStatement.setFetchSize(scanFetchSize);
+            try (ResultSet rs = pStatement.executeQuery()) {
+                while (rs.next()) {
+                    count++;
+                    if (!visitor.visit(readClient(rs))) {
+                        break;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not scan clients " + fromId + " to " + toId, e);
+        }
+        return count;
+    }
+
+    @Override
+    public int getMaxId() {
+        try (PooledConnection pc = pool.borrow();
+             ResultSet rs = pc.prepare(ClientStatement.MAX_ID, tableName).executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
     /**
      * Add a client to the database table
      * @param client the Client
      */
+    @Override
     public void addClient(Client client)
     {
-        // Set-up SQL query using Prepared Statement to prevent SQL Injection
-        String sql = "INSERT INTO " + tableName + " VALUES (null, ?, ?, ?, ?, ?, ?);";
-        try {
-            pStatement = jdbc_connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        // Use cached Prepared Statement to prevent SQL Injection
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.INSERT, tableName);
             pStatement.setString(1, client.getFirstName());
             pStatement.setString(2, client.getLastName());
             pStatement.setString(3, client.getAddress());
@@ -96,9 +555,14 @@ public class CMSModel {
             pStatement.executeUpdate();
 
             // Get back generated ID to assign to client Object
-            ResultSet generatedID = pStatement.getGeneratedKeys();
-            if (generatedID.next()) {
-                client.setId(generatedID.getInt(1));
+            try (ResultSet generatedID = pStatement.getGeneratedKeys()) {
+                if (generatedID.next()) {
+                    client.setId(generatedID.getInt(1));
+                    client.setVersion(0);
+                    cache.put(client);
+                    indexPut(client.getId(), client.getLastName());
+                    changes.fireAdded(new Client[] {client}, 1);
+                }
             }
         } catch(SQLException e) {
             e.printStackTrace();
@@ -109,20 +573,48 @@ public class CMSModel {
      * Update a client information in the Database
      * @param id unique ID of the client
      * @param client Client object containing updated information
+     * @return true if the row was updated
      */
-    public void updateClient(int id, Client client) {
-        // Set-up SQL query using Prepared Statement to prevent SQL Injection
-        String sql = "UPDATE " + tableName + " SET " +
-                "firstName = ?, " +
-                "lastName = ?, " +
-                "address = ?, " +
-                "postalCode = ?, " +
-                "phoneNumber = ?, " +
-                "clientType = ? " +
-                "WHERE id = ?;";
+    @Override
+    public boolean updateClient(int id, Client client) {
+        boolean updated = false;
+        // Use cached Prepared Statement to prevent SQL Injection
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.UPDATE, tableName);
+            pStatement.setString(1, client.getFirstName());
+            pStatement.setString(2, client.getLastName());
+            pStatement.setString(3, client.getAddress());
+            pStatement.setString(4, client.getPostalCode());
+            pStatement.setString(5, client.getPhoneNumber());
+            pStatement.setString(6, client.getClientType());
+            pStatement.setInt(7, id);
+            if (pStatement.executeUpdate() > 0) {
+                updated = true;
+                indexPut(id, client.getLastName());
+                changes.fireUpdated(new int[] {id}, 1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            // The new version of the row is not known here - reload it on next lookup
+            cache.invalidate(id);
+        }
+        return updated;
+    }
 
-        try {
-            pStatement = jdbc_connection.prepareStatement(sql);
+    /**
+     * Update a client information in the Database if the row still has the version that was
+     * read, with a single 'WHERE id = ? AND version = ?' statement - no lock is held between
+     * reading the client and writing it
+     * @param id unique ID of the client
+     * @param client Client object containing updated information
+     * @param expectedVersion version of the client when it was read
+     * @return OK, CONFLICT, NOT_FOUND or ERROR
+     */
+    @Override
+    public WriteResult updateClient(int id, Client client, int expectedVersion) {
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.UPDATE_IF_VERSION, tableName);
             pStatement.setString(1, client.getFirstName());
             pStatement.setString(2, client.getLastName());
             pStatement.setString(3, client.getAddress());
@@ -130,47 +622,442 @@ public class CMSModel {
             pStatement.setString(5, client.getPhoneNumber());
             pStatement.setString(6, client.getClientType());
             pStatement.setInt(7, id);
-            pStatement.executeUpdate();
+            pStatement.setInt(8, expectedVersion);
+            if (pStatement.executeUpdate() == 0) {
+                // Our cached copy (if any) is outdated
+                cache.invalidate(id);
+                return missOrConflict(pc, id);
+            }
+
+            // Write the new information through to the cache
+            client.setId(id);
+            client.setVersion(expectedVersion + 1);
+            cache.put(client);
+            indexPut(id, client.getLastName());
+            changes.fireUpdated(new Client[] {client}, 1);
+            return WriteResult.OK;
         } catch (SQLException e) {
+            // Row may or may not have been updated - reload it on next lookup
+            cache.invalidate(id);
             e.printStackTrace();
+            return WriteResult.ERROR;
         }
     }
 
     /**
      * Delete client row from the database
      * @param id unique ID of the client to delete
+     * @return true if the row was deleted
      */
-    public void deleteClient(int id) {
-        // Set-up SQL query using Prepared Statement to prevent SQL Injection
-        String sql = "DELETE FROM " + tableName + " WHERE id = ?;";
+    @Override
+    public boolean deleteClient(int id) {
+        // Use cached Prepared Statement to prevent SQL Injection
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.DELETE, tableName);
+            pStatement.setInt(1, id);
+            int deleted = pStatement.executeUpdate();
+            cache.invalidate(id);
+            indexRemove(id);
+            if (deleted > 0) {
+                changes.fireDeleted(new int[] {id}, 1);
+            }
+            return deleted > 0;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-        try {
-            pStatement = jdbc_connection.prepareStatement(sql);
+    /**
+     * Delete client row from the database if it still has the version that was read
+     * @param id unique ID of the client to delete
+     * @param expectedVersion version of the client when it was read
+     * @return OK, CONFLICT, NOT_FOUND or ERROR
+     */
+    @Override
+    public WriteResult deleteClient(int id, int expectedVersion) {
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.DELETE_IF_VERSION, tableName);
             pStatement.setInt(1, id);
-            pStatement.executeUpdate();
+            pStatement.setInt(2, expectedVersion);
+            int deleted = pStatement.executeUpdate();
+            cache.invalidate(id);
+            if (deleted == 0) {
+                return missOrConflict(pc, id);
+            }
+            indexRemove(id);
+            changes.fireDeleted(new int[] {id}, 1);
+            return WriteResult.OK;
         } catch (SQLException e) {
             e.printStackTrace();
+            return WriteResult.ERROR;
         }
     }
 
     /**
-     * Create table if it hasn't been created yet.
+     * Adds a list of clients to the database table using JDBC batching. All rows are written in a
+     * single transaction, sent in chunks of 'batchSize' rows. Generated IDs are assigned back to
+     * the Client objects that were inserted successfully.
+     * @param clients list of clients to add
+     * @return array where each element is true if the client at that index was added
      */
-    private void createTable()
-    {
-        // Sets ID to auto_increment
-        String sql = "CREATE TABLE IF NOT EXISTS " + tableName + " (" +
-                "id INT AUTO_INCREMENT, " +
-                "firstName VARCHAR(20) NOT NULL, " +
-                "lastName VARCHAR(20) NOT NULL, " +
-                "address VARCHAR(50) NOT NULL, " +
-                "postalCode CHAR(7) NOT NULL, " +
-                "phoneNumber CHAR(12) NOT NULL, " +
-                "clientType CHAR(1) NOT NULL, " +
-                "PRIMARY KEY (id))";
+    @Override
+    public boolean[] addClients(List<Client> clients) {
+        boolean[] success = new boolean[clients.size()];
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.INSERT, tableName);
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            for (int start = 0; start < clients.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, clients.size());
+                for (int i = start; i < end; i++) {
+                    Client client = clients.get(i);
+                    pStatement.setString(1, client.getFirstName());
+                    pStatement.setString(2, client.getLastName());
+                    pStatement.setString(3, client.getAddress());
+                    pStatement.setString(4, client.getPostalCode());
+                    pStatement.setString(5, client.getPhoneNumber());
+                    pStatement.setString(6, client.getClientType());
+                    pStatement.addBatch();
+                }
+                executeChunk(pStatement, success, start, end);
+
+                // Generated keys are returned in order for the rows that were inserted
+                try (ResultSet generatedIDs = pStatement.getGeneratedKeys()) {
+                    for (int i = start; i < end; i++) {
+                        if (success[i] && generatedIDs.next()) {
+                            clients.get(i).setId(generatedIDs.getInt(1));
+                            clients.get(i).setVersion(0);
+                        }
+                    }
+                }
+            }
+            if (!commit(conn)) {
+                Arrays.fill(success, false);
+            }
+        } catch (SQLException e) {
+            // Connection is rolled back by the pool when it is returned
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        }
+        int[] addedIds = new int[success.length];
+        String[] addedNames = new String[success.length];
+        Client[] addedClients = new Client[success.length];
+        int added = 0;
+        for (int i = 0; i < success.length; i++) {
+            if (success[i]) {
+                cache.put(clients.get(i));
+                addedIds[added] = clients.get(i).getId();
+                addedClients[added] = clients.get(i);
+                addedNames[added++] = clients.get(i).getLastName();
+            }
+        }
+        indexPutAll(addedIds, addedNames, added);
+        changes.fireAdded(addedClients, added);
+        return success;
+    }
+
+    /**
+     * Updates a list of clients in the database using JDBC batching. All rows are written in a
+     * single transaction, sent in chunks of 'batchSize' rows.
+     * @param clients list of Client objects containing updated information (matched by ID)
+     * @return array where each element is true if the client at that index was updated
+     */
+    @Override
+    public boolean[] updateClients(List<Client> clients) {
+        boolean[] success = new boolean[clients.size()];
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.UPDATE, tableName);
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            for (int start = 0; start < clients.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, clients.size());
+                for (int i = start; i < end; i++) {
+                    Client client = clients.get(i);
+                    pStatement.setString(1, client.getFirstName());
+                    pStatement.setString(2, client.getLastName());
+                    pStatement.setString(3, client.getAddress());
+                    pStatement.setString(4, client.getPostalCode());
+                    pStatement.setString(5, client.getPhoneNumber());
+                    pStatement.setString(6, client.getClientType());
+                    pStatement.setInt(7, client.getId());
+                    pStatement.addBatch();
+                }
+                executeChunk(pStatement, success, start, end);
+            }
+            if (!commit(conn)) {
+                Arrays.fill(success, false);
+            }
+        } catch (SQLException e) {
+            // Connection is rolled back by the pool when it is returned
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        }
+        // The new row versions are not known - drop the rows from the cache
+        int[] updatedIds = new int[success.length];
+        int updated = 0;
+        for (int i = 0; i < success.length; i++) {
+            if (success[i]) {
+                indexPut(clients.get(i).getId(), clients.get(i).getLastName());
+                updatedIds[updated++] = clients.get(i).getId();
+            }
+            cache.invalidate(clients.get(i).getId());
+        }
+        changes.fireUpdated(updatedIds, updated);
+        return success;
+    }
+
+    /**
+     * Deletes a list of client rows from the database using JDBC batching. All rows are deleted in
+     * a single transaction, sent in chunks of 'batchSize' rows.
+     * @param ids unique IDs of the clients to delete
+     * @return array where each element is true if the client with the ID at that index was deleted
+     */
+    @Override
+    public boolean[] deleteClients(List<Integer> ids) {
+        boolean[] success = new boolean[ids.size()];
+
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.DELETE, tableName);
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            for (int start = 0; start < ids.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, ids.size());
+                for (int i = start; i < end; i++) {
+                    pStatement.setInt(1, ids.get(i));
+                    pStatement.addBatch();
+                }
+                executeChunk(pStatement, success, start, end);
+            }
+            if (!commit(conn)) {
+                Arrays.fill(success, false);
+            }
+        } catch (SQLException e) {
+            // Connection is rolled back by the pool when it is returned
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        }
+        int[] deletedIds = new int[success.length];
+        int deleted = 0;
+        for (int i = 0; i < success.length; i++) {
+            cache.invalidate(ids.get(i));
+            if (success[i]) {
+                indexRemove(ids.get(i));
+                deletedIds[deleted++] = ids.get(i);
+            }
+        }
+        changes.fireDeleted(deletedIds, deleted);
+        return success;
+    }
+
+    /**
+     * Deletes clients with 'DELETE ... WHERE id IN (...)' statements of BULK_ID_LIST_SIZE IDs,
+     * sent as one batch in a single transaction
+     * @param ids IDs of the clients to delete
+     * @return number of clients deleted, or -1 if the transaction failed
+     */
+    @Override
+    public int deleteClientsByIds(int[] ids) {
+        int deleted = executeBulk(ClientStatement.DELETE_BY_IDS, null, ids);
+        for (int id : ids) {
+            cache.invalidate(id);
+            if (deleted > 0) {
+                indexRemove(id);
+            }
+        }
+        // IDs that did not exist are ignored by the listeners
+        if (deleted > 0) {
+            changes.fireDeleted(ids, ids.length);
+        }
+        return deleted;
+    }
+
+    /**
+     * Changes the client type of clients with 'UPDATE ... WHERE id IN (...)' statements of
+     * BULK_ID_LIST_SIZE IDs, sent as one batch in a single transaction
+     * @param ids IDs of the clients to change
+     * @param clientType the new client type
+     * @return number of clients changed, or -1 if the transaction failed
+     */
+    @Override
+    public int updateClientTypes(int[] ids, String clientType) {
+        int updated = executeBulk(ClientStatement.UPDATE_TYPE_BY_IDS, clientType, ids);
+        // The new row versions are not known - drop the rows from the cache
+        for (int id : ids) {
+            cache.invalidate(id);
+        }
+        if (updated > 0) {
+            changes.fireUpdated(ids, ids.length);
+        }
+        return updated;
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changes.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        changes.removeListener(listener);
+    }
+
+    /**
+     * Helper method that runs a bulk write over a list of IDs, chunked to the fixed IN list size
+     * of the statement, in one transaction
+     * @param statement DELETE_BY_IDS or UPDATE_TYPE_BY_IDS
+     * @param clientType value of the first parameter, or null if the statement has none
+     * @param ids the IDs
+     * @return number of rows changed, or -1 if the transaction failed
+     */
+    private int executeBulk(ClientStatement statement, String clientType, int[] ids) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        int size = ClientStatement.BULK_ID_LIST_SIZE;
+        int first = clientType == null ? 1 : 2;
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(statement, tableName);
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            for (int start = 0; start < ids.length; start += size) {
+                int end = Math.min(start + size, ids.length);
+                if (clientType != null) {
+                    pStatement.setString(1, clientType);
+                }
+                // Unused parameters repeat the last ID so the same statement serves every chunk
+                for (int i = 0; i < size; i++) {
+                    pStatement.setInt(first + i, ids[Math.min(start + i, end - 1)]);
+                }
+                pStatement.addBatch();
+            }
+            int changed = 0;
+            int[] counts = pStatement.executeBatch();
+            for (int chunk = 0; chunk < counts.length; chunk++) {
+                // Drivers that do not report counts get the size of the chunk
+                changed += counts[chunk] >= 0 ? counts[chunk]
+                        : Math.min(size, ids.length - chunk * size);
+            }
+            return commit(conn) ? changed : -1;
+        } catch (SQLException e) {
+            // Connection is rolled back by the pool when it is returned
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method that executes a statement batch and records which rows of the chunk
+     * [start, end) succeeded. A failed row does not abort the rest of the transaction.
+     * @param pStatement statement holding the batch
+     * @param success per-row result array to fill in
+     * @param start index of the first row of the chunk
+     * @param end index after the last row of the chunk
+     * @throws SQLException if the batch could not be executed at all
+     */
+    private void executeChunk(PreparedStatement pStatement, boolean[] success, int start, int end)
+            throws SQLException {
+        int[] counts;
         try {
-            pStatement = jdbc_connection.prepareStatement(sql);
-            pStatement.executeUpdate();
+            counts = pStatement.executeBatch();
+        } catch (BatchUpdateException e) {
+            // Driver continued past the failed rows - update counts tell us which ones failed
+            counts = e.getUpdateCounts();
+        }
+        for (int i = start; i < end; i++) {
+            int offset = i - start;
+            success[i] = offset < counts.length
+                    && (counts[offset] > 0 || counts[offset] == Statement.SUCCESS_NO_INFO);
+        }
+    }
+
+    /**
+     * Helper method that commits the transaction of a bulk write and switches the connection back
+     * to auto-commit. The transaction is rolled back if the commit fails.
+     * @param conn connection holding the transaction
+     * @return true if the transaction was committed
+     */
+    private boolean commit(Connection conn) {
+        try {
+            conn.commit();
+            conn.setAutoCommit(true);
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            } catch (SQLException rollbackError) {
+                rollbackError.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Helper method that tells why a compare-and-set write matched no row
+     * @param pc connection the write was made on
+     * @param id ID of the client
+     * @return CONFLICT if the row exists with another version, NOT_FOUND if it does not exist
+     * @throws SQLException if the row could not be read
+     */
+    private WriteResult missOrConflict(PooledConnection pc, int id) throws SQLException {
+        PreparedStatement pStatement = pc.prepare(ClientStatement.VERSION_BY_ID, tableName);
+        pStatement.setInt(1, id);
+        try (ResultSet rs = pStatement.executeQuery()) {
+            return rs.next() ? WriteResult.CONFLICT : WriteResult.NOT_FOUND;
+        }
+    }
+
+    /**
+     * Helper method that reads an ID given as search text
+     * @param searchQuery ID search query
+     * @return the ID, or -1 if the query is not a number
+     */
+    private static int parseId(String searchQuery) {
+        try {
+            return Integer.parseInt(searchQuery.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method that checks whether the model is connected to MySQL
+     * @return true for a MySQL connection URL
+     */
+    private boolean isMySQL() {
+        return connectionInfo.startsWith("jdbc:mysql:");
+    }
+
+    /**
+     * Helper method that creates a Client object from the current row of a Result Set
+     * @param rs result set positioned on a client row
+     * @return the Client object, including its ID
+     * @throws SQLException if a column could not be read
+     */
+    private Client readClient(ResultSet rs) throws SQLException {
+        Client client = new Client(rs.getString("firstName"), rs.getString("lastName"),
+                                   rs.getString("address"), rs.getString("postalCode"),
+                                   rs.getString("phoneNumber"),
+                                   rs.getString("clientType"));
+        client.setId(rs.getInt("id"));
+        client.setVersion(rs.getInt("version"));
+        return client;
+    }
+
+    /**
+     * Creates the table and its indexes if they haven't been created yet, by applying any schema
+     * migrations that are missing from the database.
+     */
+    private void migrateSchema()
+    {
+        try (PooledConnection pc = pool.borrow()) {
+            SchemaMigrator migrator = new SchemaMigrator(tableName);
+            migrator.setOnlineDdl(isMySQL());
+            appliedMigrations = migrator.migrate(pc.getConnection());
         }
         catch(SQLException e)
         {
@@ -179,32 +1066,133 @@ public class CMSModel {
     }
 
     /**
-     * If Table is empty, fills the data table with all the tools from the text file 'clients.txt' if found
-     * Program assumes that data in the .txt file is already correct.
+     * Builds the in-memory last name index from every row of the table. Until it is loaded, last
+     * name prefix lookups return null and callers fall back to the database. Writes made while the
+     * rows are read are recorded and applied once they are loaded.
      */
-    private void fillTable()
+    private void loadLastNameIndex()
     {
-        try {
-            // Ensures that table is empty before importing data - this ensures data isn't added more than once
-            pStatement = jdbc_connection.prepareStatement("SELECT * FROM " + tableName);
-            ResultSet rs = pStatement.executeQuery();
-            if (rs.next()) {
-                return;
-            }
+        int[] ids = new int[1024];
+        String[] lastNames = new String[1024];
+        int count = 0;
 
-            // Loop over text file, parsing data and adding to DB
-            Scanner sc = new Scanner(new FileReader(dataFile));
-            while(sc.hasNext())
-            {
-                String clientInfo[] = sc.nextLine().split(";");
-                addClient(new Client(clientInfo[0], clientInfo[1], clientInfo[2],
-                        clientInfo[3], clientInfo[4], clientInfo[5]));
+        synchronized (lastNameIndexLock) {
+            pendingLastNames = new HashMap<>();
+        }
+        try (PooledConnection pc = pool.borrow()) {
+            PreparedStatement pStatement = pc.prepare(ClientStatement.ALL_LAST_NAMES, tableName);
+            pStatement.setFetchSize(idFetchSize);
+            try (ResultSet rs = pStatement.executeQuery()) {
+                while (rs.next()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                        lastNames = Arrays.copyOf(lastNames, count * 2);
+                    }
+                    ids[count] = rs.getInt(1);
+                    lastNames[count] = rs.getString(2);
+                    count++;
+                }
+            }
+            synchronized (lastNameIndexLock) {
+                lastNameIndex.load(ids, lastNames, count);
+                for (Map.Entry<Integer, String> pending : pendingLastNames.entrySet()) {
+                    if (pending.getValue() == null) {
+                        lastNameIndex.remove(pending.getKey());
+                    } else {
+                        lastNameIndex.put(pending.getKey(), pending.getValue());
+                    }
+                }
+                pendingLastNames = null;
+                lastNameIndexReady = true;
+            }
+        }
+        catch(SQLException e)
+        {
+            // The index stays unused - searches keep going to the database
+            synchronized (lastNameIndexLock) {
+                pendingLastNames = null;
             }
-            sc.close();
-        } catch(FileNotFoundException e) {
-            System.err.println("File " + dataFile + " Not Found!");
-        } catch(Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Helper method that sets the last name of a client in the index, or records it while the
+     * index is being loaded. Before the load starts nothing is needed - it reads the client.
+     */
+    private void indexPut(int id, String lastName) {
+        if (!lastNameIndexReady) {
+            synchronized (lastNameIndexLock) {
+                if (!lastNameIndexReady) {
+                    if (pendingLastNames != null) {
+                        pendingLastNames.put(id, lastName);
+                    }
+                    return;
+                }
+            }
+        }
+        lastNameIndex.put(id, lastName);
+    }
+
+    /**
+     * Helper method that sets the last names of added clients in the index, or records them while
+     * the index is being loaded
+     */
+    private void indexPutAll(int[] ids, String[] lastNames, int count) {
+        if (!lastNameIndexReady) {
+            synchronized (lastNameIndexLock) {
+                if (!lastNameIndexReady) {
+                    for (int i = 0; pendingLastNames != null && i < count; i++) {
+                        pendingLastNames.put(ids[i], lastNames[i]);
+                    }
+                    return;
+                }
+            }
+        }
+        lastNameIndex.putAll(ids, lastNames, count);
+    }
+
+    /**
+     * Helper method that removes a client from the index, or records the removal while the index
+     * is being loaded
+     */
+    private void indexRemove(int id) {
+        if (!lastNameIndexReady) {
+            synchronized (lastNameIndexLock) {
+                if (!lastNameIndexReady) {
+                    if (pendingLastNames != null) {
+                        pendingLastNames.put(id, null);
+                    }
+                    return;
+                }
+            }
+        }
+        lastNameIndex.remove(id);
+    }
+
+    /**
+     * If Table is empty, fills the data table with all the clients from the text file 'clients.txt'
+     * if found, using the parallel import pipeline. Invalid lines are written to a reject file. An
+     * import that was interrupted is resumed, even though the table is no longer empty. Emptiness
+     * is checked by reading at most one row, so a large table is not scanned on every start.
+     */
+    private void fillTable()
+    {
+        if (dataFile == null) {
+            return;
+        }
+        // Ensures that table is empty before importing data - this ensures data isn't added more than once
+        if (!ClientImporter.isInterrupted(dataFile)) {
+            try (PooledConnection pc = pool.borrow();
+                 ResultSet rs = pc.prepare(ClientStatement.ANY_ROW, tableName).executeQuery()) {
+                if (rs.next()) {
+                    return;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        ClientImporter.fill(this, dataFile);
+    }
 }
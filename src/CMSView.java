@@ -1,22 +1,26 @@
 
 
 import javax.swing.*;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionListener;
 import java.awt.*;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
 
 /**
  * Class representing the User Interface / GUI for the Main CMS Window.
  * @author karimbounekhla
  */
 public class CMSView extends JFrame {
-    private JList searchResultList;
-    private ArrayList<Client> currResults;
+    private static final String TITLE = "Client Management Screen";
+    private JList<Client> searchResultList;
+    private LazyClientListModel resultListModel;
+    private ClientCellRenderer resultRenderer;
     private JScrollPane scrollSearchPane;
+    private JProgressBar busyBar;
     private ButtonGroup searchButtonGrp;
     private JRadioButton radioID, radioName, radioType;
-    private JButton searchButton, clearSearchButton, addClientButton, saveButton, deleteButton;
+    private JButton searchButton, clearSearchButton, addClientButton, saveButton, deleteButton,
+            changeTypeButton;
     private JTextField searchField;
     private JTextField clientIDField, firstNameField, lastNameField, postalCodeField, phoneNumberField;
     private JTextArea addressTextArea;
@@ -27,7 +31,7 @@ public class CMSView extends JFrame {
      * Constructor to set up Layout and add Elements
      */
     public CMSView() {
-        super("Client Management Screen");
+        super(TITLE);
         setLayout(new BorderLayout());
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setResizable(false);
@@ -44,20 +48,89 @@ public class CMSView extends JFrame {
     }
 
     /**
-     * Refresh results to display list of clients found from search operation
-     * @param results ArrayList containing Client objects from Search Query
+     * Refresh results to display the clients found from a search operation. Only the IDs are
+     * given up front - the clients are loaded by the loader as their rows are scrolled into view.
+     * @param ids IDs of the clients found by the search, in display order
+     * @param loader loader used to fetch the clients of the visible rows
      */
-    public void refreshResults(ArrayList<Client> results) {
-        currResults = results;
-        searchResultList.setListData(currResults.toArray());
+    public void refreshResults(int[] ids, LazyClientListModel.WindowLoader loader) {
+        resultListModel.setRows(ids, loader);
     }
 
     /**
-     * Returns the current search result list
-     * @return ArrayList of Client Objects representing latest search query
+     * Removes a deleted client from the displayed search results
+     * @param id ID of the deleted client
      */
-    public ArrayList<Client> getCurrResults() {
-        return currResults;
+    public void removeResult(int id) {
+        resultListModel.removeId(id);
+    }
+
+    /**
+     * Removes deleted clients from the displayed search results. Only the removed rows change;
+     * the selection of the other rows is kept.
+     * @param ids IDs of the deleted clients
+     */
+    public void removeResults(int[] ids) {
+        resultListModel.removeIds(ids);
+        // The details of a deleted client can no longer be edited
+        String shownId = clientIDField.getText();
+        for (int id : ids) {
+            if (shownId.equals(String.valueOf(id))) {
+                clearClientDetails();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reloads the displayed search results of clients changed together. Only the changed rows
+     * are redrawn.
+     * @param ids IDs of the changed clients
+     */
+    public void resultsChanged(int[] ids) {
+        resultListModel.reloadIds(ids);
+    }
+
+    /**
+     * Redraws the row of a displayed client that was edited. The renderer caches text by Client
+     * object, so the new Client is rendered afresh without clearing the cache.
+     * @param client the edited client
+     */
+    public void clientUpdated(Client client) {
+        resultListModel.clientChanged(client);
+    }
+
+    /**
+     * Appends a client added elsewhere to the displayed search results
+     * @param client the added client
+     */
+    public void resultAdded(Client client) {
+        resultListModel.addRow(client);
+    }
+
+    /**
+     * Shows or hides the busy indicator while the database is being accessed
+     * @param busy true if a database operation is running
+     */
+    public void setBusy(boolean busy) {
+        busyBar.setVisible(busy);
+        setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
+    }
+
+    /**
+     * Shows the window as connecting while the Model is started in the background: the busy
+     * indicator is shown and the buttons are disabled. The search field stays usable, so a query
+     * can be typed in the meantime.
+     * @param connecting true until the Model is ready
+     */
+    public void setConnecting(boolean connecting) {
+        setBusy(connecting);
+        setTitle(connecting ? TITLE + " - Connecting..." : TITLE);
+        JButton[] buttons = {searchButton, clearSearchButton, addClientButton, saveButton, deleteButton,
+                changeTypeButton};
+        for (JButton button : buttons) {
+            button.setEnabled(!connecting);
+        }
     }
 
     /**
@@ -69,6 +142,26 @@ public class CMSView extends JFrame {
         searchButton.addActionListener(e);
     }
 
+    /**
+     * Add listener to changes of the search input field.
+     *
+     * @param e Document Listener object
+     */
+    public void addSearchFieldListener(DocumentListener e) {
+        searchField.getDocument().addDocumentListener(e);
+    }
+
+    /**
+     * Add listener to the search criteria radio buttons.
+     *
+     * @param e Action Listener object
+     */
+    public void addSearchCriteriaListener(ActionListener e) {
+        radioID.addActionListener(e);
+        radioName.addActionListener(e);
+        radioType.addActionListener(e);
+    }
+
     /**
      * Add listener to 'Clear Search' button.
      *
@@ -105,6 +198,15 @@ public class CMSView extends JFrame {
         deleteButton.addActionListener(e);
     }
 
+    /**
+     * Add listener to 'Change Type of Selected' button.
+     *
+     * @param e Action Listener object
+     */
+    public void addChangeTypeListener(ActionListener e) {
+        changeTypeButton.addActionListener(e);
+    }
+
     /**
      * Add listener to 'Result List'.
      *
@@ -152,13 +254,20 @@ public class CMSView extends JFrame {
         return searchButtonGrp.getSelection().getActionCommand();
     }
 
+    /**
+     * Clear search result list (keeping the input field)
+     */
+    public void clearResults() {
+        resultListModel.clear();
+        clearClientDetails();
+    }
+
     /**
      * Clear search result list and input field
      */
     public void clearSearch() {
         searchField.setText("");
-        DefaultListModel empty = new DefaultListModel();
-        searchResultList.setModel(empty);
+        resultListModel.clear();
         clearClientDetails();
     }
 
@@ -167,9 +276,20 @@ public class CMSView extends JFrame {
      * @return object of selected client, null if no client selected
      */
     public Client getSelectedClient() {
-        Object selection = searchResultList.getSelectedValue();
-        if (selection == null) return null;
-        return (Client) selection;
+        return searchResultList.getSelectedValue();
+    }
+
+    /**
+     * Returns the IDs of all selected clients, including rows that are not loaded yet
+     * @return IDs of the selected clients in display order (empty if none is selected)
+     */
+    public int[] getSelectedIds() {
+        int[] rows = searchResultList.getSelectedIndices();
+        int[] ids = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = resultListModel.getId(rows[i]);
+        }
+        return ids;
     }
 
     /**
@@ -280,12 +400,28 @@ public class CMSView extends JFrame {
         JPanel searchResultsPanel = new JPanel();
         searchResultsPanel.setLayout(new BoxLayout(searchResultsPanel, BoxLayout.PAGE_AXIS));
 
-        searchResultList = new JList();
+        // Rows are loaded in windows of 100 clients, keeping at most 50 windows in memory.
+        // A prototype cell gives every row the same height without rendering each client.
+        resultListModel = new LazyClientListModel(100, 50);
+        resultRenderer = new ClientCellRenderer(2000);
+        searchResultList = new JList<>(resultListModel);
+        searchResultList.setCellRenderer(resultRenderer);
+        Client prototype = new Client("XXXXXXXXXXXX", "XXXXXXXXXXXX", "", "", "", "C");
+        prototype.setId(9999);
+        searchResultList.setPrototypeCellValue(prototype);
+        // Shift/Ctrl-click (or Ctrl-A) selects several clients for the bulk operations
+        searchResultList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         scrollSearchPane = new JScrollPane(searchResultList);
 
-        searchResultsPanel.add(new JLabel("Search Results (Select entry to view)"));
+        searchResultsPanel.add(new JLabel("Search Results (Select entry to view, or several)"));
         searchResultsPanel.add(scrollSearchPane);
 
+        // Indeterminate progress bar shown while a database operation is running
+        busyBar = new JProgressBar();
+        busyBar.setIndeterminate(true);
+        busyBar.setVisible(false);
+        searchResultsPanel.add(busyBar);
+
         searchPanel.add(createSearchForm());
         searchPanel.add(searchResultsPanel);
 
@@ -348,9 +484,9 @@ public class CMSView extends JFrame {
      * @return client detail JPanel
      */
     private JPanel createResultPanel() {
-        // Client details panel uses a GridLayout with 10 rows and 1 column
+        // Client details panel uses a GridLayout with 11 rows and 1 column
         JPanel resultPanel = new JPanel();
-        resultPanel.setLayout(new GridLayout(10, 1));
+        resultPanel.setLayout(new GridLayout(11, 1));
         resultPanel.setPreferredSize(new Dimension(400, resultPanel.getHeight()));
         resultPanel.setBorder(BorderFactory.createTitledBorder("Client Information"));
 
@@ -370,7 +506,8 @@ public class CMSView extends JFrame {
         typeRow.add(new JLabel("Client Type: "));
         typeRow.add(clientTypeCombo);
         saveButton = new JButton("Save");
-        deleteButton = new JButton("Delete Client");
+        deleteButton = new JButton("Delete Selected");
+        changeTypeButton = new JButton("Change Type of Selected");
         addClientButton = new JButton("Add New Client");
 
         resultPanel.add(resultRow(new JLabel("Client ID: "), clientIDField));
@@ -382,6 +519,7 @@ public class CMSView extends JFrame {
         resultPanel.add(typeRow);
         resultPanel.add(saveButton);
         resultPanel.add(deleteButton);
+        resultPanel.add(changeTypeButton);
         resultPanel.add(addClientButton);
 
         return resultPanel;
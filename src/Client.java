@@ -10,6 +10,8 @@ public class Client {
     private String postalCode;
     private String phoneNumber;
     private String clientType;
+    // Row version, advanced by every write - used to detect concurrent edits
+    private int version;
 
     public Client(String firstName, String lastName, String address, String postalCode,
                   String phoneNumber, String clientType) {
@@ -33,6 +35,13 @@ public class Client {
         this.clientType = clientType;
     }
 
+    public Client copy() {
+        Client copy = new Client(firstName, lastName, address, postalCode, phoneNumber, clientType);
+        copy.setId(id);
+        copy.setVersion(version);
+        return copy;
+    }
+
     public void setId(int id) {
         this.id = id;
     }
@@ -41,6 +50,14 @@ public class Client {
         return id;
     }
 
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
     public String getFirstName() {
         return firstName;
     }
@@ -0,0 +1,225 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact, column-oriented storage for a set of clients, e.g. a window of search results. Each
+ * column is a primitive array: IDs, client types as chars, postal codes and phone numbers packed
+ * into longs (see ClientCodec), and the free-text fields as UTF-8 bytes in one shared byte array.
+ * A row takes well under 100 bytes instead of the 400+ of a Client with six Strings, and Strings
+ * are only created when a row is read back with get().
+ * @author karimbounekhla
+ */
+public class ClientBatch {
+    // String slots per row: first name, last name, address, then the postal code, phone number and
+    // client type when they could not be packed (empty otherwise)
+    private static final int FIRST_NAME = 0, LAST_NAME = 1, ADDRESS = 2, POSTAL_CODE = 3,
+            PHONE_NUMBER = 4, CLIENT_TYPE = 5, STRING_SLOTS = 6;
+
+    private int size;
+    // ID of every row, 0 for a missing row
+    private int[] ids;
+    private int[] versions;
+    private char[] types;
+    private long[] postalCodes;
+    private long[] phoneNumbers;
+    // UTF-8 text of all rows, and the start of every string slot in it (one extra entry at the end)
+    private byte[] text;
+    private int textLength;
+    private int[] offsets;
+
+    /**
+     * Constructor
+     * @param capacity number of rows the batch holds before growing
+     */
+    public ClientBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        ids = new int[capacity];
+        versions = new int[capacity];
+        types = new char[capacity];
+        postalCodes = new long[capacity];
+        phoneNumbers = new long[capacity];
+        text = new byte[capacity * 32];
+        offsets = new int[capacity * STRING_SLOTS + 1];
+    }
+
+    /**
+     * Creates a batch holding clients
+     * @param clients the clients, with null for missing rows
+     * @return the batch
+     */
+    public static ClientBatch of(Client[] clients) {
+        ClientBatch batch = new ClientBatch(clients.length);
+        for (Client client : clients) {
+            batch.add(client);
+        }
+        return batch;
+    }
+
+    /**
+     * Appends a row
+     * @param client the client, or null for a missing row
+     */
+    public void add(Client client) {
+        ensureCapacity(size + 1);
+        int slot = size * STRING_SLOTS;
+        if (client == null) {
+            ids[size] = 0;
+            Arrays.fill(offsets, slot + 1, slot + STRING_SLOTS + 1, textLength);
+            size++;
+            return;
+        }
+        ids[size] = client.getId();
+        versions[size] = client.getVersion();
+        types[size] = ClientCodec.packClientType(client.getClientType());
+        postalCodes[size] = ClientCodec.packPostalCode(client.getPostalCode());
+        phoneNumbers[size] = ClientCodec.packPhoneNumber(client.getPhoneNumber());
+
+        putString(slot + FIRST_NAME, client.getFirstName());
+        putString(slot + LAST_NAME, client.getLastName());
+        putString(slot + ADDRESS, client.getAddress());
+        putString(slot + POSTAL_CODE,
+                  postalCodes[size] == ClientCodec.NOT_PACKED ? client.getPostalCode() : null);
+        putString(slot + PHONE_NUMBER,
+                  phoneNumbers[size] == ClientCodec.NOT_PACKED ? client.getPhoneNumber() : null);
+        putString(slot + CLIENT_TYPE,
+                  types[size] == ClientCodec.NO_TYPE ? client.getClientType() : null);
+        size++;
+    }
+
+    /**
+     * Returns the number of rows
+     * @return row count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ID of a row without decoding it
+     * @param row row number
+     * @return the client ID, or 0 if the row is missing
+     */
+    public int getId(int row) {
+        checkRow(row);
+        return ids[row];
+    }
+
+    /**
+     * Returns whether a row holds a client
+     * @param row row number
+     * @return false for a missing row
+     */
+    public boolean isPresent(int row) {
+        return getId(row) != 0;
+    }
+
+    /**
+     * Decodes the last name of a row
+     * @param row row number
+     * @return the last name, or null if the row is missing
+     */
+    public String getLastName(int row) {
+        return isPresent(row) ? getString(row * STRING_SLOTS + LAST_NAME) : null;
+    }
+
+    /**
+     * Decodes the client type of a row
+     * @param row row number
+     * @return the client type, or null if the row is missing
+     */
+    public String getClientType(int row) {
+        if (!isPresent(row)) {
+            return null;
+        }
+        return types[row] != ClientCodec.NO_TYPE ? ClientCodec.unpackClientType(types[row])
+                : getString(row * STRING_SLOTS + CLIENT_TYPE);
+    }
+
+    /**
+     * Decodes a row into a Client object
+     * @param row row number
+     * @return a new Client, or null if the row is missing
+     */
+    public Client get(int row) {
+        if (!isPresent(row)) {
+            return null;
+        }
+        int slot = row * STRING_SLOTS;
+        String postalCode = postalCodes[row] != ClientCodec.NOT_PACKED
+                ? ClientCodec.unpackPostalCode(postalCodes[row]) : getString(slot + POSTAL_CODE);
+        String phoneNumber = phoneNumbers[row] != ClientCodec.NOT_PACKED
+                ? ClientCodec.unpackPhoneNumber(phoneNumbers[row]) : getString(slot + PHONE_NUMBER);
+        Client client = new Client(getString(slot + FIRST_NAME), getString(slot + LAST_NAME),
+                                   getString(slot + ADDRESS), postalCode, phoneNumber,
+                                   getClientType(row));
+        client.setId(ids[row]);
+        client.setVersion(versions[row]);
+        return client;
+    }
+
+    /**
+     * Returns the heap used by the batch, including unused capacity
+     * @return size in bytes
+     */
+    public long getEstimatedBytes() {
+        return 96L + 4L * ids.length + 4L * versions.length + 2L * types.length + 8L * postalCodes.length
+                + 8L * phoneNumbers.length + text.length + 4L * offsets.length;
+    }
+
+    /**
+     * Releases unused capacity, e.g. once a batch is complete and will be kept
+     */
+    public void trimToSize() {
+        ids = Arrays.copyOf(ids, size);
+        versions = Arrays.copyOf(versions, size);
+        types = Arrays.copyOf(types, size);
+        postalCodes = Arrays.copyOf(postalCodes, size);
+        phoneNumbers = Arrays.copyOf(phoneNumbers, size);
+        text = Arrays.copyOf(text, textLength);
+        offsets = Arrays.copyOf(offsets, size * STRING_SLOTS + 1);
+    }
+
+    /**
+     * Helper method that appends the text of a string slot (null leaves it empty)
+     */
+    private void putString(int slot, String value) {
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (textLength + bytes.length > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, text, textLength, bytes.length);
+            textLength += bytes.length;
+        }
+        offsets[slot + 1] = textLength;
+    }
+
+    /**
+     * Helper method that decodes the text of a string slot
+     */
+    private String getString(int slot) {
+        return new String(text, offsets[slot], offsets[slot + 1] - offsets[slot], StandardCharsets.UTF_8);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    /**
+     * Helper method that grows the columns to hold at least 'capacity' rows
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        versions = Arrays.copyOf(versions, newCapacity);
+        types = Arrays.copyOf(types, newCapacity);
+        postalCodes = Arrays.copyOf(postalCodes, newCapacity);
+        phoneNumbers = Arrays.copyOf(phoneNumbers, newCapacity);
+        offsets = Arrays.copyOf(offsets, newCapacity * STRING_SLOTS + 1);
+    }
+}
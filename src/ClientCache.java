@@ -0,0 +1,318 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-process cache of Client objects by ID, kept in front of the database by the model.
+ * Entries are evicted in least recently used order once the entry or (estimated) byte limit is
+ * reached, and expire after a time-to-live. The cache stores and returns copies, so callers can
+ * edit the clients they get without changing the cached entries.
+ *
+ * The cache is split into segments by ID, each with its own lock and its own share of the limits,
+ * so concurrent lookups of different clients rarely wait for each other; eviction is least recently
+ * used within a segment, which approximates it over the whole cache. Statistics are read without
+ * taking any lock.
+ *
+ * A client read from the database must not be cached if it was changed while it was read. Readers
+ * take a stamp of the ID before reading and cache the client with putIfUnchanged, which is refused
+ * once a writer has put or invalidated that ID since the stamp was taken.
+ * @author karimbounekhla
+ */
+public class ClientCache {
+    // Change counters per segment - IDs sharing a counter only cost each other a cache fill
+    private static final int STAMPS_PER_SEGMENT = 256;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    // Statistics
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(),
+            evictions = new LongAdder(), expirations = new LongAdder();
+
+    /**
+     * Constructor
+     * @param maxEntries maximum number of cached clients
+     * @param maxBytes maximum estimated heap used by the cached clients
+     * @param ttlMillis time after which a cached client is reloaded from the database
+     */
+    public ClientCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        // A few segments per core, but never so many that a segment holds almost nothing
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4));
+        while (count > 1 && maxEntries / count < 64) {
+            count >>= 1;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / count), Math.max(1, maxBytes / count));
+        }
+        segmentMask = count - 1;
+    }
+
+    /**
+     * Returns a cached client
+     * @param id ID of the client
+     * @return copy of the cached client, or null if it is not cached or has expired
+     */
+    public Client get(int id) {
+        Segment segment = segmentOf(id);
+        Client client;
+        synchronized (segment) {
+            Entry entry = segment.entries.get(id);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                segment.remove(id);
+                expirations.increment();
+                misses.increment();
+                return null;
+            }
+            client = entry.client;
+        }
+        hits.increment();
+        // Cached clients are never modified, so the copy can be made outside the lock
+        return client.copy();
+    }
+
+    /**
+     * Returns the stamp of an ID, to be taken before reading the client from the database and
+     * passed to putIfUnchanged
+     * @param id ID of the client
+     * @return the stamp
+     */
+    public long readStamp(int id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            return segment.stamps[stampSlot(id)];
+        }
+    }
+
+    /**
+     * Adds or replaces a cached client with information just written, evicting the least recently
+     * used clients if needed. A read of the same ID that started earlier can no longer cache it.
+     * @param client the client (must have its ID set)
+     */
+    public void put(Client client) {
+        Segment segment = segmentOf(client.getId());
+        synchronized (segment) {
+            segment.stamps[stampSlot(client.getId())]++;
+            store(segment, client);
+        }
+    }
+
+    /**
+     * Caches a client read from the database, unless the ID was put or invalidated since the stamp
+     * was taken - the client read may then be older than what was written
+     * @param client the client (must have its ID set)
+     * @param stamp stamp returned by readStamp before the client was read
+     * @return true if the client was cached
+     */
+    public boolean putIfUnchanged(Client client, long stamp) {
+        Segment segment = segmentOf(client.getId());
+        synchronized (segment) {
+            if (segment.stamps[stampSlot(client.getId())] != stamp) {
+                return false;
+            }
+            store(segment, client);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a client from the cache, e.g. after it was deleted. A read of the same ID that
+     * started earlier can no longer cache it.
+     * @param id ID of the client
+     */
+    public void invalidate(int id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.stamps[stampSlot(id)]++;
+            segment.remove(id);
+        }
+    }
+
+    /**
+     * Removes all clients from the cache
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < STAMPS_PER_SEGMENT; i++) {
+                    segment.stamps[i]++;
+                }
+                segment.entries.clear();
+                segment.bytes = 0;
+                segment.size = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached clients
+     * @return entry count
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated heap used by the cached clients
+     * @return size in bytes
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from the cache
+     * @return hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries=%d/%d, bytes=%d/%d, hits=%d, misses=%d, hitRate=%.3f, " +
+                        "evictions=%d, expirations=%d, segments=%d", size(), maxEntries,
+                getEstimatedBytes(), maxBytes, getHitCount(), getMissCount(), getHitRate(),
+                getEvictionCount(), getExpirationCount(), segments.length);
+    }
+
+    /**
+     * Helper method that stores a copy of a client in its segment and evicts the least recently
+     * used clients of the segment over its limits. Must hold the segment lock.
+     */
+    private void store(Segment segment, Client client) {
+        segment.remove(client.getId());
+        Entry entry = new Entry(client.copy(), System.currentTimeMillis() + ttlMillis);
+        segment.entries.put(client.getId(), entry);
+        segment.bytes += entry.size;
+        segment.size++;
+
+        Iterator<Map.Entry<Integer, Entry>> eldest = segment.entries.entrySet().iterator();
+        while ((segment.size > segment.maxEntries || segment.bytes > segment.maxBytes)
+                && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            segment.bytes -= evicted.size;
+            segment.size--;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Helper method that returns the segment of an ID. Consecutive IDs are spread over segments.
+     */
+    private Segment segmentOf(int id) {
+        return segments[mix(id) & segmentMask];
+    }
+
+    /**
+     * Helper method that returns the stamp counter of an ID within its segment
+     */
+    private int stampSlot(int id) {
+        return (mix(id) >>> 16) & (STAMPS_PER_SEGMENT - 1);
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * Part of the cache guarded by its own lock (the segment itself)
+     */
+    private static class Segment {
+        private final int maxEntries;
+        private final long maxBytes;
+        // Cached entries by client ID, least recently used first
+        private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        // Incremented when an ID of the slot is written, see readStamp
+        private final long[] stamps = new long[STAMPS_PER_SEGMENT];
+        // Written under the lock, read by the statistics without it
+        private volatile long bytes;
+        private volatile int size;
+
+        private Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Removes an entry and updates the counts. Must hold the segment lock.
+         * @param id ID of the client
+         */
+        private void remove(int id) {
+            Entry entry = entries.remove(id);
+            if (entry != null) {
+                bytes -= entry.size;
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Cached client with its expiry time and estimated size
+     */
+    private static class Entry {
+        private final Client client;
+        private final long expiresAt;
+        private final int size;
+
+        private Entry(Client client, long expiresAt) {
+            this.client = client;
+            this.expiresAt = expiresAt;
+            this.size = estimateSize(client);
+        }
+
+        /**
+         * Estimates the heap used by a client: object headers and references, plus the six strings
+         * @param client the client
+         * @return estimated size in bytes
+         */
+        private static int estimateSize(Client client) {
+            return 96 + stringSize(client.getFirstName()) + stringSize(client.getLastName())
+                    + stringSize(client.getAddress()) + stringSize(client.getPostalCode())
+                    + stringSize(client.getPhoneNumber()) + stringSize(client.getClientType());
+        }
+
+        private static int stringSize(String s) {
+            return s == null ? 0 : 40 + s.length();
+        }
+    }
+}
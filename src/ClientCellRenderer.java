@@ -0,0 +1,40 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cell renderer for the search result list. The text of each client is built once and cached,
+ * and rows whose client is still loading are drawn with a placeholder.
+ * @author karimbounekhla
+ */
+public class ClientCellRenderer extends DefaultListCellRenderer {
+    private static final long serialVersionUID = 1L;
+    private static final String LOADING_TEXT = "Loading...";
+
+    // Rendered text of recently displayed clients, least recently used first
+    private final Map<Client, String> textCache;
+
+    /**
+     * Constructor
+     * @param cacheSize maximum number of rendered rows kept in the cache
+     */
+    public ClientCellRenderer(int cacheSize) {
+        textCache = new LinkedHashMap<Client, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Client, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        String text = LOADING_TEXT;
+        if (value instanceof Client) {
+            text = textCache.computeIfAbsent((Client) value, Client::toString);
+        }
+        return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+    }
+}
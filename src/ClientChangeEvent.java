@@ -0,0 +1,65 @@
+/**
+ * Rows added, updated or deleted by one write to a client repository, delivered to the
+ * repository's change listeners so views can update the affected rows instead of searching again.
+ * A bulk write produces a single event for all of its rows.
+ * @author karimbounekhla
+ */
+public class ClientChangeEvent {
+    /**
+     * Kind of change
+     */
+    public enum Type {
+        ADDED, UPDATED, DELETED
+    }
+
+    private final Type type;
+    private final int[] ids;
+    private final Client[] clients;
+
+    /**
+     * Constructor
+     * @param type kind of change
+     * @param ids IDs of the changed clients
+     * @param clients new state of every client (in the same order as the IDs), with null where it
+     *                is not known and must be read again; null for deletes
+     */
+    public ClientChangeEvent(Type type, int[] ids, Client[] clients) {
+        this.type = type;
+        this.ids = ids;
+        this.clients = clients;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of changed clients
+     * @return row count
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the IDs of the changed clients
+     * @return the IDs (not to be modified)
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * Returns the new state of a changed client
+     * @param row index of the client in the event
+     * @return the client (not to be modified), or null if deleted or not known
+     */
+    public Client getClient(int row) {
+        return clients == null ? null : clients[row];
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + ids.length + " client(s)";
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the change listeners of a client repository and delivers its change events, like
+ * PropertyChangeSupport does for beans. Events are delivered on the thread that made the change;
+ * nothing is built when no listener is registered, so bulk loads pay nothing.
+ * @author karimbounekhla
+ */
+public class ClientChangeSupport {
+    private final List<ClientRepository.ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(ClientRepository.ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ClientRepository.ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns whether any listener is registered, so callers can skip collecting changed rows
+     * @return true if events are delivered to someone
+     */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Announces added clients
+     * @param clients the clients with their IDs (copied, so callers may keep changing them)
+     * @param count number of clients of the array that were added
+     */
+    public void fireAdded(Client[] clients, int count) {
+        if (listeners.isEmpty() || count == 0) {
+            return;
+        }
+        int[] ids = new int[count];
+        Client[] copies = new Client[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = clients[i].getId();
+            copies[i] = clients[i].copy();
+        }
+        fire(new ClientChangeEvent(ClientChangeEvent.Type.ADDED, ids, copies));
+    }
+
+    /**
+     * Announces updated clients whose new state is known
+     * @param clients the clients as stored, including their new versions (copied)
+     * @param count number of clients of the array that were updated
+     */
+    public void fireUpdated(Client[] clients, int count) {
+        if (listeners.isEmpty() || count == 0) {
+            return;
+        }
+        int[] ids = new int[count];
+        Client[] copies = new Client[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = clients[i].getId();
+            copies[i] = clients[i].copy();
+        }
+        fire(new ClientChangeEvent(ClientChangeEvent.Type.UPDATED, ids, copies));
+    }
+
+    /**
+     * Announces updated clients whose new state is not known (e.g. the new versions were assigned
+     * by the database) - listeners read them again
+     * @param ids IDs of the clients
+     * @param count number of IDs of the array that were updated
+     */
+    public void fireUpdated(int[] ids, int count) {
+        if (listeners.isEmpty() || count == 0) {
+            return;
+        }
+        fire(new ClientChangeEvent(ClientChangeEvent.Type.UPDATED, copyOf(ids, count),
+                                   new Client[count]));
+    }
+
+    /**
+     * Announces deleted clients
+     * @param ids IDs of the clients
+     * @param count number of IDs of the array that were deleted
+     */
+    public void fireDeleted(int[] ids, int count) {
+        if (listeners.isEmpty() || count == 0) {
+            return;
+        }
+        fire(new ClientChangeEvent(ClientChangeEvent.Type.DELETED, copyOf(ids, count), null));
+    }
+
+    /**
+     * Helper method that delivers an event to every listener. A failing listener does not keep
+     * the others from being told, nor fail the write that was already made.
+     */
+    private void fire(ClientChangeEvent event) {
+        for (ClientRepository.ChangeListener listener : listeners) {
+            try {
+                listener.clientsChanged(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int[] copyOf(int[] ids, int count) {
+        int[] copy = new int[count];
+        System.arraycopy(ids, 0, copy, 0, count);
+        return copy;
+    }
+}
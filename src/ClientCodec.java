@@ -0,0 +1,154 @@
+/**
+ * Packs the fixed-format fields of a client into primitives. A postal code (A1A 1A1) and a phone
+ * number (123-456-7890) each fit in a long, and the client type in a char, so large result sets can
+ * be held without a String per field. Values that are not in the expected format cannot be packed
+ * and must be kept as Strings by the caller.
+ * @author karimbounekhla
+ */
+public final class ClientCodec {
+    // Returned by the pack methods for values not in the expected format
+    public static final long NOT_PACKED = -1;
+    public static final char NO_TYPE = '\0';
+
+    // Shared one-character Strings for unpacked client types (Latin-1 range)
+    private static final String[] TYPES = new String[256];
+
+    static {
+        for (char c = 0; c < TYPES.length; c++) {
+            TYPES[c] = String.valueOf(c);
+        }
+    }
+
+    private ClientCodec() {
+    }
+
+    /**
+     * Packs a postal code in the format A1A 1A1 (letters in either case) into 30 bits: 6 bits per
+     * letter and 4 bits per digit
+     * @param postalCode the postal code
+     * @return the packed postal code, or NOT_PACKED if it is not in the expected format
+     */
+    public static long packPostalCode(String postalCode) {
+        if (postalCode == null || postalCode.length() != 7 || postalCode.charAt(3) != ' ') {
+            return NOT_PACKED;
+        }
+        long packed = 0;
+        for (int i = 0; i < 7; i++) {
+            if (i == 3) {
+                continue;
+            }
+            char c = postalCode.charAt(i);
+            // Letters at positions 0, 2 and 5 - digits at 1, 4 and 6
+            boolean letter = i == 0 || i == 2 || i == 5;
+            int value = letter ? letterValue(c) : digitValue(c);
+            if (value < 0) {
+                return NOT_PACKED;
+            }
+            packed = (packed << (letter ? 6 : 4)) | value;
+        }
+        return packed;
+    }
+
+    /**
+     * Restores a postal code packed by packPostalCode()
+     * @param packed the packed postal code
+     * @return the postal code
+     */
+    public static String unpackPostalCode(long packed) {
+        char[] chars = new char[7];
+        chars[3] = ' ';
+        for (int i = 6; i >= 0; i--) {
+            if (i == 3) {
+                continue;
+            }
+            if (i == 0 || i == 2 || i == 5) {
+                int value = (int) (packed & 0x3F);
+                chars[i] = (char) (value < 26 ? 'A' + value : 'a' + value - 26);
+                packed >>>= 6;
+            } else {
+                chars[i] = (char) ('0' + (packed & 0xF));
+                packed >>>= 4;
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Packs a phone number in the format 123-456-7890 as the 10-digit number it contains
+     * @param phoneNumber the phone number
+     * @return the packed phone number, or NOT_PACKED if it is not in the expected format
+     */
+    public static long packPhoneNumber(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() != 12
+                || phoneNumber.charAt(3) != '-' || phoneNumber.charAt(7) != '-') {
+            return NOT_PACKED;
+        }
+        long packed = 0;
+        for (int i = 0; i < 12; i++) {
+            if (i == 3 || i == 7) {
+                continue;
+            }
+            int digit = digitValue(phoneNumber.charAt(i));
+            if (digit < 0) {
+                return NOT_PACKED;
+            }
+            packed = packed * 10 + digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Restores a phone number packed by packPhoneNumber()
+     * @param packed the packed phone number
+     * @return the phone number
+     */
+    public static String unpackPhoneNumber(long packed) {
+        char[] chars = new char[12];
+        for (int i = 11; i >= 0; i--) {
+            if (i == 3 || i == 7) {
+                chars[i] = '-';
+            } else {
+                chars[i] = (char) ('0' + packed % 10);
+                packed /= 10;
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Packs a one-character client type
+     * @param clientType the client type
+     * @return the type character, or NO_TYPE if it is not a single Latin-1 character
+     */
+    public static char packClientType(String clientType) {
+        if (clientType == null || clientType.length() != 1 || clientType.charAt(0) == NO_TYPE
+                || clientType.charAt(0) >= TYPES.length) {
+            return NO_TYPE;
+        }
+        return clientType.charAt(0);
+    }
+
+    /**
+     * Restores a client type packed by packClientType(). The same String instance is returned for
+     * every client of a type.
+     * @param packed the type character
+     * @return the client type
+     */
+    public static String unpackClientType(char packed) {
+        return TYPES[packed];
+    }
+
+    private static int letterValue(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return 26 + c - 'a';
+        }
+        return -1;
+    }
+
+    private static int digitValue(char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -1;
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports every client of a repository to files, streaming the rows from the repository's scan
+ * (a forward-only database cursor for the JDBC backends) straight into a buffered output stream, so
+ * memory use does not depend on the size of the table. Two formats are supported:
+ *   TEXT   - the 'first;last;address;postal code;phone;type' lines of clients.txt, which
+ *            ClientImporter reads back (IDs are not kept)
+ *   BINARY - length-prefixed records that keep the ID and any character, read back by readBinary()
+ * Output can be gzip compressed, and the ID range can be split into partitions exported in parallel
+ * to separate files. Each file is written under a temporary name and only moved into place once it
+ * is complete.
+ * @author karimbounekhla
+ */
+public class ClientExporter {
+    /**
+     * Output formats
+     */
+    public enum Format {
+        TEXT, BINARY
+    }
+
+    /**
+     * Outcome of an export
+     */
+    public static class Result {
+        private final long exported, skipped, bytes, elapsedMillis;
+        private final List<Path> files;
+
+        private Result(long exported, long skipped, long bytes, long elapsedMillis, List<Path> files) {
+            this.exported = exported;
+            this.skipped = skipped;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+            this.files = files;
+        }
+
+        public long getExported() {
+            return exported;
+        }
+
+        /**
+         * Returns the number of clients left out because the format cannot hold them (TEXT only:
+         * fields containing ';' or line breaks)
+         * @return skipped client count
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the total size of the files written
+         * @return size in bytes, after compression
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Returns the files written, one per partition
+         * @return file paths in ID order
+         */
+        public List<Path> getFiles() {
+            return files;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("exported=%d, skipped=%d, files=%d, bytes=%d, elapsed=%d ms",
+                                 exported, skipped, files.size(), bytes, elapsedMillis);
+        }
+    }
+
+    // Binary format: header (magic, version), records, then END_OF_RECORDS and the record count
+    public static final int BINARY_MAGIC = 0x434D5358;  // "CMSX"
+    public static final short BINARY_VERSION = 1;
+    private static final int END_OF_RECORDS = -1;
+    private static final int FIELDS = 6;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Export settings
+    public Format format = Format.TEXT;
+    public boolean gzip;
+    // Number of ID ranges exported in parallel, each to its own file
+    public int partitions = 1;
+    public int bufferBytes = 256 * 1024;
+
+    private final ClientRepository repository;
+
+    /**
+     * Constructor
+     * @param repository repository the clients are read from
+     */
+    public ClientExporter(ClientRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Entry point that exports the repository configured in cms.properties
+     * @param args see usage()
+     */
+    public static void main(String[] args) throws Exception {
+        String config = RepositoryConfig.DEFAULT_FILE, output = null;
+        Format format = Format.TEXT;
+        boolean gzip = false;
+        int partitions = 1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--config": config = args[++i]; break;
+                    case "--format": format = Format.valueOf(args[++i].toUpperCase()); break;
+                    case "--gzip": gzip = true; break;
+                    case "--partitions": partitions = Integer.parseInt(args[++i]); break;
+                    case "--output": output = args[++i]; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            output = null;
+        }
+        if (output == null || partitions < 1) {
+            usage();
+            System.exit(1);
+        }
+
+        ClientRepository repository = RepositoryConfig.load(config).createRepository();
+        try {
+            ClientExporter exporter = new ClientExporter(repository);
+            exporter.format = format;
+            exporter.gzip = gzip;
+            exporter.partitions = partitions;
+            Result result = exporter.export(Paths.get(output));
+            System.out.println("Exported to " + result.getFiles() + ": " + result);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ClientExporter --output file [--format text|binary] [--gzip]\n" +
+                "    [--partitions n] [--config cms.properties]");
+    }
+
+    /**
+     * Exports every client. With more than one partition, the ID range is split in equal parts
+     * written to 'name.partN.ext' next to the target.
+     * @param target file to write (with one partition), or name the partition files are based on
+     * @return counts of exported and skipped clients, and the files written
+     * @throws IOException if the repository could not be read or a file could not be written
+     */
+    public Result export(Path target) throws IOException {
+        long start = System.currentTimeMillis();
+        int maxId = repository.getMaxId();
+        // Equal ID ranges; the last one is open-ended to take clients added during the export
+        long width = Math.max(1, ((long) maxId + partitions - 1) / partitions);
+        List<Path> files = new ArrayList<>();
+        AtomicLong exported = new AtomicLong(), skipped = new AtomicLong();
+        List<PartitionTask> tasks = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            int fromId = (int) Math.min(Integer.MAX_VALUE, 1 + i * width);
+            int toId = i == partitions - 1 ? Integer.MAX_VALUE
+                    : (int) Math.min(Integer.MAX_VALUE, 1 + (i + 1) * width);
+            Path file = partitions == 1 ? target : partitionPath(target, i);
+            files.add(file);
+            tasks.add(() -> exportRange(fromId, toId, file, exported, skipped));
+        }
+
+        if (tasks.size() == 1) {
+            tasks.get(0).call();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), r -> {
+                Thread t = new Thread(r, "client-exporter");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (PartitionTask task : tasks) {
+                    futures.add(executor.submit(() -> {
+                        task.call();
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Export failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export interrupted", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += Files.size(file);
+        }
+        return new Result(exported.get(), skipped.get(), bytes, System.currentTimeMillis() - start,
+                          files);
+    }
+
+    /**
+     * Reads back a file written in the BINARY format (compressed or not)
+     * @param file the file
+     * @param visitor receives the clients, with their IDs, in the order they were written
+     * @return number of clients read
+     * @throws IOException if the file could not be read, is not in the BINARY format or is truncated
+     */
+    public static long readBinary(Path file, ClientRepository.ClientVisitor visitor)
+            throws IOException {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file));
+             DataInputStream in = new DataInputStream(isGzip(raw) ? new BufferedInputStream(
+                     new GZIPInputStream(raw)) : raw)) {
+            if (in.readInt() != BINARY_MAGIC || in.readShort() != BINARY_VERSION) {
+                throw new IOException(file + " is not a binary client export");
+            }
+            byte[] buffer = new byte[256];
+            String[] fields = new String[FIELDS];
+            long count = 0;
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length == END_OF_RECORDS) {
+                        long expected = in.readLong();
+                        if (expected != count) {
+                            throw new IOException(file + " holds " + count + " clients, expected " +
+                                                  expected);
+                        }
+                        return count;
+                    }
+                    int id = in.readInt();
+                    for (int i = 0; i < FIELDS; i++) {
+                        int fieldLength = in.readUnsignedShort();
+                        if (fieldLength > buffer.length) {
+                            buffer = new byte[fieldLength];
+                        }
+                        in.readFully(buffer, 0, fieldLength);
+                        fields[i] = new String(buffer, 0, fieldLength, StandardCharsets.UTF_8);
+                    }
+                    Client client = new Client(fields[0], fields[1], fields[2], fields[3], fields[4],
+                                               fields[5]);
+                    client.setId(id);
+                    count++;
+                    if (!visitor.visit(client)) {
+                        return count;
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException(file + " is truncated after " + count + " clients", e);
+            }
+        }
+    }
+
+    /**
+     * Helper method that exports one ID range to one file, through a temporary file
+     */
+    private void exportRange(int fromId, int toId, Path file, AtomicLong exported,
+                             AtomicLong skipped) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try {
+            try (OutputStream raw = Files.newOutputStream(temp);
+                 OutputStream out = new BufferedOutputStream(
+                         gzip ? new GZIPOutputStream(raw, bufferBytes) : raw, bufferBytes)) {
+                RecordWriter writer = format == Format.TEXT ? new TextWriter(out)
+                        : new BinaryWriter(new DataOutputStream(out));
+                repository.scanClients(fromId, toId, writer::write);
+                writer.finish();
+                exported.addAndGet(writer.written);
+                skipped.addAndGet(writer.skipped);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Helper method that names the file of a partition: 'clients.txt.gz' becomes
+     * 'clients.part0.txt.gz'
+     */
+    private static Path partitionPath(Path target, int partition) {
+        String name = target.getFileName().toString();
+        int dot = name.indexOf('.', 1);
+        String partitionName = dot < 0 ? name + ".part" + partition
+                : name.substring(0, dot) + ".part" + partition + name.substring(dot);
+        return target.resolveSibling(partitionName);
+    }
+
+    /**
+     * Helper method that checks for the gzip header without consuming it
+     */
+    private static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC;
+    }
+
+    /**
+     * One partition of an export, run on a thread of its own
+     */
+    private interface PartitionTask {
+        void call() throws IOException;
+    }
+
+    /**
+     * Writes the clients of one file in one of the formats
+     */
+    private abstract static class RecordWriter {
+        protected long written, skipped;
+
+        private boolean write(Client client) throws IOException {
+            if (writeClient(client)) {
+                written++;
+            } else {
+                skipped++;
+            }
+            return true;
+        }
+
+        /**
+         * Writes a client
+         * @return false if the client cannot be written in this format
+         */
+        protected abstract boolean writeClient(Client client) throws IOException;
+
+        protected void finish() throws IOException {
+        }
+
+        protected static String[] fieldsOf(Client client) {
+            return new String[] {client.getFirstName(), client.getLastName(), client.getAddress(),
+                                 client.getPostalCode(), client.getPhoneNumber(),
+                                 client.getClientType()};
+        }
+
+        protected static byte[] utf8(String value) {
+            return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Semicolon-separated lines, as in clients.txt
+     */
+    private static class TextWriter extends RecordWriter {
+        private static final byte SEPARATOR = ';', NEW_LINE = '\n';
+        private final OutputStream out;
+
+        private TextWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        protected boolean writeClient(Client client) throws IOException {
+            String[] fields = fieldsOf(client);
+            for (String field : fields) {
+                if (field != null && (field.indexOf(SEPARATOR) >= 0 || field.indexOf(NEW_LINE) >= 0
+                        || field.indexOf('\r') >= 0)) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < FIELDS; i++) {
+                if (i > 0) {
+                    out.write(SEPARATOR);
+                }
+                out.write(utf8(fields[i]));
+            }
+            out.write(NEW_LINE);
+            return true;
+        }
+    }
+
+    /**
+     * Records of [int length][int id] followed by 6 x [unsigned short length][UTF-8 bytes]
+     */
+    private static class BinaryWriter extends RecordWriter {
+        private final DataOutputStream out;
+        private final byte[][] encoded = new byte[FIELDS][];
+
+        private BinaryWriter(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeInt(BINARY_MAGIC);
+            out.writeShort(BINARY_VERSION);
+        }
+
+        @Override
+        protected boolean writeClient(Client client) throws IOException {
+            String[] fields = fieldsOf(client);
+            int length = 4;
+            for (int i = 0; i < FIELDS; i++) {
+                encoded[i] = utf8(fields[i]);
+                if (encoded[i].length > 0xFFFF) {
+                    return false;
+                }
+                length += 2 + encoded[i].length;
+            }
+            out.writeInt(length);
+            out.writeInt(client.getId());
+            for (byte[] field : encoded) {
+                out.writeShort(field.length);
+                out.write(field);
+            }
+            return true;
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            out.writeInt(END_OF_RECORDS);
+            out.writeLong(written);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,632 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Imports a client data file (one 'first;last;address;postal code;phone;type' line per client)
+ * into a repository with a staged pipeline:
+ *   reader  - reads the file in large chunks cut at line ends
+ *   parsers - split and validate the lines of a chunk in parallel
+ *   writers - add the valid clients of a chunk with one bulk write (one transaction)
+ * Stages are connected by bounded queues, so a slow database holds back reading instead of filling
+ * the heap. Invalid lines and rows the repository rejected are written to a reject file. After every
+ * chunk, the end offset of the completed part of the file is saved to a checkpoint file, so an
+ * interrupted import resumes where it stopped.
+ * @author karimbounekhla
+ */
+public class ClientImporter {
+    /**
+     * Receives the progress of an import
+     */
+    public interface ProgressListener {
+        /**
+         * Called after a chunk has been written, from a writer thread
+         * @param bytesDone bytes of the file completed, including lines skipped on resume
+         * @param totalBytes size of the file
+         * @param imported clients added so far
+         * @param rejected lines rejected so far
+         */
+        void progress(long bytesDone, long totalBytes, long imported, long rejected);
+    }
+
+    /**
+     * Outcome of an import
+     */
+    public static class Result {
+        private final long imported, rejected, resumedFrom, elapsedMillis;
+
+        private Result(long imported, long rejected, long resumedFrom, long elapsedMillis) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.resumedFrom = resumedFrom;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Returns the file offset the import started at
+         * @return 0 for a new import, the checkpoint offset for a resumed one
+         */
+        public long getResumedFrom() {
+            return resumedFrom;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("imported=%d, rejected=%d, resumedFrom=%d, elapsed=%d ms",
+                                 imported, rejected, resumedFrom, elapsedMillis);
+        }
+    }
+
+    private static final int FIELDS = 6;
+    // Files kept next to the data file by fill()
+    public static final String REJECT_SUFFIX = ".rejects", CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // Pipeline settings
+    public int chunkBytes = 4 * 1024 * 1024;
+    public int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    public int writerThreads = 2;
+    // Chunks waiting in each queue between stages
+    public int queueCapacity = 4;
+
+    private final ClientRepository repository;
+    private ProgressListener progressListener;
+    // Latency of the bulk write of every chunk, rows added and rows refused by the repository
+    private OperationMetrics metrics = ClientMetrics.getDefault().operation("import");
+
+    /**
+     * Constructor
+     * @param repository repository the clients are added to
+     */
+    public ClientImporter(ClientRepository repository) {
+        this.repository = repository;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void setMetrics(OperationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fills a repository from a data file, printing the progress. Rejected lines are written next to
+     * the data file, and an interrupted fill resumes from its checkpoint (see isInterrupted()).
+     * @param repository the repository
+     * @param dataFile file containing client information
+     */
+    public static void fill(ClientRepository repository, String dataFile) {
+        Path path = Paths.get(dataFile);
+        if (!Files.exists(path)) {
+            System.err.println("File " + dataFile + " Not Found!");
+            return;
+        }
+        ClientImporter importer = new ClientImporter(repository);
+        AtomicInteger reportedPercent = new AtomicInteger();
+        importer.setProgressListener((bytesDone, totalBytes, imported, rejected) -> {
+            int percent = (int) (100 * bytesDone / Math.max(1, totalBytes));
+            int reported = reportedPercent.get();
+            if (percent >= reported + 10 && reportedPercent.compareAndSet(reported, percent)) {
+                System.out.println("Importing " + dataFile + ": " + percent + "% (" + imported +
+                                   " clients, " + rejected + " rejected)");
+            }
+        });
+        try {
+            Result result = importer.importFile(dataFile, dataFile + REJECT_SUFFIX,
+                                                dataFile + CHECKPOINT_SUFFIX);
+            System.out.println("Imported " + dataFile + ": " + result);
+            if (result.getRejected() == 0 && result.getResumedFrom() == 0) {
+                Files.deleteIfExists(Paths.get(dataFile + REJECT_SUFFIX));
+            } else if (result.getRejected() > 0) {
+                System.err.println(result.getRejected() + " line(s) rejected - see " +
+                                   dataFile + REJECT_SUFFIX);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns whether a fill of a repository from a data file was interrupted and can be resumed
+     * @param dataFile file containing client information
+     * @return true if the fill left a checkpoint behind
+     */
+    public static boolean isInterrupted(String dataFile) {
+        return Files.exists(Paths.get(dataFile + CHECKPOINT_SUFFIX));
+    }
+
+    /**
+     * Imports a data file. If the checkpoint file exists, the import resumes from it; it is deleted
+     * once the whole file has been imported.
+     * @param dataFile file containing client information
+     * @param rejectFile file receiving rejected lines as 'offset TAB reason TAB line', or null
+     * @param checkpointFile file holding the progress of the import, or null to always start over
+     * @return counts of imported and rejected lines
+     * @throws IOException if a file could not be read or written, or a pipeline stage failed
+     */
+    public Result importFile(String dataFile, String rejectFile, String checkpointFile)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Path checkpointPath = checkpointFile == null ? null : Paths.get(checkpointFile);
+        Checkpoint checkpoint = Checkpoint.read(checkpointPath);
+        long resumedFrom = checkpoint.offset;
+
+        try (FileChannel in = FileChannel.open(Paths.get(dataFile), StandardOpenOption.READ);
+             Writer rejects = rejectFile == null ? null : new BufferedWriter(new OutputStreamWriter(
+                     Files.newOutputStream(Paths.get(rejectFile), StandardOpenOption.CREATE,
+                             checkpoint.isResumed() ? StandardOpenOption.APPEND
+                                     : StandardOpenOption.TRUNCATE_EXISTING),
+                     StandardCharsets.UTF_8))) {
+            Pipeline pipeline = new Pipeline(in.size(), checkpoint, checkpointPath, rejects);
+            pipeline.run(in);
+            if (checkpointPath != null) {
+                Files.deleteIfExists(checkpointPath);
+            }
+            return new Result(pipeline.imported.get(), pipeline.rejected.get(), resumedFrom,
+                              System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * One run of the import: the queues, threads and counters shared by the stages
+     */
+    private class Pipeline {
+        private final long totalBytes;
+        private final Checkpoint checkpoint;
+        private final Path checkpointPath;
+        private final Writer rejects;
+        private final BlockingQueue<Chunk> parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<Chunk> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicLong imported = new AtomicLong(), rejected = new AtomicLong();
+        private final AtomicInteger parsersLeft = new AtomicInteger(parserThreads);
+        // First failure of any stage - the other stages stop taking new work
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // Chunks written out of order, by sequence number, until the chunks before them are written
+        private final TreeMap<Integer, long[]> completed = new TreeMap<>();
+        private int nextToComplete;
+
+        private Pipeline(long totalBytes, Checkpoint checkpoint, Path checkpointPath, Writer rejects) {
+            this.totalBytes = totalBytes;
+            this.checkpoint = checkpoint;
+            this.checkpointPath = checkpointPath;
+            this.rejects = rejects;
+        }
+
+        /**
+         * Runs the reader on the calling thread and the other stages on worker threads
+         */
+        private void run(FileChannel in) throws IOException {
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(parserThreads + writerThreads, r -> {
+                Thread t = new Thread(r, "client-import-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < parserThreads; i++) {
+                workers.execute(this::parse);
+            }
+            for (int i = 0; i < writerThreads; i++) {
+                workers.execute(this::write);
+            }
+            try {
+                read(in);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                // One end marker per parser - the last parser to stop passes them on to the writers
+                for (int i = 0; i < parserThreads; i++) {
+                    putUninterruptibly(parseQueue, Chunk.END);
+                }
+                workers.shutdown();
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, e);
+                }
+            }
+            Throwable error = failure.get();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw new IOException("Import of clients failed", error);
+            }
+        }
+
+        /**
+         * Reader stage: cuts the file into chunks that end on a line end
+         */
+        private void read(FileChannel in) throws IOException {
+            long position = checkpoint.offset;
+            byte[] carry = new byte[0];
+            int sequence = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(chunkBytes);
+            while (position < totalBytes && failure.get() == null) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+                boolean last = position >= totalBytes;
+
+                // Chunk = carried partial line + data up to the last line end
+                int cut = read;
+                if (!last) {
+                    while (cut > 0 && buffer.get(cut - 1) != '\n') {
+                        cut--;
+                    }
+                }
+                if (cut == 0) {
+                    // A single line longer than a chunk - keep reading until it ends
+                    carry = Arrays.copyOf(carry, carry.length + read);
+                    System.arraycopy(buffer.array(), 0, carry, carry.length - read, read);
+                    continue;
+                }
+                byte[] data = Arrays.copyOf(carry, carry.length + cut);
+                System.arraycopy(buffer.array(), 0, data, carry.length, cut);
+                long chunkStart = position - read - carry.length;
+                carry = Arrays.copyOfRange(buffer.array(), cut, read);
+                putUninterruptibly(parseQueue, new Chunk(sequence++, chunkStart, data));
+            }
+            if (carry.length > 0 && failure.get() == null) {
+                putUninterruptibly(parseQueue, new Chunk(sequence, position - carry.length, carry));
+            }
+        }
+
+        /**
+         * Parser stage: splits the lines of chunks into clients and validates them
+         */
+        private void parse() {
+            try {
+                while (true) {
+                    Chunk chunk = parseQueue.take();
+                    if (chunk == Chunk.END) {
+                        break;
+                    }
+                    // After a failure, keep taking chunks so the reader never blocks on a full queue
+                    if (failure.get() == null) {
+                        try {
+                            chunk.parse(checkpoint);
+                            putUninterruptibly(writeQueue, chunk);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                if (parsersLeft.decrementAndGet() == 0) {
+                    for (int i = 0; i < writerThreads; i++) {
+                        putUninterruptibly(writeQueue, Chunk.END);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writer stage: adds the clients of a chunk in one bulk write and records rejected lines
+         */
+        private void write() {
+            try {
+                while (true) {
+                    Chunk chunk = writeQueue.take();
+                    if (chunk == Chunk.END) {
+                        break;
+                    }
+                    if (failure.get() != null) {
+                        continue;
+                    }
+                    long start = metrics.start();
+                    boolean[] added;
+                    try {
+                        added = repository.addClients(chunk.clients);
+                    } catch (RuntimeException e) {
+                        metrics.fail(start);
+                        throw e;
+                    }
+                    int addedCount = count(added, true);
+                    metrics.finish(start, addedCount, added.length - addedCount);
+                    // Nothing at all was added - the repository is failing, not the data
+                    if (added.length > 0 && addedCount == 0) {
+                        throw new IOException("Repository rejected every client of the chunk at offset "
+                                              + chunk.start);
+                    }
+                    for (int i = 0; i < added.length; i++) {
+                        if (added[i]) {
+                            imported.incrementAndGet();
+                        } else {
+                            chunk.reject(chunk.clientOffsets[i], "rejected by the repository",
+                                         chunk.lineOf(chunk.clientOffsets[i]));
+                        }
+                    }
+                    writeRejects(chunk);
+                    complete(chunk);
+                }
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                failure.compareAndSet(null, e);
+                // Keep draining so the parsers never block on a full queue
+                drain(writeQueue);
+            }
+        }
+
+        /**
+         * Helper method that appends the rejected lines of a chunk to the reject file
+         */
+        private void writeRejects(Chunk chunk) throws IOException {
+            rejected.addAndGet(chunk.rejectLines.size());
+            if (rejects == null || chunk.rejectLines.isEmpty()) {
+                return;
+            }
+            synchronized (rejects) {
+                for (String line : chunk.rejectLines) {
+                    rejects.write(line);
+                    rejects.write('\n');
+                }
+                rejects.flush();
+            }
+        }
+
+        /**
+         * Helper method that records a written chunk, moves the checkpoint past every chunk that is
+         * now complete with all the chunks before it, and reports progress
+         */
+        private void complete(Chunk chunk) throws IOException {
+            long done;
+            synchronized (completed) {
+                completed.put(chunk.sequence, new long[] {chunk.start, chunk.end});
+                long contiguousEnd = -1;
+                while (!completed.isEmpty() && completed.firstKey() == nextToComplete) {
+                    contiguousEnd = completed.pollFirstEntry().getValue()[1];
+                    nextToComplete++;
+                }
+                // Chunks written ahead of the contiguous part are kept so a resume can skip them
+                List<long[]> ahead = new ArrayList<>(completed.values());
+                if (contiguousEnd >= 0) {
+                    checkpoint.offset = contiguousEnd;
+                }
+                checkpoint.write(checkpointPath, ahead);
+                done = checkpoint.offset;
+                for (long[] range : ahead) {
+                    done += range[1] - range[0];
+                }
+            }
+            if (progressListener != null) {
+                progressListener.progress(done, totalBytes, imported.get(), rejected.get());
+            }
+        }
+    }
+
+    /**
+     * A part of the data file made of whole lines, and the result of parsing it
+     */
+    private static class Chunk {
+        // Marks the end of the input of a stage
+        private static final Chunk END = new Chunk(-1, 0, new byte[0]);
+
+        private final int sequence;
+        private final long start, end;
+        private final byte[] data;
+        private final List<Client> clients = new ArrayList<>();
+        // Offset in 'data' of the line of every client
+        private int[] clientOffsets = new int[0];
+        private final List<String> rejectLines = new ArrayList<>();
+
+        private Chunk(int sequence, long start, byte[] data) {
+            this.sequence = sequence;
+            this.start = start;
+            this.end = start + data.length;
+            this.data = data;
+        }
+
+        /**
+         * Splits the chunk into lines and the lines into clients, without regular expressions.
+         * Lines inside ranges that were already imported by an interrupted run are skipped.
+         */
+        private void parse(Checkpoint checkpoint) {
+            int[] offsets = new int[64];
+            String[] fields = new String[FIELDS];
+            int lineStart = 0;
+            while (lineStart < data.length) {
+                int lineEnd = lineStart;
+                while (lineEnd < data.length && data[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int contentEnd = lineEnd > lineStart && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                if (contentEnd > lineStart && !checkpoint.isDone(start + lineStart)) {
+                    int fieldCount = 0;
+                    int fieldStart = lineStart;
+                    for (int i = lineStart; i <= contentEnd && fieldCount <= FIELDS; i++) {
+                        if (i == contentEnd || data[i] == ';') {
+                            if (fieldCount < FIELDS) {
+                                fields[fieldCount] = new String(data, fieldStart, i - fieldStart,
+                                                                StandardCharsets.UTF_8);
+                            }
+                            fieldCount++;
+                            fieldStart = i + 1;
+                        }
+                    }
+                    if (fieldCount != FIELDS) {
+                        reject(lineStart, "expected " + FIELDS + " fields, found " + fieldCount,
+                               lineOf(lineStart));
+                    } else {
+                        int errors = ClientValidator.validate(fields[0], fields[1], fields[2],
+                                                              fields[3], fields[4], fields[5]);
+                        if (errors != ClientValidator.VALID) {
+                            reject(lineStart, "invalid " + ClientValidator.errorsOf(errors), lineOf(lineStart));
+                        } else {
+                            if (clients.size() == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                            }
+                            offsets[clients.size()] = lineStart;
+                            clients.add(new Client(fields[0], fields[1], fields[2], fields[3],
+                                                   fields[4], fields[5]));
+                        }
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+            clientOffsets = Arrays.copyOf(offsets, clients.size());
+        }
+
+        /**
+         * Records a rejected line as 'file offset TAB reason TAB line'
+         */
+        private void reject(int lineStart, String reason, String line) {
+            rejectLines.add((start + lineStart) + "\t" + reason + "\t" + line);
+        }
+
+        /**
+         * Returns the text of the line starting at an offset of the chunk, without its line end
+         */
+        private String lineOf(int lineStart) {
+            int lineEnd = lineStart;
+            while (lineEnd < data.length && data[lineEnd] != '\n' && data[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            return new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Progress of an import: the file offset up to which every line has been imported, and ranges
+     * after it that were imported ahead of time by parallel writers. Saved as one line with the
+     * offset, then one 'start-end' line per range.
+     */
+    private static class Checkpoint {
+        private volatile long offset;
+        private final List<long[]> done = new ArrayList<>();
+
+        private static Checkpoint read(Path path) throws IOException {
+            Checkpoint checkpoint = new Checkpoint();
+            if (path == null || !Files.exists(path)) {
+                return checkpoint;
+            }
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            try {
+                checkpoint.offset = lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
+                for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                    String[] range = line.trim().split("-");
+                    checkpoint.done.add(new long[] {Long.parseLong(range[0]), Long.parseLong(range[1])});
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed import checkpoint " + path, e);
+            }
+            return checkpoint;
+        }
+
+        private boolean isResumed() {
+            return offset > 0 || !done.isEmpty();
+        }
+
+        /**
+         * Returns whether the line starting at a file offset was imported by an interrupted run
+         */
+        private boolean isDone(long lineStart) {
+            for (long[] range : done) {
+                if (lineStart >= range[0] && lineStart < range[1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Saves the checkpoint, replacing the file atomically so a crash never leaves half of it
+         */
+        private void write(Path path, List<long[]> ahead) throws IOException {
+            if (path == null) {
+                return;
+            }
+            StringBuilder text = new StringBuilder().append(offset).append('\n');
+            // Ranges skipped on resume that are still ahead of the contiguous part
+            for (long[] range : done) {
+                if (range[1] > offset) {
+                    text.append(range[0]).append('-').append(range[1]).append('\n');
+                }
+            }
+            for (long[] range : ahead) {
+                text.append(range[0]).append('-').append(range[1]).append('\n');
+            }
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Helper method that puts an item in a queue, waiting as long as needed even if interrupted
+     */
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int count(boolean[] values, boolean value) {
+        int count = 0;
+        for (boolean v : values) {
+            if (v == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper method that discards the items of a queue until its end marker
+     */
+    private static void drain(BlockingQueue<Chunk> queue) {
+        try {
+            while (queue.take() != Chunk.END) {
+                // Discard
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
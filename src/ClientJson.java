@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JSON form of clients for the HTTP API, written and read by hand so no library is needed.
+ * A client is a flat object:
+ *   {"id":1,"version":0,"firstName":"Fred","lastName":"Flintstone","address":"34 Flintrock Way",
+ *    "postalCode":"T3R 5B6","phoneNumber":"403-295-9076","clientType":"C"}
+ * Clients are written straight to an Appendable (e.g. the response stream), so lists can be
+ * streamed without building the whole document in memory.
+ * @author karimbounekhla
+ */
+public final class ClientJson {
+    public static final String[] FIELDS = {"firstName", "lastName", "address", "postalCode",
+                                           "phoneNumber", "clientType"};
+
+    private ClientJson() {
+    }
+
+    /**
+     * Writes a client as a JSON object
+     * @param client the client
+     * @param out destination of the JSON
+     * @throws IOException if the destination could not be written
+     */
+    public static void write(Client client, Appendable out) throws IOException {
+        out.append("{\"id\":").append(String.valueOf(client.getId()));
+        out.append(",\"version\":").append(String.valueOf(client.getVersion()));
+        String[] values = {client.getFirstName(), client.getLastName(), client.getAddress(),
+                           client.getPostalCode(), client.getPhoneNumber(), client.getClientType()};
+        for (int i = 0; i < FIELDS.length; i++) {
+            out.append(",\"").append(FIELDS[i]).append("\":");
+            writeString(values[i], out);
+        }
+        out.append('}');
+    }
+
+    /**
+     * Writes a string as a JSON string literal, or null
+     * @param value the string
+     * @param out destination of the JSON
+     * @throws IOException if the destination could not be written
+     */
+    public static void writeString(String value, Appendable out) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Reads a client from a JSON object. Unknown members are ignored, and missing fields are left
+     * null so validation reports them.
+     * @param json the JSON text
+     * @return the client (its ID is 0 - IDs are taken from the URL)
+     * @throws IllegalArgumentException if the text is not a flat JSON object
+     */
+    public static Client read(String json) {
+        return read(parseObject(json));
+    }
+
+    /**
+     * Reads a client from the members of a parsed JSON object (see parseObject())
+     * @param members the members
+     * @return the client (its ID and version are 0 - they are taken from the request)
+     */
+    public static Client read(Map<String, String> members) {
+        return new Client(members.get("firstName"), members.get("lastName"), members.get("address"),
+                          members.get("postalCode"), members.get("phoneNumber"),
+                          members.get("clientType"));
+    }
+
+    /**
+     * Parses a flat JSON object whose members are strings, numbers, booleans or null
+     * @param json the JSON text
+     * @return the members as text (null for JSON null), in document order
+     * @throws IllegalArgumentException if the text is not such an object
+     */
+    public static Map<String, String> parseObject(String json) {
+        Parser parser = new Parser(json);
+        Map<String, String> members = new LinkedHashMap<>();
+        parser.expect('{');
+        if (!parser.consume('}')) {
+            do {
+                String name = parser.string();
+                parser.expect(':');
+                members.put(name, parser.value());
+            } while (parser.consume(','));
+            parser.expect('}');
+        }
+        parser.end();
+        return members;
+    }
+
+    /**
+     * Recursive descent over the few JSON constructs the API accepts
+     */
+    private static class Parser {
+        private final String text;
+        private int position;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private String value() {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("value expected");
+            }
+            char c = text.charAt(position);
+            if (c == '"') {
+                return string();
+            }
+            int start = position;
+            while (position < text.length() && "{}[],: \t\r\n\"".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("null")) {
+                return null;
+            }
+            if (literal.equals("true") || literal.equals("false") || isNumber(literal)) {
+                return literal;
+            }
+            throw error("string, number, boolean or null expected");
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (position >= text.length()) {
+                    throw error("unterminated string");
+                }
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    throw error("unterminated escape");
+                }
+                char escape = text.charAt(position++);
+                switch (escape) {
+                    case '"': case '\\': case '/': value.append(escape); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw error("bad unicode escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad unicode escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        throw error("bad escape");
+                }
+            }
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void end() {
+            skipWhitespace();
+            if (position != text.length()) {
+                throw error("end of input expected");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isNumber(String literal) {
+            try {
+                Double.parseDouble(literal);
+                return !literal.isEmpty() && (Character.isDigit(literal.charAt(0)) || literal.charAt(0) == '-');
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid JSON at offset " + position + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,1305 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Client repository stored in an append-only log file, for installs that should not need a
+ * database server. Every change is appended to the log as a record:
+ *   int length | int CRC32 of the body | body (byte type, int id, int version, six length-prefixed
+ *   UTF-8 fields)
+ * (logs written before clients had versions hold records without the version, read as version 0).
+ * A write of several records is framed as a batch: a BATCH record holding the record count, byte
+ * length and CRC32 of the records that follow it, so a batch is replayed whole or not at all.
+ * An in-memory hash map gives the file offset of the latest record of every client, so a lookup
+ * is one positional read. On start the log is replayed to rebuild the map; a torn or corrupt record
+ * or batch (e.g. after a crash in the middle of a write) ends the replay and the log is truncated
+ * there.
+ * Overwritten and deleted records are garbage until a background compaction copies the live
+ * records to a new log file and swaps it in.
+ * @author karimbounekhla
+ */
+public class ClientLogStore implements ClientRepository {
+    /**
+     * When appended records are forced to disk
+     */
+    public enum SyncPolicy {
+        // Before every write returns - nothing acknowledged is lost on power failure
+        ALWAYS,
+        // By a background thread every SYNC_INTERVAL_MILLIS - a power failure loses at most that much
+        BATCHED,
+        // Left to the operating system (and close()) - fastest, a power failure can lose more
+        NONE
+    }
+
+    public static final String LOG_FILE = "clients.log";
+    private static final long SYNC_INTERVAL_MILLIS = 50;
+    private static final long COMPACTION_CHECK_MILLIS = 10_000;
+    // Compaction runs once garbage is at least this large and larger than the live data
+    private static final long COMPACTION_MIN_GARBAGE_BYTES = 4 * 1024 * 1024;
+
+    // Record types - PUT records have no version, and are only read from older logs
+    private static final byte PUT = 1, DELETE = 2, NEXT_ID = 3, PUT_VERSIONED = 4, BATCH = 5;
+    private static final int HEADER_SIZE = 8;
+    // BATCH record: header, type, record count, byte length and CRC32 of the records
+    private static final int BATCH_HEADER_SIZE = HEADER_SIZE + 13;
+    // Record sizes are kept in 16 bits of the index entries
+    private static final int MAX_RECORD_SIZE = 0xFFFF;
+    // Consecutive IDs looked up per read lock by scanClients()
+    private static final int SCAN_WINDOW = 1024;
+
+    private final Path logFile, compactFile;
+    private final SyncPolicy syncPolicy;
+    // Readers share the log file; writers and the compaction swap take it exclusively
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    // Offset the next record is appended at
+    private long end;
+    // Latest record of every live client: offset << 24 | record size << 8 | client type
+    private IntLongHashMap index = new IntLongHashMap(1024);
+    private long liveBytes;
+    private int nextId = 1;
+    private final LastNameIndex lastNameIndex = new LastNameIndex();
+    // Change events are fired by the bulk writers while the write lock is held, so they come in
+    // log order; the single-client writers go through them
+    private final ClientChangeSupport changes = new ClientChangeSupport();
+    private final ClientCache cache = new ClientCache(10000, 16 * 1024 * 1024, 60 * 60 * 1000);
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean dirty;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    // Statistics
+    private long compactionCount, truncatedBytes;
+
+    /**
+     * Constructor that opens (or creates) the log in a directory and replays it
+     * @param directory directory holding the log file
+     * @param syncPolicy when appended records are forced to disk
+     * @param dataFile file used to fill an empty store, or null to leave it empty
+     * @throws IOException if the log could not be opened or read
+     */
+    public ClientLogStore(String directory, SyncPolicy syncPolicy, String dataFile) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        this.logFile = dir.resolve(LOG_FILE);
+        this.compactFile = dir.resolve(LOG_FILE + ".compact");
+        this.syncPolicy = syncPolicy;
+
+        recover();
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "client-log-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        if (syncPolicy == SyncPolicy.BATCHED) {
+            maintenance.scheduleWithFixedDelay(this::syncIfDirty, SYNC_INTERVAL_MILLIS,
+                                               SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::compactIfNeeded, COMPACTION_CHECK_MILLIS,
+                                           COMPACTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Also resumes a fill that was interrupted
+        if (dataFile != null && (end == 0 || ClientImporter.isInterrupted(dataFile))) {
+            ClientImporter.fill(this, dataFile);
+        }
+    }
+
+    @Override
+    public LastNameIndex.PrefixMatch getLastNamePrefixMatches(String prefix, int limit) {
+        return lastNameIndex.find(prefix, limit);
+    }
+
+    @Override
+    public Client getClientById(int id) {
+        Client client = cache.get(id);
+        if (client == null) {
+            // Taken before the read, so a write made meanwhile keeps the record read out of the cache
+            long stamp = cache.readStamp(id);
+            client = read(id);
+            if (client != null) {
+                cache.putIfUnchanged(client, stamp);
+            }
+        }
+        return client;
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery) {
+        return getSearchResults(searchCriteria, searchQuery, new QueryHandle());
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery,
+                                              QueryHandle handle) {
+        int[] ids = getSearchIds(searchCriteria, searchQuery, handle);
+        ArrayList<Client> searchResults = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length && !handle.isCancelled(); i++) {
+            Client client = getClientById(ids[i]);
+            if (client != null) {
+                searchResults.add(client);
+            }
+        }
+        // Never return a partial result for a cancelled search
+        if (handle.isCancelled()) {
+            searchResults.clear();
+        }
+        return searchResults;
+    }
+
+    @Override
+    public SearchPage getSearchPage(String searchCriteria, String searchQuery, int pageSize,
+                                    QueryHandle handle) {
+        int[] ids = getSearchIds(searchCriteria, searchQuery, handle);
+        return SearchPage.fromIds(searchCriteria, searchQuery, ids, 0, pageSize, this::getClientById);
+    }
+
+    @Override
+    public SearchPage getNextPage(String continuationToken, int pageSize, QueryHandle handle) {
+        SearchPage.Token token = SearchPage.Token.parse(continuationToken);
+        int[] ids = getSearchIds(token.getSearchCriteria(), token.getSearchQuery(), handle);
+        return SearchPage.fromIds(token.getSearchCriteria(), token.getSearchQuery(), ids,
+                                  token.getAfterId(), pageSize, this::getClientById);
+    }
+
+    @Override
+    public int[] getSearchIds(String searchCriteria, String searchQuery, QueryHandle handle) {
+        int[] ids;
+        switch (searchCriteria) {
+            case "id":
+                try {
+                    int id = Integer.parseInt(searchQuery.trim());
+                    ids = contains(id) ? new int[] {id} : new int[0];
+                } catch (NumberFormatException e) {
+                    ids = new int[0];
+                }
+                break;
+            case "lastName":
+                ids = lastNameIndex.findExact(searchQuery);
+                break;
+            case "clientType":
+                ids = scanClientType(searchQuery, handle);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown search criteria: " + searchCriteria);
+        }
+        return handle.isCancelled() ? new int[0] : ids;
+    }
+
+    /**
+     * Loads the clients with the given IDs. Like the database model, clients read from the log
+     * are added to the cache.
+     * @param ids IDs of the clients to load
+     * @return clients in the same order as the IDs, with null for IDs that do not exist
+     */
+    @Override
+    public Client[] getClientsByIds(int[] ids) {
+        Client[] clients = new Client[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            clients[i] = getClientById(ids[i]);
+        }
+        return clients;
+    }
+
+    @Override
+    public void addClient(Client client) {
+        addClients(Arrays.asList(client));
+    }
+
+    @Override
+    public boolean updateClient(int id, Client client) {
+        Client updated = client.copy();
+        updated.setId(id);
+        return updateClients(Arrays.asList(updated))[0];
+    }
+
+    @Override
+    public WriteResult updateClient(int id, Client client, int expectedVersion) {
+        lock.writeLock().lock();
+        try {
+            WriteResult result = checkVersion(id, expectedVersion);
+            if (result != WriteResult.OK) {
+                return result;
+            }
+            Client updated = client.copy();
+            updated.setId(id);
+            if (!updateClients(Arrays.asList(updated))[0]) {
+                return WriteResult.ERROR;
+            }
+            client.setId(id);
+            client.setVersion(updated.getVersion());
+            return WriteResult.OK;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteClient(int id) {
+        return deleteClients(Arrays.asList(id))[0];
+    }
+
+    @Override
+    public WriteResult deleteClient(int id, int expectedVersion) {
+        lock.writeLock().lock();
+        try {
+            WriteResult result = checkVersion(id, expectedVersion);
+            if (result != WriteResult.OK) {
+                return result;
+            }
+            return deleteClients(Arrays.asList(id))[0] ? WriteResult.OK : WriteResult.ERROR;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a list of clients with a single write (and a single sync with SyncPolicy.ALWAYS)
+     * @param clients list of clients to add
+     * @return array where each element is true if the client at that index was added
+     */
+    @Override
+    public boolean[] addClients(List<Client> clients) {
+        boolean[] success = new boolean[clients.size()];
+        RecordBuffer records = new RecordBuffer();
+        lock.writeLock().lock();
+        try {
+            int id = nextId;
+            for (int i = 0; i < success.length; i++) {
+                success[i] = records.put(id, 0, clients.get(i));
+                if (success[i]) {
+                    id++;
+                }
+            }
+            long start = append(records);
+            nextId = id;
+
+            String[] addedNames = new String[records.count()];
+            Client[] addedClients = new Client[records.count()];
+            for (int i = 0, r = 0; i < success.length; i++) {
+                if (success[i]) {
+                    Client client = clients.get(i);
+                    client.setId(records.id(r));
+                    client.setVersion(0);
+                    indexPut(client.getId(), start + records.offset(r), records.size(r),
+                             client.getClientType());
+                    addedNames[r] = client.getLastName();
+                    addedClients[r] = client;
+                    cache.put(client);
+                    r++;
+                }
+            }
+            lastNameIndex.putAll(records.ids(), addedNames, records.count());
+            changes.fireAdded(addedClients, records.count());
+        } catch (IOException e) {
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return success;
+    }
+
+    /**
+     * Updates a list of clients (matched by ID) with a single write. The versions of the updated
+     * clients are advanced. A client listed more than once is only updated by its first entry.
+     * @param clients list of Client objects containing updated information
+     * @return array where each element is true if the client at that index was updated
+     */
+    @Override
+    public boolean[] updateClients(List<Client> clients) {
+        boolean[] success = new boolean[clients.size()];
+        int[] versions = new int[success.length];
+        RecordBuffer records = new RecordBuffer();
+        IntLongHashMap listed = new IntLongHashMap(success.length);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < success.length; i++) {
+                Client client = clients.get(i);
+                if (listed.containsKey(client.getId())) {
+                    continue;
+                }
+                versions[i] = currentVersion(client.getId()) + 1;
+                success[i] = versions[i] > 0 && records.put(client.getId(), versions[i], client);
+                if (success[i]) {
+                    listed.put(client.getId(), i);
+                }
+            }
+            long start = append(records);
+
+            Client[] updatedClients = new Client[records.count()];
+            for (int i = 0, r = 0; i < success.length; i++) {
+                if (success[i]) {
+                    Client client = clients.get(i);
+                    client.setVersion(versions[i]);
+                    indexPut(client.getId(), start + records.offset(r), records.size(r),
+                             client.getClientType());
+                    lastNameIndex.put(client.getId(), client.getLastName());
+                    cache.put(client);
+                    updatedClients[r++] = client;
+                }
+            }
+            changes.fireUpdated(updatedClients, records.count());
+        } catch (IOException e) {
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return success;
+    }
+
+    /**
+     * Deletes a list of clients with a single write. An ID listed more than once is only reported
+     * as deleted at its first index.
+     * @param ids unique IDs of the clients to delete
+     * @return array where each element is true if the client with the ID at that index was deleted
+     */
+    @Override
+    public boolean[] deleteClients(List<Integer> ids) {
+        boolean[] success = new boolean[ids.size()];
+        RecordBuffer records = new RecordBuffer();
+        IntLongHashMap listed = new IntLongHashMap(success.length);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < success.length; i++) {
+                int id = ids.get(i);
+                success[i] = index.containsKey(id) && !listed.containsKey(id);
+                if (success[i]) {
+                    records.delete(id);
+                    listed.put(id, i);
+                }
+            }
+            append(records);
+
+            for (int i = 0; i < success.length; i++) {
+                if (success[i]) {
+                    indexRemove(ids.get(i));
+                    lastNameIndex.remove(ids.get(i));
+                    cache.invalidate(ids.get(i));
+                }
+            }
+            changes.fireDeleted(records.ids(), records.count());
+        } catch (IOException e) {
+            Arrays.fill(success, false);
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return success;
+    }
+
+    /**
+     * Deletes clients with a single write of delete records
+     * @param ids IDs of the clients to delete
+     * @return number of clients deleted, or -1 if the log could not be written
+     */
+    @Override
+    public int deleteClientsByIds(int[] ids) {
+        RecordBuffer records = new RecordBuffer();
+        lock.writeLock().lock();
+        try {
+            // An ID listed twice gets one record
+            for (int id : Arrays.stream(ids).distinct().toArray()) {
+                if (index.containsKey(id)) {
+                    records.delete(id);
+                }
+            }
+            append(records);
+            for (int r = 0; r < records.count(); r++) {
+                indexRemove(records.id(r));
+                lastNameIndex.remove(records.id(r));
+                cache.invalidate(records.id(r));
+            }
+            changes.fireDeleted(records.ids(), records.count());
+            return records.count();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the client type of clients with a single write of new records
+     * @param ids IDs of the clients to change
+     * @param clientType the new client type
+     * @return number of clients changed, or -1 if the log could not be written
+     */
+    @Override
+    public int updateClientTypes(int[] ids, String clientType) {
+        lock.writeLock().lock();
+        try {
+            List<Client> changed = new ArrayList<>(ids.length);
+            for (int id : Arrays.stream(ids).distinct().toArray()) {
+                Client client = getClientById(id);
+                if (client != null) {
+                    client.updateInfo(client.getFirstName(), client.getLastName(), client.getAddress(),
+                                      client.getPostalCode(), client.getPhoneNumber(), clientType);
+                    changed.add(client);
+                }
+            }
+            int updated = 0;
+            for (boolean success : updateClients(changed)) {
+                if (success) {
+                    updated++;
+                }
+            }
+            // Writes only fail all together (or for an invalid client type)
+            return changed.isEmpty() || updated > 0 ? updated : -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Streams the clients of an ID range in windows of consecutive IDs: only the IDs of one window
+     * are collected under the read lock, so writers are never held up by a long scan. Records are
+     * read from the log without going through the cache.
+     */
+    @Override
+    public long scanClients(int fromId, int toId, ClientVisitor visitor) throws IOException {
+        int[] window = new int[SCAN_WINDOW];
+        long count = 0;
+        int start = Math.max(1, fromId);
+        while (true) {
+            int end, found = 0;
+            lock.readLock().lock();
+            try {
+                // IDs are never reused, so nothing at or above nextId can appear during the scan
+                end = (int) Math.min((long) start + SCAN_WINDOW, Math.min(toId, nextId));
+                for (int id = start; id < end; id++) {
+                    if (index.containsKey(id)) {
+                        window[found++] = id;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (start >= end) {
+                return count;
+            }
+            for (int i = 0; i < found; i++) {
+                // Clients deleted since the window was collected are skipped
+                Client client = readChecked(window[i]);
+                if (client != null) {
+                    count++;
+                    if (!visitor.visit(client)) {
+                        return count;
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+
+    @Override
+    public int getMaxId() {
+        lock.readLock().lock();
+        try {
+            int maxId = 0;
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                maxId = Math.max(maxId, index.slotKey(slot));
+            }
+            return maxId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changes.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        changes.removeListener(listener);
+    }
+
+    /**
+     * Stops the background work, forces the log to disk and closes it
+     */
+    @Override
+    public void close() {
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest record of every live client. Readers and writers
+     * continue while the live records are copied; they are only blocked while the records
+     * appended in the meantime are copied and the new file is swapped in.
+     * @throws IOException if the new log could not be written - the current log stays in use
+     */
+    public void compact() throws IOException {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        FileChannel target = null;
+        try {
+            // Snapshot of the live records - records are never changed once appended
+            long[] entries;
+            int[] ids;
+            long snapshotEnd;
+            int snapshotNextId;
+            FileChannel source;
+            lock.readLock().lock();
+            try {
+                ids = new int[index.size()];
+                entries = new long[index.size()];
+                for (int slot = 0, n = 0; slot < index.capacity(); slot++) {
+                    if (index.slotKey(slot) != 0) {
+                        ids[n] = index.slotKey(slot);
+                        entries[n++] = index.slotValue(slot);
+                    }
+                }
+                snapshotEnd = end;
+                snapshotNextId = nextId;
+                source = channel;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            Files.deleteIfExists(compactFile);
+            target = FileChannel.open(compactFile, StandardOpenOption.CREATE_NEW,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE);
+            IntLongHashMap newIndex = new IntLongHashMap(ids.length);
+            // Keep the ID sequence, so IDs of deleted clients are never handed out again
+            RecordBuffer header = new RecordBuffer();
+            header.nextId(snapshotNextId);
+            long pos = write(target, header.buffer(), 0);
+
+            // Copy in file order, so the old log is read sequentially
+            Integer[] order = new Integer[ids.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(entries[a], entries[b]));
+            ByteBuffer out = ByteBuffer.allocate(1 << 20);
+            long outStart = pos;
+            for (int i : order) {
+                int size = entrySize(entries[i]);
+                if (out.remaining() < size) {
+                    out.flip();
+                    outStart = write(target, out, outStart);
+                    out.clear();
+                }
+                ByteBuffer record = out.slice();
+                record.limit(size);
+                readFully(source, record, entryOffset(entries[i]));
+                out.position(out.position() + size);
+                newIndex.put(ids[i], entry(pos, size, entryType(entries[i])));
+                pos += size;
+            }
+            out.flip();
+            write(target, out, outStart);
+
+            lock.writeLock().lock();
+            try {
+                // Copy the records appended since the snapshot and apply them to the new index
+                long tailLength = end - snapshotEnd;
+                if (tailLength > 0) {
+                    ByteBuffer tail = ByteBuffer.allocate((int) tailLength);
+                    readFully(channel, tail, snapshotEnd);
+                    tail.flip();
+                    write(target, tail.duplicate(), pos);
+                    replay(tail, pos, newIndex);
+                    pos += tailLength;
+                }
+                target.force(true);
+                target.close();
+                Files.move(compactFile, logFile, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+
+                channel.close();
+                channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                end = pos;
+                index = newIndex;
+                liveBytes = 0;
+                for (int slot = 0; slot < index.capacity(); slot++) {
+                    if (index.slotKey(slot) != 0) {
+                        liveBytes += entrySize(index.slotValue(slot));
+                    }
+                }
+                compactionCount++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (target != null && target.isOpen()) {
+                target.close();
+            }
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Returns the size of the log file
+     * @return size in bytes
+     */
+    public long getFileSize() {
+        lock.readLock().lock();
+        try {
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes of the log taken by records that are no longer the latest of a live client
+     * @return garbage size in bytes
+     */
+    public long getGarbageBytes() {
+        lock.readLock().lock();
+        try {
+            return end - liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of clients in the store
+     * @return client count
+     */
+    public int getClientCount() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Returns the bytes cut off the end of the log by recovery when it was opened
+     * @return truncated size in bytes (0 if the log was intact)
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("clients=%d, fileBytes=%d, liveBytes=%d, sync=%s, compactions=%d",
+                    index.size(), end, liveBytes, syncPolicy, compactionCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method that replays the log to rebuild the index, truncating it at the first record
+     * or batch that is incomplete or fails its checksum
+     */
+    private void recover() throws IOException {
+        // A compaction that did not finish is simply discarded
+        Files.deleteIfExists(compactFile);
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        // Last name of every client by ID (IDs are dense), loaded into the last name index at the end
+        String[] lastNames = new String[1024];
+
+        // Not closed - closing the stream would close the channel
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        byte[] body = new byte[MAX_RECORD_SIZE];
+        CRC32 crc = new CRC32();
+        long pos = 0;
+        try {
+            while (pos + HEADER_SIZE <= fileSize) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 5 || HEADER_SIZE + length > MAX_RECORD_SIZE
+                        || pos + HEADER_SIZE + length > fileSize) {
+                    break;
+                }
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                if (record.get(0) != BATCH) {
+                    lastNames = recoverRecord(record, pos, HEADER_SIZE + length, lastNames);
+                    if (lastNames == null) {
+                        break;
+                    }
+                    pos += HEADER_SIZE + length;
+                    continue;
+                }
+
+                // A batch is only applied once all of its records are known to be intact
+                record.get();
+                int count = record.getInt();
+                int batchLength = record.getInt();
+                int batchChecksum = record.getInt();
+                long batchStart = pos + HEADER_SIZE + length;
+                if (batchLength < 0 || batchStart + batchLength > fileSize) {
+                    break;
+                }
+                byte[] batch = new byte[batchLength];
+                in.readFully(batch);
+                crc.reset();
+                crc.update(batch, 0, batchLength);
+                if ((int) crc.getValue() != batchChecksum) {
+                    break;
+                }
+                ByteBuffer records = ByteBuffer.wrap(batch);
+                String[] applied = lastNames;
+                for (int r = 0; r < count && applied != null; r++) {
+                    int recordStart = records.position();
+                    int recordLength = records.getInt();
+                    records.getInt();
+                    ByteBuffer batched = records.slice();
+                    batched.limit(recordLength);
+                    applied = recoverRecord(batched, batchStart + recordStart,
+                                            HEADER_SIZE + recordLength, applied);
+                    records.position(recordStart + HEADER_SIZE + recordLength);
+                }
+                if (applied == null) {
+                    break;
+                }
+                lastNames = applied;
+                pos = batchStart + batchLength;
+            }
+        } catch (EOFException e) {
+            // Incomplete record at the end - truncated below
+        }
+
+        if (pos < fileSize) {
+            truncatedBytes = fileSize - pos;
+            System.err.println("Client log " + logFile + ": discarding " + truncatedBytes +
+                               " byte(s) of incomplete or corrupt records at offset " + pos);
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        end = pos;
+
+        int[] ids = index.keys();
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = lastNames[ids[i]];
+        }
+        lastNameIndex.load(ids, names, ids.length);
+    }
+
+    /**
+     * Helper method that applies a record read by recover() to the index
+     * @param record body of the record, positioned at its type
+     * @param pos log offset of the record
+     * @param size size of the record, header included
+     * @param lastNames last name of every client by ID
+     * @return the last names, grown if needed, or null if the record type is unknown
+     */
+    private String[] recoverRecord(ByteBuffer record, long pos, int size, String[] lastNames) {
+        byte type = record.get();
+        int id = record.getInt();
+        if (type == PUT || type == PUT_VERSIONED) {
+            Client client = decode(type, record);
+            indexPut(id, pos, size, client.getClientType());
+            if (id >= lastNames.length) {
+                lastNames = Arrays.copyOf(lastNames, Math.max(id + 1, lastNames.length * 2));
+            }
+            lastNames[id] = client.getLastName();
+            nextId = Math.max(nextId, id + 1);
+        } else if (type == DELETE) {
+            indexRemove(id);
+            if (id < lastNames.length) {
+                lastNames[id] = null;
+            }
+        } else if (type == NEXT_ID) {
+            nextId = Math.max(nextId, id);
+        } else {
+            return null;
+        }
+        return lastNames;
+    }
+
+    /**
+     * Helper method that applies records read from a buffer to an index. BATCH records need no
+     * checks here - the buffer only holds records that were fully appended.
+     * @param records buffer holding whole records
+     * @param fileOffset offset of the first record in the log file
+     * @param target index to update
+     */
+    private static void replay(ByteBuffer records, long fileOffset, IntLongHashMap target) {
+        int start = records.position();
+        while (records.remaining() >= HEADER_SIZE) {
+            int recordStart = records.position();
+            int length = records.getInt();
+            records.getInt();
+            int bodyStart = records.position();
+            byte type = records.get();
+            int id = records.getInt();
+            long offset = fileOffset + (recordStart - start);
+            if (type == PUT || type == PUT_VERSIONED) {
+                Client client = decode(type, records);
+                target.put(id, entry(offset, HEADER_SIZE + length, client.getClientType()));
+            } else if (type == DELETE) {
+                target.remove(id);
+            }
+            records.position(bodyStart + length);
+        }
+    }
+
+    /**
+     * Helper method that appends records to the log and syncs them according to the policy. More
+     * than one record is preceded by a BATCH record, so recovery never keeps part of the write. If
+     * the write fails, the log is cut back so no partial record is left behind. Must hold the write
+     * lock.
+     * @param records the records
+     * @return log offset of the first record
+     * @throws IOException if the records could not be written
+     */
+    private long append(RecordBuffer records) throws IOException {
+        long start = end;
+        if (records.count() == 0) {
+            return start;
+        }
+        long first = start;
+        try {
+            if (records.count() > 1) {
+                first = write(channel, records.batchHeader(), start);
+            }
+            end = write(channel, records.buffer(), first);
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                channel.force(false);
+            } else {
+                dirty = true;
+            }
+        } catch (IOException e) {
+            end = start;
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateError) {
+                // Recovery discards the partial record on the next start
+            }
+            throw e;
+        }
+        return first;
+    }
+
+    /**
+     * Helper method that reads the latest record of a client
+     * @param id ID of the client
+     * @return the client, or null if no client has this ID
+     */
+    private Client read(int id) {
+        try {
+            return readChecked(id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Helper method that reads the latest record of a client, reporting unreadable records
+     * @param id ID of the client
+     * @return the client, or null if no client has this ID
+     * @throws IOException if the record could not be read or is corrupt
+     */
+    private Client readChecked(int id) throws IOException {
+        lock.readLock().lock();
+        try {
+            long entry = index.get(id, -1);
+            if (entry == -1) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(entrySize(entry));
+            readFully(channel, record, entryOffset(entry));
+            record.flip();
+            int length = record.getInt();
+            int checksum = record.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER_SIZE, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt record for client " + id + " at offset " +
+                                      entryOffset(entry));
+            }
+            byte type = record.get();
+            record.getInt();
+            Client client = decode(type, record);
+            client.setId(id);
+            return client;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method that returns the current version of a client, from the cache if possible.
+     * Must hold the write lock, so the version cannot change before the caller writes.
+     * @param id ID of the client
+     * @return the version, or -1 if no client has this ID or its record could not be read
+     */
+    private int currentVersion(int id) {
+        if (!index.containsKey(id)) {
+            return -1;
+        }
+        Client client = cache.get(id);
+        if (client == null) {
+            client = read(id);
+        }
+        return client == null ? -1 : client.getVersion();
+    }
+
+    /**
+     * Helper method that compares the version of a client with the version a writer read. Must
+     * hold the write lock.
+     * @param id ID of the client
+     * @param expectedVersion version the writer read
+     * @return OK if the versions match, CONFLICT, NOT_FOUND, or ERROR if the record is unreadable
+     */
+    private WriteResult checkVersion(int id, int expectedVersion) {
+        if (!index.containsKey(id)) {
+            return WriteResult.NOT_FOUND;
+        }
+        int version = currentVersion(id);
+        if (version < 0) {
+            return WriteResult.ERROR;
+        }
+        return version == expectedVersion ? WriteResult.OK : WriteResult.CONFLICT;
+    }
+
+    /**
+     * Helper method that checks whether a client exists
+     */
+    private boolean contains(int id) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method that finds the clients of a type (ignoring case, like the database) from the
+     * client types kept in the index, without reading the log
+     * @param clientType the client type
+     * @param handle handle used to cancel the scan
+     * @return matching IDs in ascending order
+     */
+    private int[] scanClientType(String clientType, QueryHandle handle) {
+        if (clientType.length() != 1) {
+            return new int[0];
+        }
+        int type = Character.toUpperCase(clientType.charAt(0));
+        int[] ids = new int[64];
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < index.capacity() && !handle.isCancelled(); slot++) {
+                if (index.slotKey(slot) != 0
+                        && Character.toUpperCase(entryType(index.slotValue(slot))) == type) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = index.slotKey(slot);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Helper method that points the index at a new record of a client and updates the live size
+     */
+    private void indexPut(int id, long offset, int size, String clientType) {
+        long old = index.get(id, -1);
+        if (old != -1) {
+            liveBytes -= entrySize(old);
+        }
+        index.put(id, entry(offset, size, clientType));
+        liveBytes += size;
+    }
+
+    /**
+     * Helper method that removes a client from the index and updates the live size
+     */
+    private void indexRemove(int id) {
+        long old = index.get(id, -1);
+        if (old != -1) {
+            liveBytes -= entrySize(old);
+            index.remove(id);
+        }
+    }
+
+    /**
+     * Helper method run by the maintenance thread with SyncPolicy.BATCHED
+     */
+    private void syncIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            dirty = true;
+            e.printStackTrace();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method run by the maintenance thread that compacts the log once it is mostly garbage
+     */
+    private void compactIfNeeded() {
+        long garbage = getGarbageBytes();
+        if (garbage >= COMPACTION_MIN_GARBAGE_BYTES && garbage > end - garbage) {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Helper method that decodes the version (PUT_VERSIONED records only) and the six fields of a
+     * client from a record body
+     */
+    private static Client decode(byte type, ByteBuffer record) {
+        int version = type == PUT_VERSIONED ? record.getInt() : 0;
+        String[] fields = new String[6];
+        for (int i = 0; i < fields.length; i++) {
+            int length = record.getShort() & 0xFFFF;
+            fields[i] = new String(record.array(), record.arrayOffset() + record.position(), length,
+                                   StandardCharsets.UTF_8);
+            record.position(record.position() + length);
+        }
+        Client client = new Client(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+        client.setVersion(version);
+        return client;
+    }
+
+    private static long entry(long offset, int size, String clientType) {
+        return entry(offset, size, clientType.charAt(0));
+    }
+
+    private static long entry(long offset, int size, int type) {
+        return offset << 24 | (long) size << 8 | (type & 0xFF);
+    }
+
+    private static long entryOffset(long entry) {
+        return entry >>> 24;
+    }
+
+    private static int entrySize(long entry) {
+        return (int) (entry >>> 8) & 0xFFFF;
+    }
+
+    private static int entryType(long entry) {
+        return (int) entry & 0xFF;
+    }
+
+    /**
+     * Helper method that writes a whole buffer at a position
+     * @return position after the written bytes
+     */
+    private static long write(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Helper method that fills a buffer from a position
+     */
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of client log at offset " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Records to be appended with one write, encoded into a growing buffer
+     */
+    private static class RecordBuffer {
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+        private int[] ids = new int[8], offsets = new int[8], sizes = new int[8];
+        private int count;
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Encodes the latest state of a client
+         * @return false if the client cannot be stored (missing field, client type not one
+         *         character or record too large) - no record is added
+         */
+        private boolean put(int id, int version, Client client) {
+            String[] fields = {client.getFirstName(), client.getLastName(), client.getAddress(),
+                    client.getPostalCode(), client.getPhoneNumber(), client.getClientType()};
+            byte[][] bytes = new byte[fields.length][];
+            int size = HEADER_SIZE + 9;
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] == null) {
+                    return false;
+                }
+                bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                size += 2 + bytes[i].length;
+            }
+            if (fields[5].length() != 1 || fields[5].charAt(0) > 0xFF || size > MAX_RECORD_SIZE) {
+                return false;
+            }
+            int start = begin(PUT_VERSIONED, id, size);
+            buffer.putInt(version);
+            for (byte[] field : bytes) {
+                buffer.putShort((short) field.length);
+                buffer.put(field);
+            }
+            finish(start);
+            return true;
+        }
+
+        private void delete(int id) {
+            finish(begin(DELETE, id, HEADER_SIZE + 5));
+        }
+
+        private void nextId(int id) {
+            finish(begin(NEXT_ID, id, HEADER_SIZE + 5));
+        }
+
+        private int count() {
+            return count;
+        }
+
+
+        private int id(int record) {
+            return ids[record];
+        }
+
+        private int[] ids() {
+            return ids;
+        }
+
+        private int offset(int record) {
+            return offsets[record];
+        }
+
+        private int size(int record) {
+            return sizes[record];
+        }
+
+        /**
+         * Returns a BATCH record covering the encoded records, to be written just before them
+         */
+        private ByteBuffer batchHeader() {
+            crc.reset();
+            crc.update(buffer.array(), 0, buffer.position());
+            ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+            header.putInt(BATCH_HEADER_SIZE - HEADER_SIZE);
+            header.putInt(0);
+            header.put(BATCH);
+            header.putInt(count);
+            header.putInt(buffer.position());
+            header.putInt((int) crc.getValue());
+            crc.reset();
+            crc.update(header.array(), HEADER_SIZE, BATCH_HEADER_SIZE - HEADER_SIZE);
+            header.putInt(4, (int) crc.getValue());
+            header.flip();
+            return header;
+        }
+
+        /**
+         * Returns the encoded records, ready to be written
+         */
+        private ByteBuffer buffer() {
+            ByteBuffer records = buffer.duplicate();
+            records.flip();
+            return records;
+        }
+
+        /**
+         * Helper method that reserves room for a record and writes everything but the checksum
+         */
+        private int begin(byte type, int id, int size) {
+            if (buffer.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                                                                 buffer.position() + size));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            int start = buffer.position();
+            ids[count] = id;
+            offsets[count] = start;
+            sizes[count] = size;
+            buffer.putInt(size - HEADER_SIZE);
+            buffer.putInt(0);
+            buffer.put(type);
+            buffer.putInt(id);
+            return start;
+        }
+
+        /**
+         * Helper method that fills in the checksum of the record started at 'start'
+         */
+        private void finish(int start) {
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER_SIZE, buffer.position() - start - HEADER_SIZE);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            count++;
+        }
+    }
+}
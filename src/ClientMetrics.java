@@ -0,0 +1,146 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the metrics of every repository operation. Each operation is published as an MBean
+ * named 'CMS:type=Operation,name=<operation>' (visible in JConsole or VisualVM), and the registry
+ * can print all of them as a text table at a fixed interval.
+ * @author karimbounekhla
+ */
+public class ClientMetrics {
+    public static final String JMX_DOMAIN = "CMS";
+    private static final ClientMetrics DEFAULT = new ClientMetrics(JMX_DOMAIN);
+
+    // Operations sorted by name, for a stable dump
+    private final ConcurrentSkipListMap<String, OperationMetrics> operations =
+            new ConcurrentSkipListMap<>();
+    private final String jmxDomain;
+    private ScheduledExecutorService reporter;
+    // Call count of every operation at the previous dump, for the per-interval rate
+    private final Map<String, Long> reportedCounts = new HashMap<>();
+    private long reportedNanos = System.nanoTime();
+
+    /**
+     * Constructor
+     * @param jmxDomain domain the operations are published under, or null to not publish them
+     */
+    public ClientMetrics(String jmxDomain) {
+        this.jmxDomain = jmxDomain;
+    }
+
+    /**
+     * Returns the registry shared by the application, published under JMX_DOMAIN
+     * @return the default registry
+     */
+    public static ClientMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the metrics of an operation, creating (and publishing) them on first use
+     * @param name name of the operation
+     * @return the metrics
+     */
+    public OperationMetrics operation(String name) {
+        OperationMetrics metrics = operations.get(name);
+        if (metrics == null) {
+            metrics = operations.computeIfAbsent(name, this::register);
+        }
+        return metrics;
+    }
+
+    /**
+     * Formats the metrics of every operation
+     * @return one line per operation that has been called
+     */
+    public synchronized String dump() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - reportedNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        StringBuilder text = new StringBuilder();
+        for (OperationMetrics metrics : operations.values()) {
+            long count = metrics.getCount();
+            long previous = reportedCounts.getOrDefault(metrics.getName(), 0L);
+            reportedCounts.put(metrics.getName(), count);
+            // Operations that were never called are left out
+            if (count == 0 && metrics.getInFlight() == 0) {
+                continue;
+            }
+            text.append(String.format("%-24s %8.1f/s  rows=%-10d errors=%-6d inFlight=%-3d %s%n",
+                                      metrics.getName(), (count - previous) / seconds,
+                                      metrics.getRowCount(), metrics.getErrorCount(),
+                                      metrics.getInFlight(), metrics.getLatency().snapshot()));
+        }
+        reportedNanos = now;
+        return text.toString();
+    }
+
+    /**
+     * Prints dump() at a fixed interval from a background thread. Calling it again changes the
+     * interval.
+     * @param periodSeconds seconds between dumps
+     * @param out stream the dumps are printed to
+     */
+    public synchronized void startReporting(long periodSeconds, PrintStream out) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            String text = dump();
+            if (!text.isEmpty()) {
+                out.print("Repository metrics:" + System.lineSeparator() + text);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the dumps started by startReporting()
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Clears the metrics of every operation
+     */
+    public void reset() {
+        for (OperationMetrics metrics : operations.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Helper method that creates the metrics of an operation and publishes them over JMX
+     */
+    private OperationMetrics register(String name) {
+        OperationMetrics metrics = new OperationMetrics(name);
+        if (jmxDomain != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(jmxDomain + ":type=Operation,name=" +
+                                                       ObjectName.quote(name));
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(metrics, objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        return metrics;
+    }
+}
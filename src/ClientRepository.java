@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage of the clients used by the CMS Application. The controller only talks to this interface,
+ * so the backend (MySQL, an embedded database or memory) is chosen by configuration - see
+ * RepositoryConfig. Implementations must be safe to use from several threads at the same time.
+ * @author karimbounekhla
+ */
+public interface ClientRepository {
+    /**
+     * Receives the clients of a scan, one at a time
+     */
+    interface ClientVisitor {
+        /**
+         * Called for every client of the scan, in ID order
+         * @param client the client; the scan does not keep a reference to it
+         * @return true to continue the scan, false to stop it
+         * @throws IOException if the client could not be processed, which ends the scan
+         */
+        boolean visit(Client client) throws IOException;
+    }
+
+    /**
+     * Result of a conditional (compare-and-set) write
+     */
+    enum WriteResult {
+        // The write was applied
+        OK,
+        // The client was changed or deleted by someone else since the expected version was read
+        CONFLICT,
+        // No client has this ID
+        NOT_FOUND,
+        // The write failed, e.g. the database could not be reached
+        ERROR
+    }
+
+    /**
+     * Receives the rows added, updated or deleted through the repository
+     */
+    interface ChangeListener {
+        /**
+         * Called after a write was applied, on the thread that made it - listeners that update
+         * Swing components must hand the event to the EDT themselves
+         * @param event the changed rows
+         */
+        void clientsChanged(ClientChangeEvent event);
+    }
+
+    /**
+     * Returns the clients whose last name starts with a prefix (ignoring case), from an in-memory
+     * index
+     * @param prefix the last name prefix
+     * @param limit maximum number of matches returned
+     * @return the matching IDs ordered by last name, or null if the index is not loaded
+     */
+    LastNameIndex.PrefixMatch getLastNamePrefixMatches(String prefix, int limit);
+
+    /**
+     * Returns a client by ID
+     * @param id ID of the client
+     * @return the client, or null if no client has this ID
+     */
+    Client getClientById(int id);
+
+    /**
+     * Executes a search and returns the results in an ArrayList
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @return Array List of Client Objects containing all matches
+     */
+    ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery);
+
+    /**
+     * Executes a search that can be cancelled from another thread and returns the results in an
+     * ArrayList
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param handle handle used to cancel the search
+     * @return Array List of Client Objects containing all matches (empty if the search was cancelled)
+     */
+    ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery, QueryHandle handle);
+
+    /**
+     * Returns the first page of a search. Pages are ordered by client ID.
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the search
+     * @return the first page of matches
+     */
+    SearchPage getSearchPage(String searchCriteria, String searchQuery, int pageSize, QueryHandle handle);
+
+    /**
+     * Returns the page following the one a continuation token was taken from
+     * @param continuationToken token returned by SearchPage.getContinuationToken()
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the search
+     * @return the next page of matches
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    SearchPage getNextPage(String continuationToken, int pageSize, QueryHandle handle);
+
+    /**
+     * Returns the IDs of all clients matching a search, without loading the clients themselves
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param handle handle used to cancel the search
+     * @return IDs of the matches in ascending order (empty if the search was cancelled)
+     */
+    int[] getSearchIds(String searchCriteria, String searchQuery, QueryHandle handle);
+
+    /**
+     * Loads the clients with the given IDs
+     * @param ids IDs of the clients to load
+     * @return clients in the same order as the IDs, with null for IDs that do not exist
+     */
+    Client[] getClientsByIds(int[] ids);
+
+    /**
+     * Adds a client and assigns its generated ID
+     * @param client the Client
+     */
+    void addClient(Client client);
+
+    /**
+     * Updates the information of a client whatever its version (the last write wins). The version
+     * of the client is still advanced, so concurrent conditional writes see the change.
+     * @param id unique ID of the client
+     * @param client Client object containing updated information
+     * @return true if a client was updated, false if no client has this ID or the write failed
+     */
+    boolean updateClient(int id, Client client);
+
+    /**
+     * Updates the information of a client only if it was not changed since it was read, without
+     * holding any lock between the read and the write
+     * @param id unique ID of the client
+     * @param client Client object containing updated information; on OK its ID is set and its
+     *               version advanced to the new version of the client
+     * @param expectedVersion version of the client when it was read (Client.getVersion())
+     * @return OK, CONFLICT if the client has another version now, NOT_FOUND or ERROR
+     */
+    WriteResult updateClient(int id, Client client, int expectedVersion);
+
+    /**
+     * Deletes a client whatever its version
+     * @param id unique ID of the client to delete
+     * @return true if a client was deleted, false if no client has this ID or the write failed
+     */
+    boolean deleteClient(int id);
+
+    /**
+     * Deletes a client only if it was not changed since it was read
+     * @param id unique ID of the client to delete
+     * @param expectedVersion version of the client when it was read (Client.getVersion())
+     * @return OK, CONFLICT if the client has another version now, NOT_FOUND or ERROR
+     */
+    WriteResult deleteClient(int id, int expectedVersion);
+
+    /**
+     * Adds a list of clients in one transaction and assigns their generated IDs
+     * @param clients list of clients to add
+     * @return array where each element is true if the client at that index was added
+     */
+    boolean[] addClients(List<Client> clients);
+
+    /**
+     * Updates a list of clients (matched by ID) in one transaction, whatever their versions
+     * @param clients list of Client objects containing updated information
+     * @return array where each element is true if the client at that index was updated
+     */
+    boolean[] updateClients(List<Client> clients);
+
+    /**
+     * Deletes a list of clients in one transaction
+     * @param ids unique IDs of the clients to delete
+     * @return array where each element is true if the client with the ID at that index was deleted
+     */
+    boolean[] deleteClients(List<Integer> ids);
+
+    /**
+     * Deletes every client with one of the given IDs in one transaction, with set-based statements
+     * rather than a statement per client, whatever the versions of the clients
+     * @param ids IDs of the clients to delete (IDs of clients that do not exist are ignored)
+     * @return number of clients deleted, or -1 if the transaction failed and nothing was deleted
+     */
+    int deleteClientsByIds(int[] ids);
+
+    /**
+     * Sets the client type of every client with one of the given IDs in one transaction, with
+     * set-based statements. The versions of the clients are advanced.
+     * @param ids IDs of the clients to change (IDs of clients that do not exist are ignored)
+     * @param clientType the new client type
+     * @return number of clients changed, or -1 if the transaction failed and nothing was changed
+     */
+    int updateClientTypes(int[] ids, String clientType);
+
+    /**
+     * Streams every client with an ID in a range to a visitor, in ID order, without holding the
+     * whole range in memory - e.g. to export the table
+     * @param fromId lowest ID of the range (inclusive)
+     * @param toId end of the range (exclusive)
+     * @param visitor receives the clients
+     * @return number of clients visited
+     * @throws IOException if the clients could not be read, or the visitor failed
+     */
+    long scanClients(int fromId, int toId, ClientVisitor visitor) throws IOException;
+
+    /**
+     * Returns the highest client ID in use, e.g. to split the table into ID ranges
+     * @return the highest ID, or 0 if there are no clients
+     */
+    int getMaxId();
+
+    /**
+     * Registers a listener told about every write made through this repository. Writes made by
+     * other processes to a shared database are not reported.
+     * @param listener the listener
+     */
+    void addChangeListener(ChangeListener listener);
+
+    /**
+     * Unregisters a change listener
+     * @param listener the listener
+     */
+    void removeChangeListener(ChangeListener listener);
+
+    /**
+     * Releases the resources held by the repository (connections, files)
+     */
+    void close();
+}
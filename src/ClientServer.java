@@ -0,0 +1,596 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless HTTP/JSON API over a client repository, built on the JDK's HTTP server. Each request
+ * runs on its own virtual thread when the JVM has them (Java 21+), otherwise on a cached thread
+ * pool, so requests blocked on the database never hold up the others. Endpoints:
+ *   GET    /clients?criteria=lastName&q=Smith[&pageSize=100]   first page of a search
+ *   GET    /clients?token=...[&pageSize=100]                   next page of a search
+ *   GET    /clients?criteria=clientType&q=R&all=true           every match, streamed
+ *   GET    /clients/{id}                                       one client
+ *   POST   /clients                                            add a client (JSON body)
+ *   PUT    /clients/{id}                                       update a client (JSON body)
+ *   DELETE /clients/{id}                                       delete a client
+ *   GET    /health                                             liveness check
+ * Clients are returned with their version (also as the ETag). A PUT or DELETE that gives the
+ * version it read, in an If-Match header or (PUT) a "version" member, is only applied if nobody
+ * changed the client since: otherwise it fails with 412 (If-Match) or 409 ("version") and the
+ * caller reads the client again. Without a version the last write wins.
+ * Input is checked with the same rules as the GUI (ClientValidator), result lists are written to
+ * the response as they are read, and searches that run longer than the request timeout are
+ * cancelled in the database.
+ * @author karimbounekhla
+ */
+public class ClientServer {
+    public static final int DEFAULT_PORT = 8080;
+    private static final String JSON = "application/json; charset=utf-8";
+    // Clients loaded per round trip when streaming every match of a search
+    private static final int STREAM_BATCH = ClientStatement.ID_LIST_SIZE;
+
+    // Server settings
+    public long requestTimeoutMillis = 10_000;
+    public int defaultPageSize = 100, maxPageSize = 1000;
+    public int maxBodyBytes = 64 * 1024;
+    // Connections waiting to be accepted
+    public int backlog = 4096;
+
+    private final ClientRepository repository;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService timeouts;
+
+    /**
+     * Constructor
+     * @param repository repository the API reads and writes
+     * @param port TCP port to listen on (0 for any free port)
+     */
+    public ClientServer(ClientRepository repository, int port) {
+        this.repository = repository;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening. Requests are served on virtual threads if available.
+     * @throws IOException if the port could not be opened
+     */
+    public void start() throws IOException {
+        // Connections that take longer than the request timeout to send a request are dropped
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null) {
+            System.setProperty("sun.net.httpserver.maxReqTime",
+                               String.valueOf(Math.max(1, requestTimeoutMillis / 1000)));
+        }
+        server = HttpServer.create(new InetSocketAddress(port), backlog);
+        executor = newRequestExecutor();
+        timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-request-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/clients", this::handleClients);
+        server.createContext("/health", exchange -> {
+            drain(exchange);
+            sendText(exchange, 200, "{\"status\":\"ok\"}");
+        });
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to a few seconds for the current ones, then stops
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(2);
+            executor.shutdownNow();
+            timeouts.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * Returns the port the server listens on
+     * @return the bound port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Helper method that creates the executor requests run on: a virtual thread per request when
+     * the JVM supports it (looked up reflectively so the code still builds on older JDKs), or a
+     * cached pool of daemon threads
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "http-request-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Routes a request on /clients
+     */
+    private void handleClients(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String rest = path.substring("/clients".length());
+            String method = exchange.getRequestMethod();
+            if (rest.isEmpty() || rest.equals("/")) {
+                switch (method) {
+                    case "GET":
+                        search(exchange);
+                        break;
+                    case "POST":
+                        add(exchange);
+                        break;
+                    default:
+                        methodNotAllowed(exchange, "GET, POST");
+                }
+                return;
+            }
+            int id = parseId(rest.substring(1));
+            if (id <= 0) {
+                sendError(exchange, 404, "No such resource: " + path);
+                return;
+            }
+            switch (method) {
+                case "GET":
+                    get(exchange, id);
+                    break;
+                case "PUT":
+                    update(exchange, id);
+                    break;
+                case "DELETE":
+                    delete(exchange, id);
+                    break;
+                default:
+                    methodNotAllowed(exchange, "GET, PUT, DELETE");
+            }
+        } catch (IllegalArgumentException e) {
+            sendErrorIfPossible(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            sendErrorIfPossible(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * GET /clients - a page of a search, the next page of a search, or every match streamed
+     */
+    private void search(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        int pageSize = parameters.containsKey("pageSize")
+                ? Integer.parseInt(parameters.get("pageSize")) : defaultPageSize;
+        if (pageSize < 1 || pageSize > maxPageSize) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + maxPageSize);
+        }
+        String token = parameters.get("token");
+        String criteria = parameters.get("criteria"), query = parameters.get("q");
+        if (token == null) {
+            checkSearch(criteria, query);
+        }
+
+        QueryHandle handle = new QueryHandle();
+        ScheduledFuture<?> timer = timeouts.schedule(handle::cancel, requestTimeoutMillis,
+                                                     TimeUnit.MILLISECONDS);
+        try {
+            if (token == null && Boolean.parseBoolean(parameters.get("all"))) {
+                streamAll(exchange, criteria, query, handle);
+                return;
+            }
+            SearchPage page = token != null ? repository.getNextPage(token, pageSize, handle)
+                    : repository.getSearchPage(criteria, query, pageSize, handle);
+            if (handle.isCancelled()) {
+                sendError(exchange, 504, "Search timed out");
+                return;
+            }
+            try (Writer out = startJson(exchange, 200)) {
+                out.write("{\"clients\":[");
+                boolean first = true;
+                for (Client client : page.getClients()) {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    ClientJson.write(client, out);
+                }
+                out.write("],\"next\":");
+                ClientJson.writeString(page.getContinuationToken(), out);
+                out.write('}');
+            }
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Helper method that streams every match of a search as a JSON array: the IDs are found first,
+     * then the clients are loaded and written a batch at a time
+     */
+    private void streamAll(HttpExchange exchange, String criteria, String query, QueryHandle handle)
+            throws IOException {
+        int[] ids = repository.getSearchIds(criteria, query, handle);
+        if (handle.isCancelled()) {
+            sendError(exchange, 504, "Search timed out");
+            return;
+        }
+        try (Writer out = startJson(exchange, 200)) {
+            out.write('[');
+            boolean first = true;
+            for (int start = 0; start < ids.length; start += STREAM_BATCH) {
+                // The status is already sent - a timeout can only cut the list short
+                if (handle.isCancelled()) {
+                    break;
+                }
+                int[] batch = Arrays.copyOfRange(ids, start, Math.min(start + STREAM_BATCH, ids.length));
+                for (Client client : repository.getClientsByIds(batch)) {
+                    if (client == null) {
+                        continue;
+                    }
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    ClientJson.write(client, out);
+                }
+            }
+            out.write(']');
+        }
+    }
+
+    /**
+     * GET /clients/{id}
+     */
+    private void get(HttpExchange exchange, int id) throws IOException {
+        drain(exchange);
+        Client client = repository.getClientById(id);
+        if (client == null) {
+            sendError(exchange, 404, "Client " + id + " not found");
+            return;
+        }
+        sendClient(exchange, 200, client);
+    }
+
+    /**
+     * POST /clients
+     */
+    private void add(HttpExchange exchange) throws IOException {
+        Map<String, String> members = readMembers(exchange);
+        Client client = members == null ? null : validClient(exchange, members);
+        if (client == null) {
+            return;
+        }
+        repository.addClient(client);
+        if (client.getId() == 0) {
+            sendError(exchange, 500, "Client could not be added");
+            return;
+        }
+        exchange.getResponseHeaders().set("Location", "/clients/" + client.getId());
+        sendClient(exchange, 201, client);
+    }
+
+    /**
+     * PUT /clients/{id}
+     */
+    private void update(HttpExchange exchange, int id) throws IOException {
+        Map<String, String> members = readMembers(exchange);
+        Client client = members == null ? null : validClient(exchange, members);
+        if (client == null) {
+            return;
+        }
+        Integer expectedVersion = expectedVersion(exchange, members);
+        if (expectedVersion == null) {
+            Client current = repository.getClientById(id);
+            if (current == null) {
+                sendError(exchange, 404, "Client " + id + " not found");
+                return;
+            }
+            client.setId(id);
+            repository.updateClient(id, client);
+            // The version the write produced is not known - return the client as it is now
+            Client updated = repository.getClientById(id);
+            sendClient(exchange, 200, updated != null ? updated : client);
+            return;
+        }
+        ClientRepository.WriteResult result = repository.updateClient(id, client, expectedVersion);
+        if (result == ClientRepository.WriteResult.OK) {
+            sendClient(exchange, 200, client);
+        } else {
+            sendWriteError(exchange, id, result);
+        }
+    }
+
+    /**
+     * DELETE /clients/{id}
+     */
+    private void delete(HttpExchange exchange, int id) throws IOException {
+        drain(exchange);
+        Integer expectedVersion = expectedVersion(exchange, null);
+        if (expectedVersion != null) {
+            ClientRepository.WriteResult result = repository.deleteClient(id, expectedVersion);
+            if (result == ClientRepository.WriteResult.OK) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                sendWriteError(exchange, id, result);
+            }
+            return;
+        }
+        if (repository.getClientById(id) == null) {
+            sendError(exchange, 404, "Client " + id + " not found");
+            return;
+        }
+        repository.deleteClient(id);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    /**
+     * Helper method that reads the version a conditional write expects, from an If-Match header
+     * (an ETag sent with the client) or the "version" member of the body
+     * @param members members of the body, or null if the request has none
+     * @return the version, or null for an unconditional write
+     * @throws IllegalArgumentException if the version is not a number
+     */
+    private static Integer expectedVersion(HttpExchange exchange, Map<String, String> members) {
+        String version = exchange.getRequestHeaders().getFirst("If-Match");
+        if (version != null) {
+            version = version.trim();
+            if (version.equals("*")) {
+                return null;
+            }
+            version = version.replaceFirst("^W/", "").replace("\"", "");
+        } else if (members != null) {
+            version = members.get("version");
+        }
+        if (version == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(version.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid client version: " + version);
+        }
+    }
+
+    /**
+     * Helper method that answers a conditional write that was not applied
+     */
+    private static void sendWriteError(HttpExchange exchange, int id, ClientRepository.WriteResult result)
+            throws IOException {
+        switch (result) {
+            case NOT_FOUND:
+                sendError(exchange, 404, "Client " + id + " not found");
+                break;
+            case CONFLICT:
+                // Precondition Failed for If-Match, Conflict for a version in the body
+                int status = exchange.getRequestHeaders().containsKey("If-Match") ? 412 : 409;
+                sendError(exchange, status, "Client " + id + " was changed by another request - " +
+                                            "read it again and retry");
+                break;
+            default:
+                sendError(exchange, 500, "Client " + id + " could not be written");
+        }
+    }
+
+    /**
+     * Helper method that reads the JSON object in a request body
+     * @return the members of the object, or null if an error response was sent
+     * @throws IllegalArgumentException if the body is not a flat JSON object
+     */
+    private Map<String, String> readMembers(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            sendError(exchange, 413, "Request body larger than " + maxBodyBytes + " bytes");
+            return null;
+        }
+        return ClientJson.parseObject(new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Helper method that validates the client in a request body
+     * @param members members of the JSON object in the body
+     * @return the client, or null if an error response was sent
+     */
+    private static Client validClient(HttpExchange exchange, Map<String, String> members)
+            throws IOException {
+        Client client = ClientJson.read(members);
+        int errors = ClientValidator.validate(client);
+        if (errors != ClientValidator.VALID) {
+            StringBuilder json = new StringBuilder("{\"error\":\"Invalid client\",\"errors\":[");
+            boolean first = true;
+            for (ClientValidator.Error error : ClientValidator.errorsOf(errors)) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append("{\"field\":");
+                ClientJson.writeString(error.name(), json);
+                json.append(",\"message\":");
+                ClientJson.writeString(error.getMessage(), json);
+                json.append('}');
+            }
+            sendText(exchange, 400, json.append("]}").toString());
+            return null;
+        }
+        return client;
+    }
+
+    /**
+     * Helper method that checks the parameters of a new search
+     * @throws IllegalArgumentException if the criteria or query is missing or invalid
+     */
+    private static void checkSearch(String criteria, String query) {
+        if (criteria == null || query == null) {
+            throw new IllegalArgumentException("'criteria' and 'q' (or 'token') are required");
+        }
+        boolean valid;
+        switch (criteria) {
+            case "id":
+                valid = parseId(query) > 0;
+                break;
+            case "lastName":
+                valid = ClientValidator.isValidName(query);
+                break;
+            case "clientType":
+                valid = ClientValidator.isValidClientType(query);
+                break;
+            default:
+                throw new IllegalArgumentException("criteria must be id, lastName or clientType");
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid query for criteria " + criteria);
+        }
+    }
+
+    /**
+     * Helper method that reads a request body, up to maxBodyBytes
+     * @return the body, or null if it is too large
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (body.size() + n > maxBodyBytes) {
+                    return null;
+                }
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Helper method that consumes an unused request body, so the connection can be reused
+     */
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) > 0) {
+                // Discard
+            }
+        }
+    }
+
+    /**
+     * Helper method that starts a streamed (chunked) JSON response
+     */
+    private static Writer startJson(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+                                                         StandardCharsets.UTF_8), 8192);
+    }
+
+    private static void sendClient(HttpExchange exchange, int status, Client client)
+            throws IOException {
+        StringBuilder json = new StringBuilder(256);
+        ClientJson.write(client, json);
+        exchange.getResponseHeaders().set("ETag", "\"" + client.getVersion() + "\"");
+        sendText(exchange, status, json.toString());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        ClientJson.writeString(message, json);
+        sendText(exchange, status, json.append('}').toString());
+    }
+
+    /**
+     * Helper method that sends an error unless a (streamed) response was already started, in which
+     * case the response is simply cut short
+     */
+    private static void sendErrorIfPossible(HttpExchange exchange, int status, String message)
+            throws IOException {
+        if (exchange.getResponseCode() == -1) {
+            sendError(exchange, status, message);
+        }
+    }
+
+    private static void methodNotAllowed(HttpExchange exchange, String allowed) throws IOException {
+        drain(exchange);
+        exchange.getResponseHeaders().set("Allow", allowed);
+        sendError(exchange, 405, "Method not allowed");
+    }
+
+    /**
+     * Helper method that sends a complete JSON response with a known length
+     */
+    private static void sendText(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Helper method that parses a client ID from a path segment. Any positive integer is accepted,
+     * as IDs of imported data sets go beyond the 4 digits the GUI search allows.
+     * @return the ID, or -1 if it is not a valid ID
+     */
+    private static int parseId(String segment) {
+        if (segment.isEmpty() || segment.length() > 10) {
+            return -1;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        long id = Long.parseLong(segment);
+        return id <= Integer.MAX_VALUE ? (int) id : -1;
+    }
+
+    /**
+     * Helper method that decodes the parameters of a query string
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                           URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
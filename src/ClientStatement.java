@@ -0,0 +1,147 @@
+import java.util.Collections;
+
+/**
+ * Catalog of every SQL statement the model runs against the Client table. Each entry is prepared
+ * once per connection and cached, and searches can only use the columns listed here, so user input
+ * is never concatenated into SQL.
+ * @author karimbounekhla
+ */
+public enum ClientStatement {
+    SEARCH_BY_ID("SELECT * FROM %s WHERE id = ?"),
+    SEARCH_BY_LAST_NAME("SELECT * FROM %s WHERE lastName = ?"),
+    SEARCH_BY_CLIENT_TYPE("SELECT * FROM %s WHERE clientType = ?"),
+    // Keyset pages: rows after a given ID, in ID order
+    PAGE_BY_ID("SELECT * FROM %s WHERE id = ? AND id > ? ORDER BY id LIMIT ?"),
+    PAGE_BY_LAST_NAME("SELECT * FROM %s WHERE lastName = ? AND id > ? ORDER BY id LIMIT ?"),
+    PAGE_BY_CLIENT_TYPE("SELECT * FROM %s WHERE clientType = ? AND id > ? ORDER BY id LIMIT ?"),
+    // IDs of all matches, streamed in ID order
+    IDS_BY_ID("SELECT id FROM %s WHERE id = ? ORDER BY id"),
+    IDS_BY_LAST_NAME("SELECT id FROM %s WHERE lastName = ? ORDER BY id"),
+    IDS_BY_CLIENT_TYPE("SELECT id FROM %s WHERE clientType = ? ORDER BY id"),
+    // Clients with any of a fixed-size list of IDs
+    SELECT_BY_IDS("SELECT * FROM %s WHERE id IN (" + placeholders(ClientStatement.ID_LIST_SIZE) + ")"),
+    // ID and last name of every client, streamed to build the last name index
+    ALL_LAST_NAMES("SELECT id, lastName FROM %s"),
+    // Every client of an ID range, streamed in ID order for exports
+    SCAN_RANGE("SELECT * FROM %s WHERE id >= ? AND id < ? ORDER BY id"),
+    MAX_ID("SELECT MAX(id) FROM %s"),
+    // Reads at most one row, to tell whether the table is empty without scanning it
+    ANY_ROW("SELECT id FROM %s LIMIT 1"),
+    INSERT("INSERT INTO %s (firstName, lastName, address, postalCode, phoneNumber, clientType) " +
+            "VALUES (?, ?, ?, ?, ?, ?)", true),
+    // Every update advances the row version, so conditional writers notice it
+    UPDATE("UPDATE %s SET firstName = ?, lastName = ?, address = ?, postalCode = ?, " +
+            "phoneNumber = ?, clientType = ?, version = version + 1 WHERE id = ?"),
+    DELETE("DELETE FROM %s WHERE id = ?"),
+    // Compare-and-set writes: they only match the row if nobody changed it since it was read
+    UPDATE_IF_VERSION("UPDATE %s SET firstName = ?, lastName = ?, address = ?, postalCode = ?, " +
+            "phoneNumber = ?, clientType = ?, version = version + 1 WHERE id = ? AND version = ?"),
+    DELETE_IF_VERSION("DELETE FROM %s WHERE id = ? AND version = ?"),
+    // Tells a conflict from a missing row after a compare-and-set write matched nothing
+    VERSION_BY_ID("SELECT version FROM %s WHERE id = ?"),
+    // Set-based bulk writes over a fixed-size list of IDs
+    DELETE_BY_IDS("DELETE FROM %s WHERE id IN (" + placeholders(ClientStatement.BULK_ID_LIST_SIZE) + ")"),
+    UPDATE_TYPE_BY_IDS("UPDATE %s SET clientType = ?, version = version + 1 WHERE id IN (" +
+            placeholders(ClientStatement.BULK_ID_LIST_SIZE) + ")");
+
+    // Number of parameters of SELECT_BY_IDS
+    public static final int ID_LIST_SIZE = 100;
+    // Number of IDs of the bulk writes - far below the 65,535 parameters MySQL allows per statement,
+    // so a statement never grows too large for the server's packet limit
+    public static final int BULK_ID_LIST_SIZE = 1000;
+
+    private final String sqlTemplate;
+    private final boolean returnsGeneratedKeys;
+
+    ClientStatement(String sqlTemplate) {
+        this(sqlTemplate, false);
+    }
+
+    ClientStatement(String sqlTemplate, boolean returnsGeneratedKeys) {
+        this.sqlTemplate = sqlTemplate;
+        this.returnsGeneratedKeys = returnsGeneratedKeys;
+    }
+
+    /**
+     * Returns the SQL of this statement for the given table
+     * @param tableName name of the client table
+     * @return SQL string
+     */
+    public String getSql(String tableName) {
+        return String.format(sqlTemplate, tableName);
+    }
+
+    /**
+     * Returns whether the statement must be prepared to return generated keys
+     * @return true for inserts
+     */
+    public boolean returnsGeneratedKeys() {
+        return returnsGeneratedKeys;
+    }
+
+    /**
+     * Helper method that builds a list of '?' placeholders for an IN clause
+     * @param count number of placeholders
+     * @return comma separated placeholders
+     */
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * Returns the search statement for a search criteria
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @return the matching search statement
+     * @throws IllegalArgumentException if the criteria is not a searchable column
+     */
+    public static ClientStatement forSearchCriteria(String searchCriteria) {
+        switch (searchCriteria) {
+            case "id":
+                return SEARCH_BY_ID;
+            case "lastName":
+                return SEARCH_BY_LAST_NAME;
+            case "clientType":
+                return SEARCH_BY_CLIENT_TYPE;
+            default:
+                throw new IllegalArgumentException("Unknown search criteria: " + searchCriteria);
+        }
+    }
+
+    /**
+     * Returns the keyset page statement for a search criteria
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @return the matching page statement
+     * @throws IllegalArgumentException if the criteria is not a searchable column
+     */
+    public static ClientStatement forPageCriteria(String searchCriteria) {
+        switch (searchCriteria) {
+            case "id":
+                return PAGE_BY_ID;
+            case "lastName":
+                return PAGE_BY_LAST_NAME;
+            case "clientType":
+                return PAGE_BY_CLIENT_TYPE;
+            default:
+                throw new IllegalArgumentException("Unknown search criteria: " + searchCriteria);
+        }
+    }
+
+    /**
+     * Returns the statement selecting the IDs of all matches for a search criteria
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @return the matching ID statement
+     * @throws IllegalArgumentException if the criteria is not a searchable column
+     */
+    public static ClientStatement forIdCriteria(String searchCriteria) {
+        switch (searchCriteria) {
+            case "id":
+                return IDS_BY_ID;
+            case "lastName":
+                return IDS_BY_LAST_NAME;
+            case "clientType":
+                return IDS_BY_CLIENT_TYPE;
+            default:
+                throw new IllegalArgumentException("Unknown search criteria: " + searchCriteria);
+        }
+    }
+}
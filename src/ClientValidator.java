@@ -0,0 +1,226 @@
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Validation rules for client information, independent of any user interface. Every check is a
+ * hand-written scan of the characters - no regular expressions and no allocation - so it can be
+ * run on every row of an import or every request of a server. Results are bitmasks of Error codes
+ * (0 when valid), which callers turn into dialogs, reject files or HTTP responses.
+ * @author karimbounekhla
+ */
+public final class ClientValidator {
+    public static final int MAX_NAME_LENGTH = 20;
+    public static final int MAX_ADDRESS_LENGTH = 50;
+    public static final int MAX_ID_DIGITS = 4;
+    // Bulk validation below this many rows is not worth splitting across threads
+    private static final int PARALLEL_THRESHOLD = 10_000;
+
+    /**
+     * Validation errors, in the order they are reported to users
+     */
+    public enum Error {
+        FIRST_NAME("First and/or Last Names cannot be empty and must be less than 20 characters"),
+        LAST_NAME("First and/or Last Names cannot be empty and must be less than 20 characters"),
+        ADDRESS("Address cannot be empty and must be less than 50 characters"),
+        PHONE_NUMBER("Phone Number cannot be empty and must be in the format: 123-456-7890"),
+        POSTAL_CODE("Postal Code cannot be empty and must be in the format A1A 1A1 where A is any " +
+                "letter and 1 is any digit"),
+        CLIENT_TYPE("Client Type must be 1 character; either 'R' (Residential) or 'C' (Commercial)."),
+        ID("ID cannot be empty, and must contain only digits (up to 4)");
+
+        private final String message;
+
+        Error(String message) {
+            this.message = message;
+        }
+
+        /**
+         * Returns the bit of this error in a validation result
+         * @return the bitmask
+         */
+        public int mask() {
+            return 1 << ordinal();
+        }
+
+        /**
+         * Returns the message shown to users for this error
+         * @return the message
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    public static final int VALID = 0;
+
+    private ClientValidator() {
+    }
+
+    /**
+     * Validates every field of a client
+     * @return bitmask of the Error codes found, VALID if there are none
+     */
+    public static int validate(String firstName, String lastName, String address, String postalCode,
+                               String phoneNumber, String clientType) {
+        int errors = VALID;
+        if (!isValidName(firstName)) {
+            errors |= Error.FIRST_NAME.mask();
+        }
+        if (!isValidName(lastName)) {
+            errors |= Error.LAST_NAME.mask();
+        }
+        if (!isValidAddress(address)) {
+            errors |= Error.ADDRESS.mask();
+        }
+        if (!isValidPhoneNumber(phoneNumber)) {
+            errors |= Error.PHONE_NUMBER.mask();
+        }
+        if (!isValidPostalCode(postalCode)) {
+            errors |= Error.POSTAL_CODE.mask();
+        }
+        if (!isValidClientType(clientType)) {
+            errors |= Error.CLIENT_TYPE.mask();
+        }
+        return errors;
+    }
+
+    /**
+     * Validates every field of a client (the ID is not checked)
+     * @param client the client
+     * @return bitmask of the Error codes found, VALID if there are none
+     */
+    public static int validate(Client client) {
+        return validate(client.getFirstName(), client.getLastName(), client.getAddress(),
+                        client.getPostalCode(), client.getPhoneNumber(), client.getClientType());
+    }
+
+    /**
+     * Validates a list of clients, in parallel for large lists
+     * @param clients the clients
+     * @return validation result of every client, in the same order
+     */
+    public static int[] validateAll(List<Client> clients) {
+        int[] results = new int[clients.size()];
+        IntStream rows = IntStream.range(0, results.length);
+        if (results.length >= PARALLEL_THRESHOLD) {
+            rows = rows.parallel();
+        }
+        rows.forEach(i -> results[i] = validate(clients.get(i)));
+        return results;
+    }
+
+    /**
+     * Counts the invalid entries of a bulk validation result
+     * @param results result of validateAll()
+     * @return number of results that are not VALID
+     */
+    public static int countInvalid(int[] results) {
+        int count = 0;
+        for (int result : results) {
+            if (result != VALID) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the errors in a validation result
+     * @param errors bitmask returned by validate()
+     * @return the set of errors (empty if valid)
+     */
+    public static Set<Error> errorsOf(int errors) {
+        EnumSet<Error> set = EnumSet.noneOf(Error.class);
+        for (Error error : Error.values()) {
+            if ((errors & error.mask()) != 0) {
+                set.add(error);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Returns the error reported first for a validation result
+     * @param errors bitmask returned by validate()
+     * @return the first error, or null if valid
+     */
+    public static Error firstError(int errors) {
+        return errors == VALID ? null : Error.values()[Integer.numberOfTrailingZeros(errors)];
+    }
+
+    /**
+     * Checks a first or last name: 1 to 20 characters
+     */
+    public static boolean isValidName(String name) {
+        return name != null && name.length() > 0 && name.length() <= MAX_NAME_LENGTH;
+    }
+
+    /**
+     * Checks an address: 1 to 50 characters
+     */
+    public static boolean isValidAddress(String address) {
+        return address != null && address.length() > 0 && address.length() <= MAX_ADDRESS_LENGTH;
+    }
+
+    /**
+     * Checks a phone number in the format 123-456-7890
+     */
+    public static boolean isValidPhoneNumber(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() != 12) {
+            return false;
+        }
+        for (int i = 0; i < 12; i++) {
+            char c = phoneNumber.charAt(i);
+            if (i == 3 || i == 7 ? c != '-' : !isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a postal code in the format A1A 1A1, where A is any letter and 1 is any digit
+     */
+    public static boolean isValidPostalCode(String postalCode) {
+        if (postalCode == null || postalCode.length() != 7) {
+            return false;
+        }
+        return isLetter(postalCode.charAt(0)) && isDigit(postalCode.charAt(1))
+                && isLetter(postalCode.charAt(2)) && postalCode.charAt(3) == ' '
+                && isDigit(postalCode.charAt(4)) && isLetter(postalCode.charAt(5))
+                && isDigit(postalCode.charAt(6));
+    }
+
+    /**
+     * Checks a client type: 'R' (Residential) or 'C' (Commercial)
+     */
+    public static boolean isValidClientType(String clientType) {
+        return clientType != null && clientType.length() == 1
+                && (clientType.charAt(0) == 'R' || clientType.charAt(0) == 'C');
+    }
+
+    /**
+     * Checks a client ID given as text: 1 to 4 digits
+     */
+    public static boolean isValidId(String id) {
+        if (id == null || id.length() == 0 || id.length() > MAX_ID_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!isDigit(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+}
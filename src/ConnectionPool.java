@@ -0,0 +1,418 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of JDBC connections shared by all threads using the model. Connections that sat
+ * idle for longer than the validation threshold are validated when borrowed, and connections held
+ * for longer than the leak threshold are reported. The place a connection was borrowed from is
+ * captured for a sample of the borrows, and for every borrow once a leak was seen.
+ * @author karimbounekhla
+ */
+public class ConnectionPool {
+    // Seconds to wait for Connection.isValid() when validating a borrowed connection
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    // Connections idle for less than this are handed out without a validation round trip
+    public static final long DEFAULT_VALIDATION_IDLE_MILLIS = 5000;
+    // One borrow in this many captures its stack while no leak has been seen
+    private static final int BORROW_SITE_SAMPLE = 64;
+
+    private final String connectionInfo, login, password;
+    private final int minSize, maxSize, statementCacheSize;
+    private final long borrowTimeoutMillis, leakThresholdMillis, validationIdleNanos;
+    // Wraps new connections to trace their SQL, if set
+    private final QueryTracer tracer;
+
+    // Idle connections (most recently used first) and connections currently borrowed
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> leased = ConcurrentHashMap.newKeySet();
+    // One permit per connection that may be borrowed - bounds the pool to 'maxSize'
+    private final Semaphore permits;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    // Null when leak detection is turned off
+    private final ScheduledExecutorService leakDetector;
+    private volatile boolean closed;
+
+    // Statistics
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+
+    /**
+     * Constructor that opens the minimum number of connections and starts leak detection.
+     * @param connectionInfo JDBC connection URL
+     * @param login database user
+     * @param password database password
+     * @param minSize number of connections opened up front
+     * @param maxSize maximum number of connections open at the same time
+     * @param borrowTimeoutMillis maximum time to wait for a free connection
+     * @param leakThresholdMillis time after which a borrowed connection is reported as leaked
+     * @param statementCacheSize number of prepared statements cached per connection
+     * @throws SQLException if the initial connections could not be opened
+     */
+    public ConnectionPool(String connectionInfo, String login, String password, int minSize,
+                          int maxSize, long borrowTimeoutMillis, long leakThresholdMillis,
+                          int statementCacheSize) throws SQLException {
+        this(connectionInfo, login, password, minSize, maxSize, borrowTimeoutMillis,
+             leakThresholdMillis, statementCacheSize, null);
+    }
+
+    /**
+     * Constructor that opens the minimum number of connections, tracing the SQL run on them, and
+     * starts leak detection.
+     * @param connectionInfo JDBC connection URL
+     * @param login database user
+     * @param password database password
+     * @param minSize number of connections opened up front
+     * @param maxSize maximum number of connections open at the same time
+     * @param borrowTimeoutMillis maximum time to wait for a free connection
+     * @param leakThresholdMillis time after which a borrowed connection is reported as leaked
+     * @param statementCacheSize number of prepared statements cached per connection
+     * @param tracer tracer every connection is wrapped with, or null to not trace
+     * @throws SQLException if the initial connections could not be opened
+     */
+    public ConnectionPool(String connectionInfo, String login, String password, int minSize,
+                          int maxSize, long borrowTimeoutMillis, long leakThresholdMillis,
+                          int statementCacheSize, QueryTracer tracer) throws SQLException {
+        this(connectionInfo, login, password, minSize, maxSize, borrowTimeoutMillis,
+             leakThresholdMillis, statementCacheSize, DEFAULT_VALIDATION_IDLE_MILLIS, tracer);
+    }
+
+    /**
+     * Constructor that opens the minimum number of connections, tracing the SQL run on them, and
+     * starts leak detection.
+     * @param connectionInfo JDBC connection URL
+     * @param login database user
+     * @param password database password
+     * @param minSize number of connections opened up front
+     * @param maxSize maximum number of connections open at the same time
+     * @param borrowTimeoutMillis maximum time to wait for a free connection
+     * @param leakThresholdMillis time after which a borrowed connection is reported as leaked, or 0
+     *                            to turn leak detection off
+     * @param statementCacheSize number of prepared statements cached per connection
+     * @param validationIdleMillis idle time after which a connection is validated before it is
+     *                             handed out (0 to validate on every borrow)
+     * @param tracer tracer every connection is wrapped with, or null to not trace
+     * @throws SQLException if the initial connections could not be opened
+     */
+    public ConnectionPool(String connectionInfo, String login, String password, int minSize,
+                          int maxSize, long borrowTimeoutMillis, long leakThresholdMillis,
+                          int statementCacheSize, long validationIdleMillis, QueryTracer tracer)
+            throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.connectionInfo = connectionInfo;
+        this.login = login;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.validationIdleNanos = TimeUnit.MILLISECONDS.toNanos(validationIdleMillis);
+        this.tracer = tracer;
+        permits = new Semaphore(maxSize, true);
+
+        for (int i = 0; i < minSize; i++) {
+            idle.offerLast(openConnection());
+        }
+
+        if (leakThresholdMillis <= 0) {
+            leakDetector = null;
+            return;
+        }
+        leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-leak-detector");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, leakThresholdMillis / 2);
+        leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting up to the borrow timeout for one to become free.
+     * The returned connection must be closed to give it back to the pool.
+     * @return a connection that was validated, or used successfully a short time ago
+     * @throws SQLException if the pool is closed, the wait timed out or a connection could not be opened
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.increment();
+                throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis
+                        + " ms waiting for a database connection (" + this + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pc;
+            // Reuse a valid idle connection if possible, otherwise open a new one
+            while ((pc = idle.pollFirst()) != null) {
+                if (System.nanoTime() - pc.getReleasedAt() < validationIdleNanos || isValid(pc)) {
+                    break;
+                }
+                discard(pc);
+            }
+            if (pc == null) {
+                pc = openConnection();
+            }
+            pc.markBorrowed(captureBorrowSite());
+            leased.add(pc);
+            borrowCount.increment();
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Called by PooledConnection.close().
+     * @param pc the borrowed connection
+     */
+    void release(PooledConnection pc) {
+        // Ignore connections that were already returned
+        if (!leased.remove(pc)) {
+            return;
+        }
+
+        try {
+            Connection conn = pc.getConnection();
+            if (closed || conn.isClosed()) {
+                discard(pc);
+                return;
+            }
+            // Never hand out a connection with an open transaction
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            pc.markReleased();
+            idle.offerFirst(pc);
+        } catch (SQLException e) {
+            discard(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops leak detection. Borrowed connections are closed when
+     * they are returned.
+     */
+    public void close() {
+        closed = true;
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+    }
+
+    /**
+     * Returns the number of connections currently borrowed
+     * @return active connection count
+     */
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    /**
+     * Returns the number of open connections waiting in the pool
+     * @return idle connection count
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of open physical connections (borrowed and idle)
+     * @return total connection count
+     */
+    public int getTotalCount() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Returns the maximum number of connections of the pool
+     * @return maximum pool size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the minimum number of connections of the pool
+     * @return minimum pool size
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Returns the approximate number of threads waiting for a connection
+     * @return waiting thread count
+     */
+    public int getWaitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Returns the total number of successful borrows
+     * @return borrow count
+     */
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * Returns the number of borrows that failed because no connection became free in time
+     * @return timeout count
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * Returns the number of connections reported as leaked
+     * @return leak count
+     */
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    /**
+     * Returns the average time spent waiting for a connection
+     * @return average wait time in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long borrows = borrowCount.sum();
+        return borrows == 0 ? 0 : totalWaitNanos.sum() / (borrows * 1_000_000.0);
+    }
+
+    /**
+     * Returns the longest time spent waiting for a connection
+     * @return maximum wait time in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d, idle=%d, total=%d/%d, waiting=%d, avgWait=%.2fms, maxWait=%.2fms",
+                getActiveCount(), getIdleCount(), getTotalCount(), maxSize, getWaitingThreads(),
+                getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    /**
+     * Helper method that opens a new physical connection
+     * @return the new pooled connection
+     * @throws SQLException if the connection could not be opened
+     */
+    private PooledConnection openConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(connectionInfo, login, password);
+        if (tracer != null) {
+            conn = tracer.wrap(conn);
+        }
+        totalConnections.incrementAndGet();
+        return new PooledConnection(this, conn, statementCacheSize);
+    }
+
+    /**
+     * Helper method that checks whether an idle connection is still usable
+     * @param pc the connection to validate
+     * @return true if the connection is valid
+     */
+    private boolean isValid(PooledConnection pc) {
+        try {
+            return pc.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Helper method that decides whether a borrow captures its stack for leak reports: never
+     * without leak detection, for a sample of the borrows until a leak is seen, then always
+     * @return true to capture the borrow site
+     */
+    private boolean captureBorrowSite() {
+        if (leakDetector == null) {
+            return false;
+        }
+        return leakCount.sum() > 0 || ThreadLocalRandom.current().nextInt(BORROW_SITE_SAMPLE) == 0;
+    }
+
+    /**
+     * Helper method that closes a connection and removes it from the pool
+     * @param pc the connection to discard
+     */
+    private void discard(PooledConnection pc) {
+        totalConnections.decrementAndGet();
+        pc.closeQuietly();
+    }
+
+    /**
+     * Helper method that updates the wait time statistics
+     * @param waitNanos time spent waiting for a connection
+     */
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.add(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reports connections that have been borrowed for longer than the leak threshold. Each
+     * connection is reported once per borrow.
+     */
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pc : leased) {
+            long heldFor = now - pc.getBorrowedAt();
+            if (heldFor > leakThresholdMillis && !pc.isLeakReported()) {
+                pc.setLeakReported();
+                leakCount.increment();
+                System.err.println("Possible connection leak: connection held for " + heldFor + " ms");
+                Throwable borrowSite = pc.getBorrowSite();
+                if (borrowSite != null) {
+                    borrowSite.printStackTrace();
+                } else {
+                    System.err.println("(borrow site not sampled - later borrows are all captured)");
+                }
+            }
+        }
+    }
+}
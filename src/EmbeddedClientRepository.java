@@ -0,0 +1,46 @@
+/**
+ * Client repository stored in an embedded database running inside the application, so no database
+ * server has to be installed. It is the JDBC model pointed at an embedded JDBC URL: the schema,
+ * statements, connection pool and caches are the same as for MySQL. The embedded database driver
+ * (H2 by default, in MySQL compatibility mode) must be on the classpath.
+ * @author karimbounekhla
+ */
+public class EmbeddedClientRepository extends CMSModel {
+    // Database files are created next to the application on first start
+    public static final String DEFAULT_URL = "jdbc:h2:./cmsdb;MODE=MySQL",
+            DEFAULT_LOGIN = "sa",
+            DEFAULT_PASSWORD = "";
+
+    /**
+     * Constructor that opens the default embedded database
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     */
+    public EmbeddedClientRepository(String dataFile) {
+        this(DEFAULT_URL, DEFAULT_LOGIN, DEFAULT_PASSWORD, dataFile);
+    }
+
+    /**
+     * Constructor that opens an embedded database
+     * @param connectionInfo JDBC connection URL of the embedded database
+     * @param login database user
+     * @param password database password
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     */
+    public EmbeddedClientRepository(String connectionInfo, String login, String password,
+                                    String dataFile) {
+        super(connectionInfo, login, password, dataFile);
+    }
+
+    /**
+     * Constructor that opens an embedded database with tuned pool, cache and tracing settings
+     * @param connectionInfo JDBC connection URL of the embedded database
+     * @param login database user
+     * @param password database password
+     * @param dataFile file used to fill an empty table, or null to leave it empty
+     * @param settings the settings
+     */
+    public EmbeddedClientRepository(String connectionInfo, String login, String password,
+                                    String dataFile, Settings settings) {
+        super(connectionInfo, login, password, dataFile, settings);
+    }
+}
@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client repository that keeps every client in memory, for single-node use and tests where no
+ * database server is available. Clients are held in a concurrent map sorted by ID, so reads never
+ * block and results come out in ID order like the database queries. Last name searches use the
+ * in-memory last name index. Nothing is persisted - the data file is loaded on every start.
+ * @author karimbounekhla
+ */
+public class InMemoryClientRepository implements ClientRepository {
+    // Stored copies of the clients by ID
+    private final ConcurrentSkipListMap<Integer, Client> clients = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final LastNameIndex lastNameIndex = new LastNameIndex();
+    // Writers hold this lock so a client and its last name index entry change together
+    private final Object writeLock = new Object();
+    // Change events are fired while the write lock is held, so listeners see them in write order
+    private final ClientChangeSupport changes = new ClientChangeSupport();
+
+    /**
+     * Constructor that creates an empty repository
+     */
+    public InMemoryClientRepository() {
+    }
+
+    /**
+     * Constructor that fills the repository from a data file (one 'first;last;address;postal code;
+     * phone;type' line per client)
+     * @param dataFile file containing client information, or null to start empty
+     */
+    public InMemoryClientRepository(String dataFile) {
+        if (dataFile != null) {
+            ClientImporter.fill(this, dataFile);
+        }
+    }
+
+    @Override
+    public LastNameIndex.PrefixMatch getLastNamePrefixMatches(String prefix, int limit) {
+        return lastNameIndex.find(prefix, limit);
+    }
+
+    @Override
+    public Client getClientById(int id) {
+        Client client = clients.get(id);
+        return client == null ? null : client.copy();
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery) {
+        return getSearchResults(searchCriteria, searchQuery, new QueryHandle());
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery,
+                                              QueryHandle handle) {
+        int[] ids = getSearchIds(searchCriteria, searchQuery, handle);
+        ArrayList<Client> searchResults = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Client client = getClientById(id);
+            if (client != null) {
+                searchResults.add(client);
+            }
+        }
+        return searchResults;
+    }
+
+    @Override
+    public SearchPage getSearchPage(String searchCriteria, String searchQuery, int pageSize,
+                                    QueryHandle handle) {
+        return getSearchPage(searchCriteria, searchQuery, 0, pageSize, handle);
+    }
+
+    @Override
+    public SearchPage getNextPage(String continuationToken, int pageSize, QueryHandle handle) {
+        SearchPage.Token token = SearchPage.Token.parse(continuationToken);
+        return getSearchPage(token.getSearchCriteria(), token.getSearchQuery(), token.getAfterId(),
+                             pageSize, handle);
+    }
+
+    /**
+     * Helper method that returns the matches with an ID greater than 'afterId'
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery Search query
+     * @param afterId ID of the last client of the previous page (0 for the first page)
+     * @param pageSize maximum number of clients on the page
+     * @param handle handle used to cancel the search
+     * @return the page of matches
+     */
+    private SearchPage getSearchPage(String searchCriteria, String searchQuery, int afterId,
+                                     int pageSize, QueryHandle handle) {
+        int[] ids = getSearchIds(searchCriteria, searchQuery, handle);
+        return SearchPage.fromIds(searchCriteria, searchQuery, ids, afterId, pageSize,
+                                  this::getClientById);
+    }
+
+    @Override
+    public int[] getSearchIds(String searchCriteria, String searchQuery, QueryHandle handle) {
+        int[] ids;
+        switch (searchCriteria) {
+            case "id":
+                try {
+                    int id = Integer.parseInt(searchQuery.trim());
+                    ids = clients.containsKey(id) ? new int[] {id} : new int[0];
+                } catch (NumberFormatException e) {
+                    ids = new int[0];
+                }
+                break;
+            case "lastName":
+                ids = lastNameIndex.findExact(searchQuery);
+                break;
+            case "clientType":
+                ids = scanClientType(searchQuery, handle);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown search criteria: " + searchCriteria);
+        }
+        return handle.isCancelled() ? new int[0] : ids;
+    }
+
+    @Override
+    public Client[] getClientsByIds(int[] ids) {
+        Client[] result = new Client[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = getClientById(ids[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public void addClient(Client client) {
+        synchronized (writeLock) {
+            if (insert(client)) {
+                lastNameIndex.put(client.getId(), client.getLastName());
+                changes.fireAdded(new Client[] {client}, 1);
+            }
+        }
+    }
+
+    @Override
+    public boolean updateClient(int id, Client client) {
+        synchronized (writeLock) {
+            if (!replace(id, client)) {
+                return false;
+            }
+            changes.fireUpdated(new Client[] {clients.get(id)}, 1);
+            return true;
+        }
+    }
+
+    @Override
+    public WriteResult updateClient(int id, Client client, int expectedVersion) {
+        synchronized (writeLock) {
+            WriteResult result = checkVersion(id, expectedVersion);
+            if (result != WriteResult.OK) {
+                return result;
+            }
+            if (!replace(id, client)) {
+                return WriteResult.ERROR;
+            }
+            client.setId(id);
+            client.setVersion(expectedVersion + 1);
+            changes.fireUpdated(new Client[] {client}, 1);
+            return WriteResult.OK;
+        }
+    }
+
+    @Override
+    public boolean deleteClient(int id) {
+        synchronized (writeLock) {
+            if (!remove(id)) {
+                return false;
+            }
+            changes.fireDeleted(new int[] {id}, 1);
+            return true;
+        }
+    }
+
+    @Override
+    public WriteResult deleteClient(int id, int expectedVersion) {
+        synchronized (writeLock) {
+            WriteResult result = checkVersion(id, expectedVersion);
+            if (result == WriteResult.OK) {
+                remove(id);
+                changes.fireDeleted(new int[] {id}, 1);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean[] addClients(List<Client> clientList) {
+        boolean[] success = new boolean[clientList.size()];
+        int[] addedIds = new int[success.length];
+        String[] addedNames = new String[success.length];
+        Client[] addedClients = new Client[success.length];
+        int added = 0;
+        synchronized (writeLock) {
+            for (int i = 0; i < success.length; i++) {
+                success[i] = insert(clientList.get(i));
+                if (success[i]) {
+                    addedIds[added] = clientList.get(i).getId();
+                    addedClients[added] = clientList.get(i);
+                    addedNames[added++] = clientList.get(i).getLastName();
+                }
+            }
+            lastNameIndex.putAll(addedIds, addedNames, added);
+            changes.fireAdded(addedClients, added);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean[] updateClients(List<Client> clientList) {
+        boolean[] success = new boolean[clientList.size()];
+        Client[] updatedClients = new Client[success.length];
+        int updated = 0;
+        synchronized (writeLock) {
+            for (int i = 0; i < success.length; i++) {
+                success[i] = replace(clientList.get(i).getId(), clientList.get(i));
+                if (success[i]) {
+                    updatedClients[updated++] = clients.get(clientList.get(i).getId());
+                }
+            }
+            changes.fireUpdated(updatedClients, updated);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean[] deleteClients(List<Integer> ids) {
+        boolean[] success = new boolean[ids.size()];
+        int[] deletedIds = new int[success.length];
+        int deleted = 0;
+        synchronized (writeLock) {
+            for (int i = 0; i < success.length; i++) {
+                success[i] = remove(ids.get(i));
+                if (success[i]) {
+                    deletedIds[deleted++] = ids.get(i);
+                }
+            }
+            changes.fireDeleted(deletedIds, deleted);
+        }
+        return success;
+    }
+
+    @Override
+    public int deleteClientsByIds(int[] ids) {
+        int[] deletedIds = new int[ids.length];
+        int deleted = 0;
+        synchronized (writeLock) {
+            for (int id : ids) {
+                if (remove(id)) {
+                    deletedIds[deleted++] = id;
+                }
+            }
+            changes.fireDeleted(deletedIds, deleted);
+        }
+        return deleted;
+    }
+
+    @Override
+    public int updateClientTypes(int[] ids, String clientType) {
+        if (clientType == null) {
+            return -1;
+        }
+        Client[] updatedClients = new Client[ids.length];
+        int updated = 0;
+        synchronized (writeLock) {
+            for (int id : Arrays.stream(ids).distinct().toArray()) {
+                Client client = clients.get(id);
+                if (client != null) {
+                    Client changed = client.copy();
+                    changed.updateInfo(client.getFirstName(), client.getLastName(), client.getAddress(),
+                                       client.getPostalCode(), client.getPhoneNumber(), clientType);
+                    replace(id, changed);
+                    updatedClients[updated++] = clients.get(id);
+                }
+            }
+            changes.fireUpdated(updatedClients, updated);
+        }
+        return updated;
+    }
+
+    @Override
+    public long scanClients(int fromId, int toId, ClientVisitor visitor) throws IOException {
+        long count = 0;
+        // The map iterators are weakly consistent, so writers are never blocked by a scan
+        for (Client client : clients.subMap(fromId, true, toId, false).values()) {
+            count++;
+            if (!visitor.visit(client.copy())) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getMaxId() {
+        Map.Entry<Integer, Client> last = clients.lastEntry();
+        return last == null ? 0 : last.getKey();
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changes.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        changes.removeListener(listener);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    /**
+     * Helper method that stores a new client and assigns its ID. The caller adds it to the last
+     * name index. Must hold the write lock.
+     * @param client the client
+     * @return false if the client is missing a field (like a NOT NULL column in the database)
+     */
+    private boolean insert(Client client) {
+        if (!isComplete(client)) {
+            return false;
+        }
+        client.setId(nextId.getAndIncrement());
+        client.setVersion(0);
+        clients.put(client.getId(), client.copy());
+        return true;
+    }
+
+    /**
+     * Helper method that replaces a stored client. Must hold the write lock.
+     * @param id ID of the client
+     * @param client updated information
+     * @return false if no client has this ID or the client is missing a field
+     */
+    private boolean replace(int id, Client client) {
+        Client current = clients.get(id);
+        if (current == null || !isComplete(client)) {
+            return false;
+        }
+        Client updated = client.copy();
+        updated.setId(id);
+        updated.setVersion(current.getVersion() + 1);
+        clients.put(id, updated);
+        lastNameIndex.put(id, updated.getLastName());
+        return true;
+    }
+
+    /**
+     * Helper method that compares the version of a stored client with the version a writer read.
+     * Must hold the write lock.
+     * @param id ID of the client
+     * @param expectedVersion version the writer read
+     * @return OK if the versions match, CONFLICT or NOT_FOUND otherwise
+     */
+    private WriteResult checkVersion(int id, int expectedVersion) {
+        Client current = clients.get(id);
+        if (current == null) {
+            return WriteResult.NOT_FOUND;
+        }
+        return current.getVersion() == expectedVersion ? WriteResult.OK : WriteResult.CONFLICT;
+    }
+
+    /**
+     * Helper method that removes a stored client. Must hold the write lock.
+     * @param id ID of the client
+     * @return false if no client has this ID
+     */
+    private boolean remove(int id) {
+        if (clients.remove(id) == null) {
+            return false;
+        }
+        lastNameIndex.remove(id);
+        return true;
+    }
+
+    /**
+     * Helper method that scans every client for a client type (ignoring case, like the database)
+     * @param clientType the client type
+     * @param handle handle used to cancel the scan
+     * @return matching IDs in ascending order
+     */
+    private int[] scanClientType(String clientType, QueryHandle handle) {
+        int[] ids = new int[64];
+        int count = 0;
+        for (Map.Entry<Integer, Client> entry : clients.entrySet()) {
+            if (handle.isCancelled()) {
+                break;
+            }
+            if (entry.getValue().getClientType().equalsIgnoreCase(clientType)) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = entry.getKey();
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Helper method that checks that every field of a client is set
+     */
+    private static boolean isComplete(Client client) {
+        return client.getFirstName() != null && client.getLastName() != null
+                && client.getAddress() != null && client.getPostalCode() != null
+                && client.getPhoneNumber() != null && client.getClientType() != null;
+    }
+}
@@ -1,7 +1,6 @@
-import java.util.regex.Pattern;
-
 /**
- * Helper class to verify validity of User Input, using basic methods and RegEx.
+ * Helper class to verify validity of User Input. The checks themselves are done by ClientValidator;
+ * this class shows the error messages of failed checks in the CMS View.
  * @author karimbounekhla
  */
 public class InputVerify {
@@ -21,13 +20,7 @@ public class InputVerify {
      * @return true if invalid, false if valid
      */
     public boolean isInvalidType(String clientType) {
-        if (clientType.length() > 1 || !(clientType.equals("R") || clientType.equals("C"))) {
-            System.out.println("ver" + clientType);
-            cms.errorMessage(cms, "Client Type must be 1 character; either 'R' (Residential) " +
-                    "or 'C' (Commercial).");
-            return true;
-        }
-        return false;
+        return report(ClientValidator.isValidClientType(clientType), ClientValidator.Error.CLIENT_TYPE);
     }
 
     /**
@@ -37,11 +30,8 @@ public class InputVerify {
      * @return true if invalid, false is valid
      */
     public boolean isInvalidName(String firstN, String lastN) {
-        if (firstN.length() == 0 || firstN.length() > 20 || lastN.length() == 0 || lastN.length() > 20) {
-            cms.errorMessage(cms, "First and/or Last Names cannot be empty and must be less than 20 characters");
-            return true;
-        }
-        return false;
+        return report(ClientValidator.isValidName(firstN) && ClientValidator.isValidName(lastN),
+                      ClientValidator.Error.FIRST_NAME);
     }
 
     /**
@@ -50,11 +40,7 @@ public class InputVerify {
      * @return true if invalid, false is valid
      */
     public boolean isInvalidAddress(String address) {
-        if (address.length() == 0 || address.length() > 50) {
-            cms.errorMessage(cms, "Address cannot be empty and must be less than 50 characters");
-            return true;
-        }
-        return false;
+        return report(ClientValidator.isValidAddress(address), ClientValidator.Error.ADDRESS);
     }
 
     /**
@@ -63,12 +49,7 @@ public class InputVerify {
      * @return true if invalid, false is valid
      */
     public boolean isInvalidPhone(String phoneNum) {
-        Pattern phonePattern = Pattern.compile("^\\d{3}-\\d{3}-\\d{4}$");
-        if (phoneNum.length() > 13 || !phonePattern.matcher(phoneNum).matches()) {
-            cms.errorMessage(cms, "Phone Number cannot be empty and must be in the format: 123-456-7890");
-            return true;
-        }
-        return false;
+        return report(ClientValidator.isValidPhoneNumber(phoneNum), ClientValidator.Error.PHONE_NUMBER);
     }
 
     /**
@@ -78,26 +59,59 @@ public class InputVerify {
      * @return true if invalid, false is valid
      */
     public boolean isInvalidPostalCode(String postalCode) {
-        Pattern postalPattern = Pattern.compile("^[A-Za-z]\\d[A-Za-z] \\d[A-Za-z]\\d$");
-        if (postalCode.length() > 7 || !postalPattern.matcher(postalCode).matches()) {
-            cms.errorMessage(cms, "Postal Code cannot be empty and must be in the format A1A 1A1 where A is any letter" +
-                    " and 1 is any digit");
-            return true;
+        return report(ClientValidator.isValidPostalCode(postalCode), ClientValidator.Error.POSTAL_CODE);
+    }
+
+    /**
+     * Method to check if all the information of a client is valid. Only the first error is shown.
+     * @return true if invalid, false if valid
+     */
+    public boolean isInvalidClient(String firstName, String lastName, String address,
+                                   String postalCode, String phoneNumber, String clientType) {
+        int errors = ClientValidator.validate(firstName, lastName, address, postalCode,
+                                              phoneNumber, clientType);
+        return report(errors == ClientValidator.VALID, ClientValidator.firstError(errors));
+    }
+
+    /**
+     * Method to check, without displaying any message, whether a search query is complete enough
+     * to be run while the user is still typing
+     * @param criteria search criteria ('id', 'lastName' or 'clientType')
+     * @param query search query
+     * @return true if the query can be searched
+     */
+    public boolean isSearchable(String criteria, String query) {
+        switch (criteria) {
+            case "id":
+                return ClientValidator.isValidId(query);
+            case "lastName":
+                return ClientValidator.isValidName(query);
+            case "clientType":
+                return ClientValidator.isValidClientType(query);
+            default:
+                return false;
         }
-        return false;
     }
 
     /**
      * Method to check if the ID is valid (4 or less digits)
      * @param id id
-     * @return
+     * @return true if invalid, false if valid
      */
     public boolean isInvalidID(String id) {
-        Pattern IDPattern = Pattern.compile("^[0-9]+$");
-        if (id.length() <= 4 && IDPattern.matcher(id).matches()) {
-            return false;
+        return report(ClientValidator.isValidId(id), ClientValidator.Error.ID);
+    }
+
+    /**
+     * Helper method that shows the message of an error if a check failed
+     * @param valid result of the check
+     * @param error error reported if the check failed
+     * @return true if invalid, false if valid
+     */
+    private boolean report(boolean valid, ClientValidator.Error error) {
+        if (!valid) {
+            cms.errorMessage(cms, error.getMessage());
         }
-        cms .errorMessage(cms, "ID cannot be empty, and must contain only digits (up to 4)");
-        return true;
+        return !valid;
     }
 }
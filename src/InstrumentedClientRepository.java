@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client repository decorator that measures every call to another repository: latency, rows
+ * returned or written, errors and calls in progress, per operation (see ClientMetrics). Searches are
+ * measured separately for each search criteria. The backends report failures by returning empty
+ * results rather than throwing, so besides exceptions, errors counted here are the rows refused by
+ * bulk writes and clients that were not given an ID by addClient. Conditional writes that hit a
+ * conflict or a missing client are not errors - they are counted as calls that wrote no row.
+ * @author karimbounekhla
+ */
+public class InstrumentedClientRepository implements ClientRepository {
+    private final ClientRepository repository;
+    private final OperationMetrics prefixMatches, getById, nextPage, getByIds, add, update, delete,
+            conditionalUpdate, conditionalDelete, addBatch, updateBatch, deleteBatch, deleteByIds,
+            updateTypes, scan, maxId;
+    private final CriteriaMetrics search, searchPage, searchIds;
+
+    /**
+     * Constructor
+     * @param repository the repository that does the work
+     * @param metrics registry the measurements are recorded in
+     */
+    public InstrumentedClientRepository(ClientRepository repository, ClientMetrics metrics) {
+        this.repository = repository;
+        prefixMatches = metrics.operation("lastNamePrefix");
+        getById = metrics.operation("getClientById");
+        nextPage = metrics.operation("nextPage");
+        getByIds = metrics.operation("getClientsByIds");
+        add = metrics.operation("add");
+        update = metrics.operation("update");
+        delete = metrics.operation("delete");
+        conditionalUpdate = metrics.operation("conditionalUpdate");
+        conditionalDelete = metrics.operation("conditionalDelete");
+        addBatch = metrics.operation("addBatch");
+        updateBatch = metrics.operation("updateBatch");
+        deleteBatch = metrics.operation("deleteBatch");
+        deleteByIds = metrics.operation("deleteByIds");
+        updateTypes = metrics.operation("updateClientTypes");
+        scan = metrics.operation("scan");
+        maxId = metrics.operation("maxId");
+        search = new CriteriaMetrics(metrics, "search");
+        searchPage = new CriteriaMetrics(metrics, "searchPage");
+        searchIds = new CriteriaMetrics(metrics, "searchIds");
+    }
+
+    /**
+     * Returns the repository that does the work
+     * @return the decorated repository
+     */
+    public ClientRepository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public LastNameIndex.PrefixMatch getLastNamePrefixMatches(String prefix, int limit) {
+        long start = prefixMatches.start();
+        try {
+            LastNameIndex.PrefixMatch match = repository.getLastNamePrefixMatches(prefix, limit);
+            prefixMatches.finish(start, match == null ? 0 : match.getIds().length);
+            return match;
+        } catch (RuntimeException e) {
+            prefixMatches.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Client getClientById(int id) {
+        long start = getById.start();
+        try {
+            Client client = repository.getClientById(id);
+            getById.finish(start, client == null ? 0 : 1);
+            return client;
+        } catch (RuntimeException e) {
+            getById.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery) {
+        return getSearchResults(searchCriteria, searchQuery, new QueryHandle());
+    }
+
+    @Override
+    public ArrayList<Client> getSearchResults(String searchCriteria, String searchQuery,
+                                              QueryHandle handle) {
+        OperationMetrics metrics = search.of(searchCriteria);
+        long start = metrics.start();
+        try {
+            ArrayList<Client> results = repository.getSearchResults(searchCriteria, searchQuery, handle);
+            metrics.finish(start, results.size());
+            return results;
+        } catch (RuntimeException e) {
+            metrics.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public SearchPage getSearchPage(String searchCriteria, String searchQuery, int pageSize,
+                                    QueryHandle handle) {
+        OperationMetrics metrics = searchPage.of(searchCriteria);
+        long start = metrics.start();
+        try {
+            SearchPage page = repository.getSearchPage(searchCriteria, searchQuery, pageSize, handle);
+            metrics.finish(start, page == null ? 0 : page.getClients().size());
+            return page;
+        } catch (RuntimeException e) {
+            metrics.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public SearchPage getNextPage(String continuationToken, int pageSize, QueryHandle handle) {
+        long start = nextPage.start();
+        try {
+            SearchPage page = repository.getNextPage(continuationToken, pageSize, handle);
+            nextPage.finish(start, page == null ? 0 : page.getClients().size());
+            return page;
+        } catch (RuntimeException e) {
+            nextPage.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int[] getSearchIds(String searchCriteria, String searchQuery, QueryHandle handle) {
+        OperationMetrics metrics = searchIds.of(searchCriteria);
+        long start = metrics.start();
+        try {
+            int[] ids = repository.getSearchIds(searchCriteria, searchQuery, handle);
+            metrics.finish(start, ids.length);
+            return ids;
+        } catch (RuntimeException e) {
+            metrics.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Client[] getClientsByIds(int[] ids) {
+        long start = getByIds.start();
+        try {
+            Client[] clients = repository.getClientsByIds(ids);
+            int found = 0;
+            for (Client client : clients) {
+                if (client != null) {
+                    found++;
+                }
+            }
+            getByIds.finish(start, found);
+            return clients;
+        } catch (RuntimeException e) {
+            getByIds.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void addClient(Client client) {
+        long start = add.start();
+        try {
+            repository.addClient(client);
+            // New clients are given their ID by the repository - none means the add failed
+            boolean added = client.getId() != 0;
+            add.finish(start, added ? 1 : 0, added ? 0 : 1);
+        } catch (RuntimeException e) {
+            add.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean updateClient(int id, Client client) {
+        long start = update.start();
+        try {
+            boolean updated = repository.updateClient(id, client);
+            update.finish(start, updated ? 1 : 0);
+            return updated;
+        } catch (RuntimeException e) {
+            update.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public WriteResult updateClient(int id, Client client, int expectedVersion) {
+        long start = conditionalUpdate.start();
+        try {
+            return finishWrite(conditionalUpdate, start,
+                               repository.updateClient(id, client, expectedVersion));
+        } catch (RuntimeException e) {
+            conditionalUpdate.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean deleteClient(int id) {
+        long start = delete.start();
+        try {
+            boolean deleted = repository.deleteClient(id);
+            delete.finish(start, deleted ? 1 : 0);
+            return deleted;
+        } catch (RuntimeException e) {
+            delete.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public WriteResult deleteClient(int id, int expectedVersion) {
+        long start = conditionalDelete.start();
+        try {
+            return finishWrite(conditionalDelete, start, repository.deleteClient(id, expectedVersion));
+        } catch (RuntimeException e) {
+            conditionalDelete.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean[] addClients(List<Client> clients) {
+        long start = addBatch.start();
+        try {
+            return finishBatch(addBatch, start, repository.addClients(clients));
+        } catch (RuntimeException e) {
+            addBatch.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean[] updateClients(List<Client> clients) {
+        long start = updateBatch.start();
+        try {
+            return finishBatch(updateBatch, start, repository.updateClients(clients));
+        } catch (RuntimeException e) {
+            updateBatch.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean[] deleteClients(List<Integer> ids) {
+        long start = deleteBatch.start();
+        try {
+            return finishBatch(deleteBatch, start, repository.deleteClients(ids));
+        } catch (RuntimeException e) {
+            deleteBatch.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int deleteClientsByIds(int[] ids) {
+        long start = deleteByIds.start();
+        try {
+            return finishBulk(deleteByIds, start, repository.deleteClientsByIds(ids));
+        } catch (RuntimeException e) {
+            deleteByIds.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int updateClientTypes(int[] ids, String clientType) {
+        long start = updateTypes.start();
+        try {
+            return finishBulk(updateTypes, start, repository.updateClientTypes(ids, clientType));
+        } catch (RuntimeException e) {
+            updateTypes.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long scanClients(int fromId, int toId, ClientVisitor visitor) throws IOException {
+        long start = scan.start();
+        try {
+            long count = repository.scanClients(fromId, toId, visitor);
+            scan.finish(start, count);
+            return count;
+        } catch (IOException | RuntimeException e) {
+            scan.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int getMaxId() {
+        long start = maxId.start();
+        try {
+            int id = repository.getMaxId();
+            maxId.finish(start, 1);
+            return id;
+        } catch (RuntimeException e) {
+            maxId.fail(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        repository.addChangeListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        repository.removeChangeListener(listener);
+    }
+
+    @Override
+    public void close() {
+        repository.close();
+    }
+
+    /**
+     * Helper method that records a conditional write, counting only failures as errors
+     */
+    private static WriteResult finishWrite(OperationMetrics metrics, long start, WriteResult result) {
+        metrics.finish(start, result == WriteResult.OK ? 1 : 0, result == WriteResult.ERROR ? 1 : 0);
+        return result;
+    }
+
+    /**
+     * Helper method that records a set-based write, counting a failed transaction as an error
+     */
+    private static int finishBulk(OperationMetrics metrics, long start, int changed) {
+        metrics.finish(start, Math.max(changed, 0), changed < 0 ? 1 : 0);
+        return changed;
+    }
+
+    /**
+     * Helper method that records a bulk write, counting refused rows as errors
+     */
+    private static boolean[] finishBatch(OperationMetrics metrics, long start, boolean[] success) {
+        int done = 0;
+        for (boolean row : success) {
+            if (row) {
+                done++;
+            }
+        }
+        metrics.finish(start, done, success.length - done);
+        return success;
+    }
+
+    /**
+     * Metrics of a kind of search, one operation per search criteria
+     */
+    private static class CriteriaMetrics {
+        private final OperationMetrics byId, byLastName, byClientType, other;
+
+        private CriteriaMetrics(ClientMetrics metrics, String prefix) {
+            byId = metrics.operation(prefix + ".id");
+            byLastName = metrics.operation(prefix + ".lastName");
+            byClientType = metrics.operation(prefix + ".clientType");
+            // Unknown criteria are shared so user input cannot create operations
+            other = metrics.operation(prefix + ".other");
+        }
+
+        private OperationMetrics of(String searchCriteria) {
+            switch (searchCriteria == null ? "" : searchCriteria) {
+                case "id":
+                    return byId;
+                case "lastName":
+                    return byLastName;
+                case "clientType":
+                    return byClientType;
+                default:
+                    return other;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.Arrays;
+
+/**
+ * Hash map from positive int keys to long values, stored in two primitive arrays with open
+ * addressing and linear probing. Unlike a HashMap<Integer, Long> there is no boxing and no entry
+ * object per key, so millions of entries take a few bytes each. Not thread-safe.
+ * @author karimbounekhla
+ */
+public class IntLongHashMap {
+    // Key of an empty slot - keys must be positive
+    private static final int EMPTY = 0;
+    private static final float MAX_LOAD = 0.6f;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    /**
+     * Constructor
+     * @param expectedSize number of entries the map should hold without resizing
+     */
+    public IntLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Returns the value of a key
+     * @param key the key
+     * @param missing value returned if the key is not in the map
+     * @return the value, or 'missing'
+     */
+    public long get(int key, long missing) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Returns whether a key is in the map
+     * @param key the key
+     * @return true if the key has a value
+     */
+    public boolean containsKey(int key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the value of a key
+     * @param key the key (must be positive)
+     * @param value the value
+     */
+    public void put(int key, long value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Key must be positive: " + key);
+        }
+        if (size + 1 > keys.length * MAX_LOAD) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Removes a key
+     * @param key the key
+     * @return true if the key was in the map
+     */
+    public boolean remove(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift later entries of the probe chain back so no lookup stops at the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the number of entries
+     * @return entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns all keys, in no particular order
+     * @return array of keys
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int count = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of slots, for iterating with slotKey() and slotValue()
+     * @return slot count
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the key in a slot
+     * @param slot slot number, below capacity()
+     * @return the key, or 0 if the slot is empty
+     */
+    public int slotKey(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the value in a slot
+     * @param slot slot number, below capacity()
+     * @return the value (meaningless if the slot is empty)
+     */
+    public long slotValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Helper method that returns the home slot of a key (keys are scrambled so sequential IDs spread)
+     */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Helper method that rehashes every entry into a larger table
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[capacity];
+        values = new long[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IntLongHashMap[size=" + size + ", capacity=" + keys.length + "]";
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+}
@@ -0,0 +1,396 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of every client's last name, used for type-ahead search. Names are case-folded
+ * and kept in sorted parallel arrays (name, id), so all names starting with a prefix are one
+ * contiguous range found by binary search. A second pair of arrays sorted by ID finds the entry of
+ * a client when it is updated or deleted. Identical names share one String instance.
+ * @author karimbounekhla
+ */
+public class LastNameIndex {
+    /**
+     * Result of a prefix lookup: the matching IDs and their (case-folded) last names, ordered by name
+     */
+    public static class PrefixMatch {
+        private final String prefix;
+        private final int[] ids;
+        private final String[] names;
+        private final boolean truncated;
+
+        public PrefixMatch(String prefix, int[] ids, String[] names, boolean truncated) {
+            this.prefix = prefix;
+            this.ids = ids;
+            this.names = names;
+            this.truncated = truncated;
+        }
+
+        /**
+         * Returns the case-folded prefix that was looked up
+         * @return the prefix
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        public String[] getNames() {
+            return names;
+        }
+
+        /**
+         * Narrows this result to a longer prefix without going back to the index. This is only
+         * possible if this result is complete and the new prefix extends this one.
+         * @param longerPrefix the new prefix
+         * @return the narrowed matches, or null if they cannot be computed from this result
+         */
+        public PrefixMatch refine(String longerPrefix) {
+            String folded = fold(longerPrefix);
+            if (truncated || !folded.startsWith(prefix)) {
+                return null;
+            }
+            int[] refinedIds = new int[ids.length];
+            String[] refinedNames = new String[names.length];
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (names[i].startsWith(folded)) {
+                    refinedIds[count] = ids[i];
+                    refinedNames[count] = names[i];
+                    count++;
+                }
+            }
+            return new PrefixMatch(folded, Arrays.copyOf(refinedIds, count),
+                                   Arrays.copyOf(refinedNames, count), false);
+        }
+
+        /**
+         * Returns whether more clients matched than the limit of the lookup
+         * @return true if some matches were left out
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Entries sorted by (name, id)
+    private String[] names = new String[16];
+    private int[] ids = new int[16];
+    private int size;
+    // The same entries sorted by id
+    private int[] idsById = new int[16];
+    private String[] namesById = new String[16];
+    // Shared instances of the names in the index
+    private final Map<String, String> namePool = new HashMap<>();
+
+    /**
+     * Case-folds a name for the index
+     * @param name the name
+     * @return the folded name
+     */
+    public static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Replaces the contents of the index
+     * @param clientIds client IDs
+     * @param lastNames last names, in the same order as the IDs
+     * @param count number of entries to load from the arrays
+     */
+    public void load(int[] clientIds, String[] lastNames, int count) {
+        Integer[] order = new Integer[count];
+        String[] folded = new String[count];
+        Map<String, String> pool = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            folded[i] = pool.computeIfAbsent(fold(lastNames[i]), n -> n);
+        }
+
+        lock.writeLock().lock();
+        try {
+            namePool.clear();
+            namePool.putAll(pool);
+            size = count;
+            int capacity = Math.max(16, count);
+            names = new String[capacity];
+            ids = new int[capacity];
+            idsById = new int[capacity];
+            namesById = new String[capacity];
+
+            Arrays.sort(order, Comparator.comparingInt(i -> clientIds[i]));
+            for (int i = 0; i < count; i++) {
+                idsById[i] = clientIds[order[i]];
+                namesById[i] = folded[order[i]];
+            }
+            Arrays.sort(order, (a, b) -> compare(folded[a], clientIds[a], folded[b], clientIds[b]));
+            for (int i = 0; i < count; i++) {
+                ids[i] = clientIds[order[i]];
+                names[i] = folded[order[i]];
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a client to the index, or moves it if its last name changed
+     * @param id client ID
+     * @param lastName last name of the client
+     */
+    public void put(int id, String lastName) {
+        lock.writeLock().lock();
+        try {
+            String name = namePool.computeIfAbsent(fold(lastName), n -> n);
+            int k = Arrays.binarySearch(idsById, 0, size, id);
+            if (k >= 0) {
+                if (namesById[k].equals(name)) {
+                    return;
+                }
+                removeSorted(namesById[k], id);
+                namesById[k] = name;
+                insertSorted(name, id);
+            } else {
+                ensureCapacity(size + 1);
+                k = -k - 1;
+                System.arraycopy(idsById, k, idsById, k + 1, size - k);
+                System.arraycopy(namesById, k, namesById, k + 1, size - k);
+                idsById[k] = id;
+                namesById[k] = name;
+                insertSorted(name, id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or moves many clients at once. A large batch is sorted on its own and merged into the
+     * index in one pass, instead of shifting the arrays for every client.
+     * @param clientIds client IDs (each at most once)
+     * @param lastNames last names, in the same order as the IDs
+     * @param count number of entries to add from the arrays
+     */
+    public void putAll(int[] clientIds, String[] lastNames, int count) {
+        if (count < 64) {
+            for (int i = 0; i < count; i++) {
+                put(clientIds[i], lastNames[i]);
+            }
+            return;
+        }
+        Integer[] order = new Integer[count];
+        String[] folded = new String[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        lock.writeLock().lock();
+        try {
+            // Clients already in the index are moved: their current entries are left out of the merge
+            IntLongHashMap moved = new IntLongHashMap(count);
+            for (int i = 0; i < count; i++) {
+                folded[i] = namePool.computeIfAbsent(fold(lastNames[i]), n -> n);
+                if (Arrays.binarySearch(idsById, 0, size, clientIds[i]) >= 0) {
+                    moved.put(clientIds[i], 0);
+                }
+            }
+            int newSize = size - moved.size() + count;
+            int capacity = Math.max(16, newSize);
+
+            // Entries sorted by id
+            Arrays.sort(order, Comparator.comparingInt(i -> clientIds[i]));
+            int[] mergedIds = new int[capacity];
+            String[] mergedNames = new String[capacity];
+            int n = 0, k = 0;
+            for (int o = 0; o <= count; o++) {
+                int id = o < count ? clientIds[order[o]] : Integer.MAX_VALUE;
+                while (k < size && (idsById[k] < id || o == count)) {
+                    if (!moved.containsKey(idsById[k])) {
+                        mergedIds[n] = idsById[k];
+                        mergedNames[n++] = namesById[k];
+                    }
+                    k++;
+                }
+                if (o < count) {
+                    mergedIds[n] = id;
+                    mergedNames[n++] = folded[order[o]];
+                }
+            }
+            idsById = mergedIds;
+            namesById = mergedNames;
+
+            // Entries sorted by (name, id)
+            Arrays.sort(order, (a, b) -> compare(folded[a], clientIds[a], folded[b], clientIds[b]));
+            mergedIds = new int[capacity];
+            mergedNames = new String[capacity];
+            n = 0;
+            k = 0;
+            for (int o = 0; o <= count; o++) {
+                while (k < size && (o == count
+                        || compare(names[k], ids[k], folded[order[o]], clientIds[order[o]]) < 0)) {
+                    if (!moved.containsKey(ids[k])) {
+                        mergedIds[n] = ids[k];
+                        mergedNames[n++] = names[k];
+                    }
+                    k++;
+                }
+                if (o < count) {
+                    mergedIds[n] = clientIds[order[o]];
+                    mergedNames[n++] = folded[order[o]];
+                }
+            }
+            ids = mergedIds;
+            names = mergedNames;
+            size = newSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a client from the index
+     * @param id client ID
+     */
+    public void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            int k = Arrays.binarySearch(idsById, 0, size, id);
+            if (k < 0) {
+                return;
+            }
+            removeSorted(namesById[k], id);
+            System.arraycopy(idsById, k + 1, idsById, k, size - k);
+            System.arraycopy(namesById, k + 1, namesById, k, size - k);
+            namesById[size] = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the clients whose last name starts with a prefix (ignoring case), ordered by name
+     * @param prefix the prefix
+     * @param limit maximum number of IDs returned
+     * @return the matches
+     */
+    public PrefixMatch find(String prefix, int limit) {
+        String folded = fold(prefix);
+        lock.readLock().lock();
+        try {
+            int start = lowerBound(folded, Integer.MIN_VALUE);
+            int end = start;
+            while (end < size && end - start < limit && names[end].startsWith(folded)) {
+                end++;
+            }
+            boolean truncated = end < size && names[end].startsWith(folded);
+            return new PrefixMatch(folded, Arrays.copyOfRange(ids, start, end),
+                                   Arrays.copyOfRange(names, start, end), truncated);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the clients whose last name is equal to a name (ignoring case)
+     * @param name the last name
+     * @return IDs of the matches in ascending order
+     */
+    public int[] findExact(String name) {
+        String folded = fold(name);
+        lock.readLock().lock();
+        try {
+            // Equal names sort first in the range of names starting with them, ordered by ID
+            int start = lowerBound(folded, Integer.MIN_VALUE);
+            int end = start;
+            while (end < size && names[end].equals(folded)) {
+                end++;
+            }
+            return Arrays.copyOfRange(ids, start, end);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of clients in the index
+     * @return entry count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method that returns the position of the first entry not less than (name, id)
+     */
+    private int lowerBound(String name, int id) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(names[mid], ids[mid], name, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Helper method that inserts (name, id) into the name-sorted arrays and counts the new entry.
+     * The arrays must already have room for it.
+     */
+    private void insertSorted(String name, int id) {
+        int k = lowerBound(name, id);
+        System.arraycopy(names, k, names, k + 1, size - k);
+        System.arraycopy(ids, k, ids, k + 1, size - k);
+        names[k] = name;
+        ids[k] = id;
+        size++;
+    }
+
+    /**
+     * Helper method that removes (name, id) from the name-sorted arrays and uncounts the entry
+     */
+    private void removeSorted(String name, int id) {
+        int k = lowerBound(name, id);
+        size--;
+        System.arraycopy(names, k + 1, names, k, size - k);
+        System.arraycopy(ids, k + 1, ids, k, size - k);
+        names[size] = null;
+    }
+
+    /**
+     * Helper method that grows the arrays to hold at least 'capacity' entries
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, names.length * 2);
+        names = Arrays.copyOf(names, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+        idsById = Arrays.copyOf(idsById, newCapacity);
+        namesById = Arrays.copyOf(namesById, newCapacity);
+    }
+
+    /**
+     * Helper method that orders entries by name, then by ID
+     */
+    private static int compare(String nameA, int idA, String nameB, int idB) {
+        int c = nameA.compareTo(nameB);
+        return c != 0 ? c : Integer.compare(idA, idB);
+    }
+}
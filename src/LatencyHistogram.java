@@ -0,0 +1,229 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values are counted in log-linear
+ * buckets, exact below 128 and within 1/64 (about 1.6%) above, up to MAX_VALUE nanoseconds.
+ * Recording is one bucket increment plus a few striped counters, so it can stay on in production.
+ * The buckets are striped too: each thread counts into one of a few copies of the bucket array
+ * (chosen by thread ID, allocated on first use), so threads recording the same latencies do not
+ * fight over a cache line. Percentiles are computed from a snapshot that adds the copies up.
+ * @author karimbounekhla
+ */
+public class LatencyHistogram {
+    // Values below 2^SUB_BUCKET_BITS get a bucket each; above, every power of two is split into
+    // 2^(SUB_BUCKET_BITS - 1) buckets
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS, HALF = SUB_BUCKETS / 2;
+    // Largest value told apart (about 18 minutes in nanoseconds); larger values count as this
+    public static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+    // Copies of the bucket array - a power of two, at most one per core and never more than 16
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value
+     * @param value the value, e.g. a latency in nanoseconds (negative values count as 0)
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        stripe().incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records a value measured by a caller that waits for each operation before issuing the next
+     * one, correcting for coordinated omission: when the value exceeds the interval at which
+     * operations were meant to be issued, the operations that would have been issued (and delayed)
+     * meanwhile are recorded too, with the latencies they would have seen
+     * @param value the measured latency
+     * @param expectedInterval interval between operations in the intended schedule (0 for none)
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval;
+             missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    /**
+     * Records the time elapsed since a System.nanoTime() reading
+     * @param startNanos the reading taken at the start of the operation
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the number of values recorded
+     * @return value count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Clears every recorded value. Values recorded during the reset may be partly kept.
+     */
+    public void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray counts = stripes.get(s);
+            if (counts != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts.set(i, 0);
+                }
+            }
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Takes a consistent-enough copy of the histogram for reporting
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray counts = stripes.get(s);
+            if (counts != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long n = counts.get(i);
+                    copy[i] += n;
+                    total += n;
+                }
+            }
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Helper method that returns the bucket array the current thread counts into, allocating it
+     * the first time a thread uses it
+     */
+    private AtomicLongArray stripe() {
+        int s = (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32) & (STRIPES - 1);
+        AtomicLongArray counts = stripes.get(s);
+        if (counts == null) {
+            stripes.compareAndSet(s, null, new AtomicLongArray(BUCKETS));
+            counts = stripes.get(s);
+        }
+        return counts;
+    }
+
+    /**
+     * Immutable copy of a histogram
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count, sum, max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the values
+         * @return the mean, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the value below which a percentage of the values fall, rounded up to the top of
+         * its bucket (and never above the largest value recorded)
+         * @param percentile percentage between 0 and 100
+         * @return the value, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Formats the main percentiles of a histogram of nanoseconds in milliseconds
+         * @return e.g. "count=10 mean=1.200 p50=1.100 p90=2.000 p99=3.100 p99.9=3.100 max=3.120 ms"
+         */
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+                                 count, toMillis(getMean()), toMillis(getPercentile(50)),
+                                 toMillis(getPercentile(90)), toMillis(getPercentile(99)),
+                                 toMillis(getPercentile(99.9)), toMillis(max));
+        }
+    }
+
+    /**
+     * Converts nanoseconds to fractional milliseconds
+     * @param nanos a duration in nanoseconds
+     * @return the duration in milliseconds
+     */
+    public static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Helper method that finds the bucket of a value between 0 and MAX_VALUE
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Power of two of the value, and its top SUB_BUCKET_BITS - 1 bits below the leading one
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (SUB_BUCKET_BITS - 1);
+        int mantissa = (int) (value >>> shift) - HALF;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF + mantissa;
+    }
+
+    /**
+     * Helper method that returns the largest value counted in a bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = SUB_BUCKET_BITS + (bucket - SUB_BUCKETS) / HALF;
+        int shift = exponent - (SUB_BUCKET_BITS - 1);
+        long mantissa = HALF + (bucket - SUB_BUCKETS) % HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,488 @@
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * List model for the search results. The model only holds the IDs of all matching clients, so it
+ * knows the size of the list up front, and loads the clients in fixed-size windows when the list
+ * asks for rows that are not loaded yet. Loaded windows are kept in compact ClientBatch form, and
+ * only the rows being displayed are decoded into Client objects. Least recently used windows are
+ * evicted so memory stays bounded however many clients matched.
+ *
+ * Rows are stored in slots that never move: a removed row only frees its slot, and added rows get
+ * new slots at the end. Windows are loaded by slot, so they stay valid when rows are added, edited
+ * or removed, and every change is applied to the affected rows alone - an ID to slot map finds the
+ * slot of a client in constant time, and once rows have been removed a Fenwick tree of the used
+ * slots converts between slots and row indexes in logarithmic time.
+ * @author karimbounekhla
+ */
+public class LazyClientListModel extends AbstractListModel<Client> {
+    private static final long serialVersionUID = 1L;
+    // Number of decoded rows kept, enough for every row visible on screen
+    private static final int DECODED_ROWS = 256;
+    // Runs of rows removed together that are announced one by one - more and the list is replaced
+    private static final int MAX_REMOVAL_EVENTS = 16;
+
+    /**
+     * Loads the clients of one window in the background
+     */
+    public interface WindowLoader {
+        /**
+         * Loads the clients of a window
+         * @param ids IDs of the rows of the window
+         * @param done called on the EDT with the clients in the same order as the IDs
+         *             (null for clients that no longer exist)
+         */
+        void load(int[] ids, Consumer<Client[]> done);
+    }
+
+    private final int windowSize;
+    private final int maxWindows;
+    // Client ID of every slot, 0 for the slots of removed rows
+    private int[] slotIds = new int[0];
+    private int slotCount;
+    // Number of rows (used slots)
+    private int size;
+    // Fenwick tree counting the used slots, or null while no row was removed (row index = slot)
+    private int[] usedSlots;
+    // Slot of every client by ID, built on the first lookup
+    private IntLongHashMap slotsById;
+    private WindowLoader loader;
+    // Loaded windows by window number (slot / windowSize), least recently used first
+    private final Map<Integer, ClientBatch> windows;
+    // Recently displayed rows by slot, so a row keeps the same Client while it is on screen
+    private final Map<Integer, Client> decoded;
+    // Added and edited rows by slot - they take precedence over the loaded windows
+    private final Map<Integer, Client> changed = new HashMap<>();
+    private final Set<Integer> loading = new HashSet<>();
+    // Incremented whenever rows are reloaded or replaced, so windows loaded before are discarded
+    private long generation;
+
+    /**
+     * Constructor
+     * @param windowSize number of rows loaded at a time
+     * @param maxWindows maximum number of windows kept in memory
+     */
+    public LazyClientListModel(int windowSize, int maxWindows) {
+        this.windowSize = windowSize;
+        this.maxWindows = maxWindows;
+        windows = new LinkedHashMap<Integer, ClientBatch>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ClientBatch> eldest) {
+                return size() > LazyClientListModel.this.maxWindows;
+            }
+        };
+        decoded = new LinkedHashMap<Integer, Client>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Client> eldest) {
+                return size() > DECODED_ROWS;
+            }
+        };
+    }
+
+    /**
+     * Replaces the rows of the list
+     * @param ids IDs of all rows, in display order (kept by the model, not copied)
+     * @param loader loader used to fetch the clients of a window
+     */
+    public void setRows(int[] ids, WindowLoader loader) {
+        int oldSize = size;
+        resetWindows();
+        this.slotIds = ids;
+        this.slotCount = ids.length;
+        this.size = ids.length;
+        this.usedSlots = null;
+        this.slotsById = null;
+        this.loader = loader;
+        changed.clear();
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        if (size > 0) {
+            fireIntervalAdded(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Removes all rows from the list
+     */
+    public void clear() {
+        setRows(new int[0], null);
+    }
+
+    /**
+     * Appends the row of a client, e.g. a client just added that matches the search. If the
+     * client is already in the list its row is updated instead.
+     * @param client the client
+     */
+    public void addRow(Client client) {
+        if (slotOf(client.getId()) >= 0) {
+            clientChanged(client);
+            return;
+        }
+        if (slotCount == slotIds.length) {
+            slotIds = Arrays.copyOf(slotIds, Math.max(16, slotCount * 2));
+            if (usedSlots != null) {
+                buildUsedSlots();
+            }
+        }
+        int slot = slotCount++;
+        slotIds[slot] = client.getId();
+        if (usedSlots != null) {
+            updateUsedSlots(slot, 1);
+        }
+        slotsById.put(client.getId(), slot);
+        changed.put(slot, client);
+        size++;
+        fireIntervalAdded(this, size - 1, size - 1);
+    }
+
+    /**
+     * Removes the row of a client from the list
+     * @param id ID of the client
+     */
+    public void removeId(int id) {
+        removeIds(new int[] {id});
+    }
+
+    /**
+     * Removes the rows of several clients from the list, e.g. after a bulk delete. Only the slots
+     * of the rows are freed - no window is reloaded. Each run of adjacent removed rows is announced
+     * with one event (from the bottom up, so the indexes of the events stay valid); if the rows are
+     * scattered over many runs the list is announced as replaced instead.
+     * @param removedIds IDs of the clients (IDs not in the list are ignored)
+     */
+    public void removeIds(int[] removedIds) {
+        // Row indexes must be taken before any slot is freed
+        int[] rows = new int[removedIds.length];
+        int[] slots = new int[removedIds.length];
+        int count = 0;
+        for (int id : removedIds) {
+            int slot = slotOf(id);
+            if (slot >= 0) {
+                slotsById.remove(id);
+                rows[count] = rowOf(slot);
+                slots[count++] = slot;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (usedSlots == null) {
+            buildUsedSlots();
+        }
+        for (int i = 0; i < count; i++) {
+            slotIds[slots[i]] = 0;
+            updateUsedSlots(slots[i], -1);
+            decoded.remove(slots[i]);
+            changed.remove(slots[i]);
+        }
+        int oldSize = size;
+        size -= count;
+
+        rows = Arrays.copyOf(rows, count);
+        Arrays.sort(rows);
+        int runCount = 1;
+        for (int i = 1; i < count; i++) {
+            if (rows[i] != rows[i - 1] + 1) {
+                runCount++;
+            }
+        }
+        if (runCount > MAX_REMOVAL_EVENTS) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+            if (size > 0) {
+                fireIntervalAdded(this, 0, size - 1);
+            }
+            return;
+        }
+        int runEnd = rows[count - 1];
+        for (int i = count - 1; i >= 0; i--) {
+            if (i == 0 || rows[i - 1] != rows[i] - 1) {
+                fireIntervalRemoved(this, rows[i], runEnd);
+                if (i > 0) {
+                    runEnd = rows[i - 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads the rows of clients whose new information is not known, e.g. after a bulk write:
+     * their windows are dropped, fetched again when the rows are shown, and the changed range of
+     * rows is announced with one event
+     * @param changedIds IDs of the clients (IDs not in the list are ignored)
+     */
+    public void reloadIds(int[] changedIds) {
+        int first = Integer.MAX_VALUE, last = -1;
+        for (int id : changedIds) {
+            int slot = slotOf(id);
+            if (slot >= 0) {
+                windows.remove(slot / windowSize);
+                decoded.remove(slot);
+                changed.remove(slot);
+                int row = rowOf(slot);
+                first = Math.min(first, row);
+                last = Math.max(last, row);
+            }
+        }
+        if (last < 0) {
+            return;
+        }
+        // Windows being loaded may hold the old information
+        generation++;
+        loading.clear();
+        fireContentsChanged(this, first, last);
+    }
+
+    /**
+     * Shows the new information of an edited client in its row. Loaded windows are not modified;
+     * the client is kept beside them until the list is replaced.
+     * @param client the edited client
+     */
+    public void clientChanged(Client client) {
+        int slot = slotOf(client.getId());
+        if (slot < 0) {
+            return;
+        }
+        changed.put(slot, client);
+        decoded.remove(slot);
+        int row = rowOf(slot);
+        fireContentsChanged(this, row, row);
+    }
+
+    /**
+     * Returns the row index of a client
+     * @param id ID of the client
+     * @return index of the row, or -1 if the client is not in the list
+     */
+    public int indexOf(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? -1 : rowOf(slot);
+    }
+
+    /**
+     * Returns the ID of a row, whether or not its client is loaded
+     * @param index row index
+     * @return the client ID
+     */
+    public int getId(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        return slotIds[slotAt(index)];
+    }
+
+    /**
+     * Returns the IDs of the rows of the list
+     * @return copy of the row IDs, in display order
+     */
+    public int[] getIds() {
+        if (usedSlots == null) {
+            return Arrays.copyOf(slotIds, size);
+        }
+        int[] ids = new int[size];
+        for (int slot = 0, row = 0; slot < slotCount; slot++) {
+            if (slotIds[slot] != 0) {
+                ids[row++] = slotIds[slot];
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the client of a row. If its window is not loaded yet, the window is requested
+     * and null is returned until it arrives.
+     * @param index row index
+     * @return the client, or null if it is still loading
+     */
+    @Override
+    public Client getElementAt(int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        int slot = slotAt(index);
+        Client client = changed.get(slot);
+        if (client != null) {
+            return client;
+        }
+        client = decoded.get(slot);
+        if (client != null) {
+            return client;
+        }
+        int window = slot / windowSize;
+        ClientBatch batch = windows.get(window);
+        if (batch == null) {
+            requestWindow(window);
+            return null;
+        }
+        client = batch.get(slot - window * windowSize);
+        if (client != null) {
+            decoded.put(slot, client);
+        }
+        return client;
+    }
+
+    /**
+     * Returns the heap used by the loaded windows
+     * @return size in bytes
+     */
+    public long getLoadedBytes() {
+        long bytes = 0;
+        for (ClientBatch batch : windows.values()) {
+            bytes += batch.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Helper method that asks the loader for the rows of a window still in the list, unless the
+     * window is already being loaded
+     * @param window window number
+     */
+    private void requestWindow(int window) {
+        if (loader == null || !loading.add(window)) {
+            return;
+        }
+        int from = window * windowSize;
+        int to = Math.min(from + windowSize, slotCount);
+        int[] ids = new int[to - from];
+        int[] offsets = new int[to - from];
+        int count = 0;
+        for (int slot = from; slot < to; slot++) {
+            if (slotIds[slot] != 0) {
+                ids[count] = slotIds[slot];
+                offsets[count++] = slot - from;
+            }
+        }
+        long requestGeneration = generation;
+        loader.load(Arrays.copyOf(ids, count), clients -> {
+            // Rows were reloaded while loading - the window may hold old information
+            if (requestGeneration != generation) {
+                return;
+            }
+            loading.remove(window);
+            Client[] rows = new Client[to - from];
+            for (int i = 0; i < clients.length; i++) {
+                rows[offsets[i]] = clients[i];
+            }
+            windows.put(window, ClientBatch.of(rows));
+            // Rows of the window that are still in the list
+            int firstRow = rowsBefore(from), lastRow = rowsBefore(to) - 1;
+            if (firstRow <= lastRow) {
+                fireContentsChanged(this, firstRow, lastRow);
+            }
+        });
+    }
+
+    /**
+     * Helper method that drops all loaded windows and pending loads
+     */
+    private void resetWindows() {
+        generation++;
+        windows.clear();
+        decoded.clear();
+        loading.clear();
+    }
+
+    /**
+     * Helper method that returns the slot of a client, building the ID to slot map on first use
+     * @param id ID of the client
+     * @return the slot, or -1 if the client is not in the list
+     */
+    private int slotOf(int id) {
+        if (slotsById == null) {
+            slotsById = new IntLongHashMap(Math.max(16, slotCount));
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (slotIds[slot] != 0) {
+                    slotsById.put(slotIds[slot], slot);
+                }
+            }
+        }
+        return id > 0 ? (int) slotsById.get(id, -1) : -1;
+    }
+
+    /**
+     * Helper method that returns the row index of a used slot
+     * @param slot the slot
+     * @return the row index
+     */
+    private int rowOf(int slot) {
+        return rowsBefore(slot);
+    }
+
+    /**
+     * Helper method that counts the rows stored in the slots before a slot
+     * @param slot the slot (up to slotCount)
+     * @return number of used slots below it
+     */
+    private int rowsBefore(int slot) {
+        if (usedSlots == null) {
+            return slot;
+        }
+        int count = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            count += usedSlots[i];
+        }
+        return count;
+    }
+
+    /**
+     * Helper method that returns the slot of a row, by descending the Fenwick tree to the slot
+     * holding the (row + 1)th used one
+     * @param row the row index
+     * @return the slot
+     */
+    private int slotAt(int row) {
+        if (usedSlots == null) {
+            return row;
+        }
+        int slot = 0, remaining = row + 1;
+        for (int step = Integer.highestOneBit(usedSlots.length - 1); step > 0; step >>= 1) {
+            int next = slot + step;
+            if (next < usedSlots.length && usedSlots[next] < remaining) {
+                slot = next;
+                remaining -= usedSlots[next];
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Helper method that builds the Fenwick tree of the used slots, sized for the slot array
+     */
+    private void buildUsedSlots() {
+        usedSlots = new int[slotIds.length + 1];
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slotIds[slot] != 0) {
+                usedSlots[slot + 1]++;
+            }
+        }
+        for (int i = 1; i < usedSlots.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < usedSlots.length) {
+                usedSlots[parent] += usedSlots[i];
+            }
+        }
+    }
+
+    /**
+     * Helper method that marks a slot as used or freed in the Fenwick tree
+     * @param slot the slot
+     * @param delta 1 when the slot is used, -1 when it is freed
+     */
+    private void updateUsedSlots(int slot, int delta) {
+        for (int i = slot + 1; i < usedSlots.length; i += i & -i) {
+            usedSlots[i] += delta;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import javax.swing.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs model operations on a dedicated pool of worker threads so the Swing Event Dispatch Thread
+ * never waits for the database. Results are handed back on the EDT, and a busy indicator is
+ * switched on while any task is running.
+ * @author karimbounekhla
+ */
+public class ModelExecutor {
+    private final ExecutorService executor;
+    private final Consumer<Boolean> busyIndicator;
+    // Number of submitted tasks that have not completed yet - only accessed on the EDT
+    private int pending;
+
+    /**
+     * Constructor that starts the worker threads
+     * @param threads number of worker threads
+     * @param busyIndicator called on the EDT with true when work starts and false when all work is done
+     */
+    public ModelExecutor(int threads, Consumer<Boolean> busyIndicator) {
+        this.busyIndicator = busyIndicator;
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "cms-model-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs a task on a worker thread and passes its result to a callback on the EDT.
+     * Must be called on the EDT.
+     * @param task the model operation
+     * @param onSuccess called on the EDT with the result of the task
+     * @param onFailure called on the EDT if the task threw an exception
+     * @param <T> result type
+     * @return future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task, Consumer<T> onSuccess,
+                                           Consumer<Throwable> onFailure) {
+        if (pending++ == 0) {
+            busyIndicator.accept(true);
+        }
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(task, executor);
+        future.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            if (--pending == 0) {
+                busyIndicator.accept(false);
+            }
+            if (error == null) {
+                onSuccess.accept(result);
+            } else {
+                onFailure.accept(error.getCause() != null ? error.getCause() : error);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Runs a task without a result on a worker thread, then runs a callback on the EDT.
+     * Must be called on the EDT.
+     * @param task the model operation
+     * @param onSuccess called on the EDT once the task has completed
+     * @param onFailure called on the EDT if the task threw an exception
+     * @return future completed when the task is done
+     */
+    public CompletableFuture<Void> run(Runnable task, Runnable onSuccess, Consumer<Throwable> onFailure) {
+        return submit(() -> {
+            task.run();
+            return null;
+        }, result -> onSuccess.run(), onFailure);
+    }
+
+    /**
+     * Stops the worker threads after the submitted tasks have completed
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
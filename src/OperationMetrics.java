@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one repository operation: a latency histogram, the number of rows returned or written,
+ * the number of errors and the number of calls in progress. A call is measured with
+ *   long start = metrics.start();
+ *   ... metrics.finish(start, rows) or metrics.fail(start)
+ * which costs two clock readings and a few updates of counters striped across threads (see
+ * LatencyHistogram), so concurrent calls do not contend on a shared counter.
+ * @author karimbounekhla
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder rows = new LongAdder(), errors = new LongAdder(),
+            inFlight = new LongAdder();
+    private volatile long resetNanos = System.nanoTime();
+
+    /**
+     * Constructor
+     * @param name name of the operation
+     */
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Marks the start of a call
+     * @return the start time, to pass to finish() or fail()
+     */
+    public long start() {
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a successful call
+     * @param start value returned by start()
+     * @param rowCount rows returned or written by the call
+     */
+    public void finish(long start, long rowCount) {
+        finish(start, rowCount, 0);
+    }
+
+    /**
+     * Marks the end of a call that partly failed, e.g. a bulk write where some rows were refused
+     * @param start value returned by start()
+     * @param rowCount rows returned or written by the call
+     * @param errorCount rows or steps of the call that failed
+     */
+    public void finish(long start, long rowCount, long errorCount) {
+        latency.recordSince(start);
+        rows.add(rowCount);
+        if (errorCount > 0) {
+            errors.add(errorCount);
+        }
+        inFlight.decrement();
+    }
+
+    /**
+     * Marks the end of a failed call
+     * @param start value returned by start()
+     */
+    public void fail(long start) {
+        finish(start, 0, 1);
+    }
+
+    /**
+     * Returns the latency histogram of the calls, in nanoseconds
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return (int) inFlight.sum();
+    }
+
+    /**
+     * Returns the average number of calls per second since the metrics were created or reset
+     */
+    @Override
+    public double getThroughputPerSecond() {
+        long elapsed = System.nanoTime() - resetNanos;
+        return elapsed <= 0 ? 0 : getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return LatencyHistogram.toMillis(latency.snapshot().getMean());
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentileMillis(50);
+    }
+
+    @Override
+    public double getP90Millis() {
+        return percentileMillis(90);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentileMillis(99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return percentileMillis(99.9);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return LatencyHistogram.toMillis(latency.snapshot().getMax());
+    }
+
+    /**
+     * Clears the latencies and counters (calls in progress are still tracked)
+     */
+    @Override
+    public void reset() {
+        latency.reset();
+        rows.reset();
+        errors.reset();
+        resetNanos = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: rows=%d errors=%d inFlight=%d %s", name, getRowCount(),
+                             getErrorCount(), getInFlight(), latency.snapshot());
+    }
+
+    private double percentileMillis(double percentile) {
+        return LatencyHistogram.toMillis(latency.snapshot().getPercentile(percentile));
+    }
+}
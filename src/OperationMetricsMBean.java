@@ -0,0 +1,30 @@
+/**
+ * JMX view of the metrics of one repository operation (see OperationMetrics). Latencies are in
+ * milliseconds.
+ * @author karimbounekhla
+ */
+public interface OperationMetricsMBean {
+    long getCount();
+
+    long getErrorCount();
+
+    long getRowCount();
+
+    int getInFlight();
+
+    double getThroughputPerSecond();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
@@ -0,0 +1,150 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JDBC connection borrowed from a ConnectionPool. Closing this object returns the connection to
+ * the pool instead of closing it, so it can be used in a try-with-resources block.
+ * Each connection keeps an LRU cache of the catalog statements prepared on it.
+ * @author karimbounekhla
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    // Prepared statements cached by SQL, least recently used first
+    private final Map<String, PreparedStatement> statementCache;
+    // Borrow information used by the pool's leak detection
+    private volatile long borrowedAt;
+    private volatile Throwable borrowSite;
+    private volatile boolean leakReported;
+    // When the connection was last returned to the pool (System.nanoTime), to validate it only
+    // after it has been idle for a while
+    private volatile long releasedAt = System.nanoTime();
+
+    /**
+     * Constructor used by the pool to wrap a newly opened physical connection
+     * @param pool the pool that owns this connection
+     * @param connection the physical JDBC connection
+     * @param statementCacheSize maximum number of prepared statements cached on the connection
+     */
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeStatement(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the underlying JDBC connection. It must not be used after this object is closed.
+     * @return the JDBC connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the prepared statement for a catalog entry, preparing it on first use. The statement
+     * is owned by the cache and must not be closed by the caller, but any ResultSet it returns must be.
+     * @param statement the catalog entry
+     * @param tableName name of the client table
+     * @return the cached prepared statement, with parameters and batch cleared
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(ClientStatement statement, String tableName) throws SQLException {
+        String sql = statement.getSql(tableName);
+        PreparedStatement ps = statementCache.get(sql);
+        if (ps == null || ps.isClosed()) {
+            ps = statement.returnsGeneratedKeys()
+                    ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                    : connection.prepareStatement(sql);
+            statementCache.put(sql, ps);
+        } else {
+            ps.clearParameters();
+            ps.clearBatch();
+        }
+        return ps;
+    }
+
+    /**
+     * Returns the connection to the pool
+     */
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    /**
+     * Records when (and optionally where) the connection was borrowed
+     * @param captureSite true to capture the stack of the borrower, which is costly
+     */
+    void markBorrowed(boolean captureSite) {
+        borrowedAt = System.currentTimeMillis();
+        borrowSite = captureSite ? new Throwable("Connection borrowed here") : null;
+        leakReported = false;
+    }
+
+    /**
+     * Records that the connection was returned to the pool
+     */
+    void markReleased() {
+        releasedAt = System.nanoTime();
+    }
+
+    long getReleasedAt() {
+        return releasedAt;
+    }
+
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    Throwable getBorrowSite() {
+        return borrowSite;
+    }
+
+    boolean isLeakReported() {
+        return leakReported;
+    }
+
+    void setLeakReported() {
+        leakReported = true;
+    }
+
+    /**
+     * Closes the cached statements and the physical connection, ignoring any error
+     */
+    void closeQuietly() {
+        for (PreparedStatement ps : statementCache.values()) {
+            closeStatement(ps);
+        }
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Connection is being discarded anyway
+        }
+    }
+
+    /**
+     * Helper method that closes a statement evicted from the cache, ignoring any error
+     * @param ps the statement to close
+     */
+    private static void closeStatement(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            // Statement is being discarded anyway
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Handle used to cancel a model query from another thread. The model attaches the statement it is
+ * executing to the handle, and cancel() asks the database to abort that statement.
+ * @author karimbounekhla
+ */
+public class QueryHandle {
+    private Statement running;
+    private boolean cancelled;
+
+    /**
+     * Cancels the query. If the statement is currently executing, the database is asked to abort it,
+     * otherwise the query will not be started.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (running != null) {
+            try {
+                running.cancel();
+            } catch (SQLException e) {
+                // Statement already finished or the driver does not support cancelling
+            }
+        }
+    }
+
+    /**
+     * Returns whether the query was cancelled
+     * @return true if cancel() was called
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Registers the statement that is about to be executed for this query
+     * @param statement the statement
+     * @return false if the query was already cancelled and must not be executed
+     */
+    synchronized boolean attach(Statement statement) {
+        if (cancelled) {
+            return false;
+        }
+        running = statement;
+        return true;
+    }
+
+    /**
+     * Unregisters the statement once it has finished, so a late cancel() does not affect
+     * another query that reuses the same cached statement
+     */
+    synchronized void detach() {
+        running = null;
+    }
+}
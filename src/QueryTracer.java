@@ -0,0 +1,575 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Traces the SQL run on JDBC connections. Connections wrapped by wrap() hand out statements and
+ * result sets that time every execution: time to execute, time to the first row, total time until
+ * the result set is closed, rows fetched or updated and number of parameters bound. Executions are
+ * aggregated by statement shape (the SQL with literals replaced by '?' and IN lists collapsed), and
+ * the ones slower than a threshold are appended to a slow query log. Bind values are never logged.
+ * The wrappers are dynamic proxies, so they work with any JDBC driver.
+ * @author karimbounekhla
+ */
+public class QueryTracer implements QueryTracerMBean {
+    private static final Class<?>[] CONNECTION = {Connection.class};
+    private static final Class<?>[] PREPARED_STATEMENT = {PreparedStatement.class};
+    private static final Class<?>[] STATEMENT = {Statement.class};
+    private static final Class<?>[] RESULT_SET = {ResultSet.class};
+
+    private volatile long slowQueryThresholdMillis;
+    private final String slowQueryLogFile;
+    private final ConcurrentHashMap<String, StatementStats> statistics = new ConcurrentHashMap<>();
+    private final LongAdder slowQueryCount = new LongAdder();
+    // Advanced by reset(), so statements drop the statistics they looked up before
+    private volatile int generation;
+
+    /**
+     * Constructor
+     * @param slowQueryThresholdMillis executions taking at least this long are logged
+     * @param slowQueryLogFile file the slow queries are appended to, or null for the console
+     */
+    public QueryTracer(long slowQueryThresholdMillis, String slowQueryLogFile) {
+        this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+        this.slowQueryLogFile = slowQueryLogFile;
+    }
+
+    /**
+     * Wraps a connection so the statements run on it are traced
+     * @param connection the physical connection
+     * @return the traced connection
+     */
+    public Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(QueryTracer.class.getClassLoader(), CONNECTION,
+                                                   new ConnectionHandler(connection));
+    }
+
+    /**
+     * Publishes the tracer as an MBean named 'CMS:type=QueryTracer,name=<name>', replacing any
+     * tracer published under the same name
+     * @param name name of the traced database, e.g. its connection URL
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(ClientMetrics.JMX_DOMAIN + ":type=QueryTracer,name=" +
+                                                   ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdMillis;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long slowQueryThresholdMillis) {
+        this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueryCount.sum();
+    }
+
+    @Override
+    public int getStatementShapeCount() {
+        return statistics.size();
+    }
+
+    /**
+     * Returns the statistics of every statement shape
+     * @return statistics sorted by total time, slowest first
+     */
+    public List<StatementStats> getStatistics() {
+        List<StatementStats> list = new ArrayList<>(statistics.values());
+        list.sort(Comparator.comparingLong(StatementStats::getTotalNanos).reversed());
+        return list;
+    }
+
+    /**
+     * Formats the statement shapes that took the most time in total
+     * @param limit maximum number of shapes listed
+     * @return one line per shape
+     */
+    @Override
+    public String dumpTopStatements(int limit) {
+        StringBuilder text = new StringBuilder(String.format(
+                "%10s %8s %10s %10s %10s %10s %10s %6s  %s%n", "total ms", "count", "mean ms",
+                "p99 ms", "max ms", "1st row ms", "rows", "errors", "statement"));
+        List<StatementStats> list = getStatistics();
+        for (StatementStats stats : list.subList(0, Math.min(limit, list.size()))) {
+            LatencyHistogram.Snapshot latency = stats.latency.snapshot();
+            text.append(String.format("%10.1f %8d %10.3f %10.3f %10.3f %10.3f %10d %6d  %s%n",
+                    LatencyHistogram.toMillis(stats.getTotalNanos()), latency.getCount(),
+                    LatencyHistogram.toMillis(latency.getMean()),
+                    LatencyHistogram.toMillis(latency.getPercentile(99)),
+                    LatencyHistogram.toMillis(latency.getMax()),
+                    LatencyHistogram.toMillis(stats.firstRow.snapshot().getMean()),
+                    stats.rows.sum(), stats.errors.sum(), stats.shape));
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void reset() {
+        generation++;
+        statistics.clear();
+        slowQueryCount.reset();
+    }
+
+    /**
+     * Returns the shape of a SQL string: string ('...') and number literals become '?', runs of
+     * whitespace become one space and lists of parameters such as 'IN (?, ?, ?)' become '(?...)', so
+     * all executions of a statement are counted together
+     * @param sql the SQL
+     * @return the shape
+     */
+    public static String shapeOf(String sql) {
+        StringBuilder shape = new StringBuilder(sql.length());
+        int i = 0, n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // String literal - a doubled quote is a quote inside the literal
+                i++;
+                while (i < n && (sql.charAt(i) != '\'' || (i + 1 < n && sql.charAt(i + 1) == '\''))) {
+                    i += sql.charAt(i) == '\'' ? 2 : 1;
+                }
+                i++;
+                shape.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(shape)) {
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (shape.length() > 0) {
+                    shape.append(' ');
+                }
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return collapseLists(shape.toString().trim());
+    }
+
+    /**
+     * Aggregated executions of one statement shape
+     */
+    public static class StatementStats {
+        private final String shape;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram firstRow = new LatencyHistogram();
+        private final LongAdder rows = new LongAdder(), binds = new LongAdder(),
+                errors = new LongAdder(), totalNanos = new LongAdder();
+
+        private StatementStats(String shape) {
+            this.shape = shape;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        /**
+         * Returns the latency histogram of the executions, from execute until the results are
+         * closed, in nanoseconds
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Returns the histogram of the time from execute to the first row, in nanoseconds
+         */
+        public LatencyHistogram getFirstRow() {
+            return firstRow;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getBinds() {
+            return binds.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * Helper method that records a finished execution
+     * @param stats statistics of the shape of the SQL executed
+     * @param binds number of parameters bound (over all rows of a batch)
+     * @param elapsed time from execute until the results were closed
+     * @param firstRowNanos time to the first row, or -1 if there was none
+     * @param rows rows fetched or updated
+     * @param failed whether the execution threw
+     */
+    private void record(StatementStats stats, int binds, long elapsed, long firstRowNanos, long rows,
+                        boolean failed) {
+        stats.latency.record(elapsed);
+        stats.totalNanos.add(elapsed);
+        if (firstRowNanos >= 0) {
+            stats.firstRow.record(firstRowNanos);
+        }
+        stats.rows.add(rows);
+        stats.binds.add(binds);
+        if (failed) {
+            stats.errors.increment();
+        }
+        if (elapsed >= slowQueryThresholdMillis * 1_000_000) {
+            slowQueryCount.increment();
+            logSlowQuery(String.format("%s %s %.3f ms (first row %s, rows=%d, binds=%d%s): %s",
+                    LocalDateTime.now(), Thread.currentThread().getName(),
+                    LatencyHistogram.toMillis(elapsed),
+                    firstRowNanos < 0 ? "-" : String.format("%.3f ms",
+                            LatencyHistogram.toMillis(firstRowNanos)),
+                    rows, binds, failed ? ", failed" : "", stats.shape));
+        }
+    }
+
+    /**
+     * Helper method that appends a line to the slow query log
+     */
+    private synchronized void logSlowQuery(String line) {
+        if (slowQueryLogFile == null) {
+            System.err.println("Slow query: " + line);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(slowQueryLogFile, true), StandardCharsets.UTF_8))) {
+            out.println(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Helper method that checks whether the shape so far ends inside an identifier such as 'col1'
+     */
+    private static boolean isIdentifierPart(StringBuilder shape) {
+        if (shape.length() == 0) {
+            return false;
+        }
+        char last = shape.charAt(shape.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    /**
+     * Helper method that collapses parenthesised lists of '?' into '(?...)'
+     */
+    private static String collapseLists(String shape) {
+        StringBuilder result = new StringBuilder(shape.length());
+        int i = 0;
+        while (i < shape.length()) {
+            if (shape.charAt(i) == '(') {
+                int j = i + 1, items = 0;
+                while (j < shape.length()) {
+                    char c = shape.charAt(j);
+                    if (c == '?') {
+                        items++;
+                    } else if (c != ',' && c != ' ') {
+                        break;
+                    }
+                    j++;
+                }
+                if (items > 1 && j < shape.length() && shape.charAt(j) == ')') {
+                    result.append("(?...)");
+                    i = j + 1;
+                    continue;
+                }
+            }
+            result.append(shape.charAt(i++));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Helper method that calls the wrapped object, rethrowing what it threw
+     */
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Traces the statements created on a connection
+     */
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+
+        private ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "prepareStatement":
+                case "prepareCall":
+                    return Proxy.newProxyInstance(QueryTracer.class.getClassLoader(),
+                            PREPARED_STATEMENT, new StatementHandler(
+                                    (Statement) call(connection, method, args), proxy, (String) args[0]));
+                case "createStatement":
+                    return Proxy.newProxyInstance(QueryTracer.class.getClassLoader(), STATEMENT,
+                            new StatementHandler((Statement) call(connection, method, args), proxy, null));
+                default:
+                    return call(connection, method, args);
+            }
+        }
+    }
+
+    /**
+     * Times the executions of a statement and counts its bound parameters
+     */
+    private class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+        private final Object connection;
+        // SQL of a prepared statement, or of the last batch added to a plain statement
+        private String sql;
+        private int binds;
+        // Statistics of the SQL last executed, so a prepared statement is only shaped once
+        private String statsSql;
+        private StatementStats stats;
+        private int statsGeneration;
+        // Result set of the last query, which the driver closes when the statement runs again
+        private ResultSetHandler results;
+
+        private StatementHandler(Statement statement, Object connection, String sql) {
+            this.statement = statement;
+            this.connection = connection;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2
+                    && args[0] instanceof Integer) {
+                binds++;
+                return call(statement, method, args);
+            }
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "getConnection":
+                    return connection;
+                case "addBatch":
+                    if (args != null && args.length == 1) {
+                        sql = (String) args[0];
+                    }
+                    return call(statement, method, args);
+                case "executeQuery":
+                    closeResults();
+                    return executeQuery(method, args);
+                case "execute":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "executeBatch":
+                case "executeLargeBatch":
+                    closeResults();
+                    return executeUpdate(method, args);
+                case "close":
+                    closeResults();
+                    return call(statement, method, args);
+                default:
+                    return call(statement, method, args);
+            }
+        }
+
+        private Object executeQuery(Method method, Object[] args) throws Throwable {
+            StatementStats executed = statsOf(args != null && args.length > 0 ? (String) args[0] : sql);
+            int bound = takeBinds();
+            long start = System.nanoTime();
+            ResultSet rs;
+            try {
+                rs = (ResultSet) call(statement, method, args);
+            } catch (Throwable e) {
+                record(executed, bound, System.nanoTime() - start, -1, 0, true);
+                throw e;
+            }
+            results = new ResultSetHandler(rs, executed, bound, start);
+            return Proxy.newProxyInstance(QueryTracer.class.getClassLoader(), RESULT_SET, results);
+        }
+
+        private Object executeUpdate(Method method, Object[] args) throws Throwable {
+            StatementStats executed = statsOf(args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0] : sql);
+            int bound = takeBinds();
+            long start = System.nanoTime();
+            try {
+                Object result = call(statement, method, args);
+                record(executed, bound, System.nanoTime() - start, -1, updateCount(result), false);
+                return result;
+            } catch (Throwable e) {
+                record(executed, bound, System.nanoTime() - start, -1, 0, true);
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the statistics of a SQL string. The shape is only computed again when the SQL
+         * changes (plain statements) or the statistics were reset.
+         */
+        private StatementStats statsOf(String executed) {
+            if (stats == null || statsGeneration != generation || !executed.equals(statsSql)) {
+                statsGeneration = generation;
+                stats = statistics.computeIfAbsent(shapeOf(executed), StatementStats::new);
+                statsSql = executed;
+            }
+            return stats;
+        }
+
+        /**
+         * Records the last query if its result set was left open - running the statement again or
+         * closing it closes the result set without going through its proxy
+         */
+        private void closeResults() {
+            if (results != null) {
+                results.finish(false, results.lastUsedNanos);
+                results = null;
+            }
+        }
+
+        /**
+         * Returns the parameters bound since the last execution. Batches keep their binds across
+         * addBatch() calls, so they are counted for the whole batch.
+         */
+        private int takeBinds() {
+            int bound = binds;
+            binds = 0;
+            return bound;
+        }
+
+        private long updateCount(Object result) {
+            if (result instanceof Integer || result instanceof Long) {
+                return Math.max(0, ((Number) result).longValue());
+            }
+            long total = 0;
+            if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    total += Math.max(0, count);
+                }
+            } else if (result instanceof long[]) {
+                for (long count : (long[]) result) {
+                    total += Math.max(0, count);
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Counts the rows fetched from a result set and records the execution when it is closed
+     */
+    private class ResultSetHandler implements InvocationHandler {
+        private final ResultSet rs;
+        private final StatementStats stats;
+        private final int binds;
+        private final long start;
+        private long rows, firstRowNanos = -1;
+        // Time of the last call to next(), taken as the end of an execution that was never closed
+        private long lastUsedNanos;
+        private boolean recorded;
+
+        private ResultSetHandler(ResultSet rs, StatementStats stats, int binds, long start) {
+            this.rs = rs;
+            this.stats = stats;
+            this.binds = binds;
+            this.start = start;
+            this.lastUsedNanos = System.nanoTime();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "next":
+                    boolean hasRow;
+                    try {
+                        hasRow = (Boolean) call(rs, method, args);
+                    } catch (Throwable e) {
+                        finish(true, System.nanoTime());
+                        throw e;
+                    }
+                    lastUsedNanos = System.nanoTime();
+                    if (hasRow) {
+                        if (rows++ == 0) {
+                            firstRowNanos = lastUsedNanos - start;
+                        }
+                    }
+                    return hasRow;
+                case "close":
+                    try {
+                        return call(rs, method, args);
+                    } finally {
+                        finish(false, System.nanoTime());
+                    }
+                default:
+                    return call(rs, method, args);
+            }
+        }
+
+        /**
+         * Records the execution, once
+         * @param failed whether reading the results threw
+         * @param end System.nanoTime() at which the results were done with
+         */
+        private void finish(boolean failed, long end) {
+            if (!recorded) {
+                recorded = true;
+                record(stats, binds, end - start, firstRowNanos, rows, failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * JMX view of a QueryTracer: the slow query threshold can be changed at runtime, and the statement
+ * statistics dumped on demand.
+ * @author karimbounekhla
+ */
+public interface QueryTracerMBean {
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long slowQueryThresholdMillis);
+
+    long getSlowQueryCount();
+
+    int getStatementShapeCount();
+
+    String dumpTopStatements(int limit);
+
+    void reset();
+}
@@ -0,0 +1,156 @@
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+
+/**
+ * Configuration that selects the client repository backend. Settings are read from a properties
+ * file (cms.properties by default), and each can be overridden with a system property of the same
+ * name prefixed by 'cms.', e.g. -Dcms.backend=memory. Supported backends:
+ *   mysql    - MySQL server through JDBC (default)
+ *   embedded - embedded database through JDBC, no server needed
+ *   memory   - in-memory, nothing persisted
+ *   log      - append-only log files in a local directory, no server needed
+ * @author karimbounekhla
+ */
+public class RepositoryConfig {
+    public static final String DEFAULT_FILE = "cms.properties";
+
+    public String backend = "mysql";
+    // JDBC settings - when no URL is set, the backend's default database is used
+    public String url, login, password;
+    // Optional - link to .txt file used to fill an empty repository
+    public String dataFile = "clients.txt";
+    // Log backend settings - directory of the log files and when writes are forced to disk
+    public String logDirectory = "cmsdata";
+    public String syncPolicy = "BATCHED";
+    // Metrics settings - whether repository calls are measured and published over JMX (see
+    // ClientMetrics), and the seconds between metric dumps on the console (0 for none)
+    public boolean metrics = true;
+    public int metricsDumpSeconds = 0;
+    // Connection pool, client cache and SQL tracing settings of the mysql and embedded backends
+    public CMSModel.Settings modelSettings = new CMSModel.Settings();
+
+    /**
+     * Reads the configuration from a properties file. A missing file leaves the defaults in place.
+     * @param file path of the properties file
+     * @return the configuration
+     */
+    public static RepositoryConfig load(String file) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (FileNotFoundException e) {
+            // No configuration file - use defaults and system properties
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        RepositoryConfig config = new RepositoryConfig();
+        config.backend = setting(properties, "backend", config.backend);
+        config.url = setting(properties, "url", config.url);
+        config.login = setting(properties, "login", config.login);
+        config.password = setting(properties, "password", config.password);
+        config.dataFile = setting(properties, "dataFile", config.dataFile);
+        config.logDirectory = setting(properties, "logDirectory", config.logDirectory);
+        config.syncPolicy = setting(properties, "syncPolicy", config.syncPolicy);
+        config.metrics = Boolean.parseBoolean(setting(properties, "metrics",
+                                                      String.valueOf(config.metrics)));
+        config.metricsDumpSeconds = Integer.parseInt(setting(properties, "metricsDumpSeconds",
+                                                             String.valueOf(config.metricsDumpSeconds)));
+        CMSModel.Settings model = config.modelSettings;
+        model.poolMinSize = intSetting(properties, "poolMinSize", model.poolMinSize);
+        model.poolMaxSize = intSetting(properties, "poolMaxSize", model.poolMaxSize);
+        model.statementCacheSize = intSetting(properties, "statementCacheSize", model.statementCacheSize);
+        model.borrowTimeoutMillis = longSetting(properties, "borrowTimeoutMillis", model.borrowTimeoutMillis);
+        model.leakThresholdMillis = longSetting(properties, "leakThresholdMillis", model.leakThresholdMillis);
+        model.validationIdleMillis = longSetting(properties, "validationIdleMillis",
+                                                 model.validationIdleMillis);
+        model.cacheMaxEntries = intSetting(properties, "cacheMaxEntries", model.cacheMaxEntries);
+        model.cacheMaxBytes = longSetting(properties, "cacheMaxBytes", model.cacheMaxBytes);
+        model.cacheTtlMillis = longSetting(properties, "cacheTtlMillis", model.cacheTtlMillis);
+        model.traceQueries = Boolean.parseBoolean(setting(properties, "traceQueries",
+                                                          String.valueOf(model.traceQueries)));
+        model.slowQueryThresholdMillis = longSetting(properties, "slowQueryThresholdMillis",
+                                                     model.slowQueryThresholdMillis);
+        model.slowQueryLog = setting(properties, "slowQueryLog", model.slowQueryLog);
+        if (model.slowQueryLog != null && model.slowQueryLog.isEmpty()) {
+            model.slowQueryLog = null;
+        }
+        // An empty value turns off filling from a data file
+        if (config.dataFile != null && config.dataFile.isEmpty()) {
+            config.dataFile = null;
+        }
+        return config;
+    }
+
+    /**
+     * Creates the repository of the configured backend, measured by the default ClientMetrics
+     * registry unless metrics are turned off
+     * @return the repository
+     * @throws IllegalArgumentException if the backend or sync policy is unknown
+     * @throws UncheckedIOException if the log files could not be opened
+     */
+    public ClientRepository createRepository() {
+        if (!metrics) {
+            return createBackend();
+        }
+        ClientMetrics registry = ClientMetrics.getDefault();
+        if (metricsDumpSeconds > 0) {
+            registry.startReporting(metricsDumpSeconds, System.out);
+        }
+        return new InstrumentedClientRepository(createBackend(), registry);
+    }
+
+    /**
+     * Helper method that creates the repository of the configured backend
+     */
+    private ClientRepository createBackend() {
+        switch (backend) {
+            case "mysql":
+                return url == null ? new CMSModel(dataFile, modelSettings)
+                        : new CMSModel(url, login, password, dataFile, modelSettings);
+            case "embedded":
+                return url == null
+                        ? new EmbeddedClientRepository(EmbeddedClientRepository.DEFAULT_URL,
+                                EmbeddedClientRepository.DEFAULT_LOGIN,
+                                EmbeddedClientRepository.DEFAULT_PASSWORD, dataFile, modelSettings)
+                        : new EmbeddedClientRepository(url, login, password, dataFile, modelSettings);
+            case "memory":
+                return new InMemoryClientRepository(dataFile);
+            case "log":
+                try {
+                    return new ClientLogStore(logDirectory,
+                            ClientLogStore.SyncPolicy.valueOf(syncPolicy.toUpperCase()), dataFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown repository backend: " + backend);
+        }
+    }
+
+    /**
+     * Helper method that reads a setting, giving system properties precedence over the file
+     */
+    private static String setting(Properties properties, String name, String defaultValue) {
+        String value = System.getProperty("cms." + name, properties.getProperty(name, defaultValue));
+        return value == null ? null : value.trim();
+    }
+
+    /**
+     * Helper method that reads a whole number setting
+     */
+    private static int intSetting(Properties properties, String name, int defaultValue) {
+        return Integer.parseInt(setting(properties, name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Helper method that reads a duration or size setting
+     */
+    private static long longSetting(Properties properties, String name, long defaultValue) {
+        return Long.parseLong(setting(properties, name, String.valueOf(defaultValue)));
+    }
+}
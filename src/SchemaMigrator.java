@@ -0,0 +1,271 @@
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Brings the database schema up to date when the model starts. Each schema change is a numbered
+ * migration; applied versions are recorded in a metadata table so every migration runs once.
+ * Migrations are also idempotent on their own (they check whether the table, index or column
+ * already exists), so a database that was changed by hand or by another instance is handled too.
+ * @author karimbounekhla
+ */
+public class SchemaMigrator {
+    // Table holding one row per applied migration
+    public static final String METADATA_TABLE = "schema_version";
+
+    /**
+     * A single schema change
+     */
+    public interface Step {
+        /**
+         * Applies the change
+         * @param conn connection to the database
+         * @throws SQLException if the change could not be applied
+         */
+        void apply(Connection conn) throws SQLException;
+    }
+
+    /**
+     * A numbered schema change
+     */
+    public static class Migration {
+        private final int version;
+        private final String description;
+        private final Step step;
+
+        public Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final String tableName;
+    private final List<Migration> migrations = new ArrayList<>();
+    // Use MySQL online DDL options so indexes and columns are added without blocking writes
+    private boolean onlineDdl = true;
+
+    /**
+     * Constructor that registers the migrations of the Client table
+     * @param tableName name of the client table
+     */
+    public SchemaMigrator(String tableName) {
+        this.tableName = tableName;
+
+        // Sets ID to auto_increment
+        add(new Migration(1, "Create " + tableName + " table", conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS " + tableName + " (" +
+                "id INT AUTO_INCREMENT, " +
+                "firstName VARCHAR(20) NOT NULL, " +
+                "lastName VARCHAR(20) NOT NULL, " +
+                "address VARCHAR(50) NOT NULL, " +
+                "postalCode CHAR(7) NOT NULL, " +
+                "phoneNumber CHAR(12) NOT NULL, " +
+                "clientType CHAR(1) NOT NULL, " +
+                "PRIMARY KEY (id))")));
+        // Secondary indexes for the searches. InnoDB appends the primary key to every secondary
+        // index, so 'lastName = ? ORDER BY id' is an index range scan.
+        add(createIndex(2, "idx_client_lastName", "lastName"));
+        add(createIndex(3, "idx_client_type_lastName", "clientType", "lastName"));
+        add(createIndex(4, "idx_client_postalCode", "postalCode"));
+        // Row version for optimistic concurrency - existing rows start at version 0
+        add(addColumn(5, "version", "INT NOT NULL DEFAULT 0"));
+    }
+
+    /**
+     * Registers a migration. Versions must be unique.
+     * @param migration the migration
+     */
+    public void add(Migration migration) {
+        for (Migration m : migrations) {
+            if (m.version == migration.version) {
+                throw new IllegalArgumentException("Duplicate schema version " + migration.version);
+            }
+        }
+        migrations.add(migration);
+        migrations.sort(Comparator.comparingInt(Migration::getVersion));
+    }
+
+    /**
+     * Sets whether schema changes use MySQL online DDL options (ALGORITHM=INPLACE, LOCK=NONE).
+     * Must be disabled for databases that do not support them.
+     * @param onlineDdl true to add indexes and columns without blocking writes
+     */
+    public void setOnlineDdl(boolean onlineDdl) {
+        this.onlineDdl = onlineDdl;
+    }
+
+    /**
+     * Applies every migration that has not been applied yet, in version order
+     * @param conn connection to the database
+     * @return number of migrations applied
+     * @throws SQLException if a migration failed - later migrations are not applied
+     */
+    public int migrate(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS " + METADATA_TABLE + " (" +
+                "version INT NOT NULL, " +
+                "description VARCHAR(200) NOT NULL, " +
+                "appliedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "PRIMARY KEY (version))");
+
+        Set<Integer> applied = getAppliedVersions(conn);
+        int count = 0;
+        for (Migration migration : migrations) {
+            if (applied.contains(migration.version)) {
+                continue;
+            }
+            migration.step.apply(conn);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO " + METADATA_TABLE + " (version, description) VALUES (?, ?)")) {
+                ps.setInt(1, migration.version);
+                ps.setString(2, migration.description);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                // Another instance recorded the same version first - the change itself is idempotent
+                if (!getAppliedVersions(conn).contains(migration.version)) {
+                    throw e;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the applied schema versions
+     * @param conn connection to the database
+     * @return set of applied versions
+     * @throws SQLException if the metadata table could not be read
+     */
+    public Set<Integer> getAppliedVersions(Connection conn) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT version FROM " + METADATA_TABLE)) {
+            while (rs.next()) {
+                versions.add(rs.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Creates a migration that adds an index to the client table unless an index with the same
+     * name already exists
+     * @param version schema version
+     * @param indexName name of the index
+     * @param columns indexed columns, in order
+     * @return the migration
+     */
+    public Migration createIndex(int version, String indexName, String... columns) {
+        String columnList = String.join(", ", columns);
+        return new Migration(version, "Add index " + indexName + " (" + columnList + ")", conn -> {
+            if (!indexExists(conn, indexName)) {
+                execute(conn, "CREATE INDEX " + indexName + " ON " + tableName +
+                        " (" + columnList + ")" + (onlineDdl ? " ALGORITHM=INPLACE LOCK=NONE" : ""));
+            }
+        });
+    }
+
+    /**
+     * Creates a migration that adds a column to the client table unless it already exists
+     * @param version schema version
+     * @param columnName name of the column
+     * @param definition column definition, e.g. "INT NOT NULL DEFAULT 0"
+     * @return the migration
+     */
+    public Migration addColumn(int version, String columnName, String definition) {
+        return new Migration(version, "Add column " + columnName, conn -> {
+            if (!columnExists(conn, columnName)) {
+                execute(conn, "ALTER TABLE " + tableName + " ADD COLUMN " + columnName + " " +
+                        definition + (onlineDdl ? ", ALGORITHM=INPLACE, LOCK=NONE" : ""));
+            }
+        });
+    }
+
+    /**
+     * Helper method that checks whether the client table has an index
+     * @param conn connection to the database
+     * @param indexName name of the index
+     * @return true if the index exists
+     * @throws SQLException if the database metadata could not be read
+     */
+    private boolean indexExists(Connection conn, String indexName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String table = storedName(metaData, tableName);
+        try (ResultSet rs = metaData.getIndexInfo(conn.getCatalog(), null, table, false, true)) {
+            while (rs.next()) {
+                if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method that checks whether the client table has a column
+     * @param conn connection to the database
+     * @param columnName name of the column
+     * @return true if the column exists
+     * @throws SQLException if the database metadata could not be read
+     */
+    private boolean columnExists(Connection conn, String columnName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String table = storedName(metaData, tableName);
+        try (ResultSet rs = metaData.getColumns(conn.getCatalog(), null, table, null)) {
+            while (rs.next()) {
+                if (columnName.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method that converts an unquoted identifier to the case the database stores it in
+     * (e.g. CLIENT on H2), since metadata lookups match names exactly
+     * @param metaData metadata of the database
+     * @param name the identifier as written in the SQL
+     * @return the identifier as stored
+     * @throws SQLException if the database metadata could not be read
+     */
+    private static String storedName(DatabaseMetaData metaData, String name) throws SQLException {
+        if (metaData.storesUpperCaseIdentifiers()) {
+            return name.toUpperCase(Locale.ROOT);
+        }
+        if (metaData.storesLowerCaseIdentifiers()) {
+            return name.toLowerCase(Locale.ROOT);
+        }
+        return name;
+    }
+
+    /**
+     * Helper method that executes a DDL statement
+     * @param conn connection to the database
+     * @param sql the statement
+     * @throws SQLException if the statement failed
+     */
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * One page of search results. Pages are ordered by client ID, and the continuation token of a page
+ * holds the search and the last ID it contained, so the next page can seek directly to the rows
+ * after it instead of skipping over them with OFFSET.
+ * @author karimbounekhla
+ */
+public class SearchPage {
+    private final String searchCriteria;
+    private final String searchQuery;
+    private final List<Client> clients;
+    private final boolean hasMore;
+
+    /**
+     * Constructor used by the model to return a page
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery search query
+     * @param clients clients on this page, ordered by ID
+     * @param hasMore true if there are more matching clients after this page
+     */
+    public SearchPage(String searchCriteria, String searchQuery, List<Client> clients, boolean hasMore) {
+        this.searchCriteria = searchCriteria;
+        this.searchQuery = searchQuery;
+        this.clients = clients;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * Builds a page from the sorted IDs of all matches, for repositories that find the matching IDs
+     * in memory instead of with a database query
+     * @param searchCriteria search criteria ('id', 'lastName' or 'clientType')
+     * @param searchQuery search query
+     * @param ids IDs of all matches in ascending order
+     * @param afterId ID of the last client of the previous page (0 for the first page)
+     * @param pageSize maximum number of clients on the page
+     * @param loader loads a client by ID, returning null if it no longer exists
+     * @return the page of matches after 'afterId'
+     */
+    public static SearchPage fromIds(String searchCriteria, String searchQuery, int[] ids, int afterId,
+                                     int pageSize, IntFunction<Client> loader) {
+        int i = Arrays.binarySearch(ids, afterId);
+        i = i >= 0 ? i + 1 : -i - 1;
+        List<Client> clients = new ArrayList<>(pageSize);
+        for (; i < ids.length && clients.size() < pageSize; i++) {
+            Client client = loader.apply(ids[i]);
+            if (client != null) {
+                clients.add(client);
+            }
+        }
+        return new SearchPage(searchCriteria, searchQuery, clients, i < ids.length);
+    }
+
+    /**
+     * Returns the clients on this page
+     * @return list of clients ordered by ID
+     */
+    public List<Client> getClients() {
+        return clients;
+    }
+
+    /**
+     * Returns whether there are more pages after this one
+     * @return true if the next page has at least one client
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Returns the token used to fetch the next page
+     * @return continuation token, or null if this is the last page
+     */
+    public String getContinuationToken() {
+        if (!hasMore || clients.isEmpty()) {
+            return null;
+        }
+        int lastId = clients.get(clients.size() - 1).getId();
+        String token = searchCriteria + "\n" + lastId + "\n" + searchQuery;
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decoded continuation token: the search and the ID after which the next page starts
+     */
+    public static class Token {
+        private final String searchCriteria;
+        private final String searchQuery;
+        private final int afterId;
+
+        private Token(String searchCriteria, String searchQuery, int afterId) {
+            this.searchCriteria = searchCriteria;
+            this.searchQuery = searchQuery;
+            this.afterId = afterId;
+        }
+
+        /**
+         * Decodes a continuation token
+         * @param continuationToken token returned by SearchPage.getContinuationToken()
+         * @return the decoded token
+         * @throws IllegalArgumentException if the token is malformed
+         */
+        public static Token parse(String continuationToken) {
+            try {
+                String token = new String(Base64.getUrlDecoder().decode(continuationToken),
+                                          StandardCharsets.UTF_8);
+                String[] parts = token.split("\n", 3);
+                return new Token(parts[0], parts[2], Integer.parseInt(parts[1]));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid continuation token", e);
+            }
+        }
+
+        public String getSearchCriteria() {
+            return searchCriteria;
+        }
+
+        public String getSearchQuery() {
+            return searchQuery;
+        }
+
+        public int getAfterId() {
+            return afterId;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator that drives a client repository with a weighted mix of searches and writes, for
+ * capacity planning. Two modes:
+ *   closed - each thread issues its next operation when the previous one is done, optionally paced
+ *            to a target rate; latencies are corrected for coordinated omission by recording the
+ *            operations the pacing schedule would have issued while an operation was stalled, and
+ *            the schedule then restarts instead of catching up with a burst of real operations
+ *   open   - operations arrive at a fixed rate whatever the response times, queue for the worker
+ *            threads, and their latency is measured from the time they were meant to start
+ * IDs and last names are chosen with a (scrambled) Zipfian distribution, so a few clients are hot
+ * like in real traffic. Updates and deletes only touch clients added by the run, which are deleted
+ * at the end, so the data set is left as it was found.
+ * Nothing is measured during the warm-up. The report gives throughput, errors, and percentiles of
+ * both the response time (corrected) and the service time (time spent in the repository call).
+ *
+ * Example - 80% searches, 10% adds, 8% updates, 2% deletes at 500 operations/s on 16 threads:
+ *   java WorkloadDriver --mode open --rate 500 --threads 16 --warmup 10 --duration 60
+ *        --mix searchById=30,searchByLastName=30,searchByClientType=20,add=10,update=8,delete=2
+ * @author karimbounekhla
+ */
+public class WorkloadDriver {
+    private static final String[] OPERATIONS = {"searchById", "searchByLastName",
+            "searchByClientType", "add", "update", "delete"};
+    private static final int SEARCH_BY_ID = 0, SEARCH_BY_LAST_NAME = 1, SEARCH_BY_CLIENT_TYPE = 2,
+            ADD = 3, UPDATE = 4, DELETE = 5;
+    private static final String[] SYLLABLES = {"an", "bel", "car", "dor", "el", "fin", "gar", "hal",
+            "is", "jon", "kel", "lor", "mar", "nor", "os", "per", "quin", "ros", "sam", "tor"};
+
+    // Settings (see usage())
+    private String config = RepositoryConfig.DEFAULT_FILE;
+    private double[] mix = {30, 30, 20, 10, 8, 2};
+    private int threads = 8;
+    private boolean openLoop;
+    private double rate;
+    private int warmupSeconds = 10, durationSeconds = 60;
+    private double zipfTheta = 0.99;
+    private long seed = 42;
+    private int lastNameSample = 10_000;
+    private String output;
+
+    private ClientRepository repository;
+    private ZipfianGenerator idKeys, nameKeys;
+    private String[] lastNames;
+    // Clients added by the run, changed by updates and removed again by deletes
+    private final ConcurrentLinkedQueue<Integer> addedIds = new ConcurrentLinkedQueue<>();
+    private final OperationStats[] stats = new OperationStats[OPERATIONS.length];
+    private volatile boolean measuring;
+
+    /**
+     * Runs a workload
+     * @param args command line options (see usage())
+     */
+    public static void main(String[] args) throws Exception {
+        WorkloadDriver driver = new WorkloadDriver();
+        if (!driver.parseArgs(args)) {
+            usage();
+            System.exit(1);
+        }
+        driver.run();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: WorkloadDriver [--config cms.properties] [--mode closed|open]\n" +
+                "    [--threads n] [--rate operations/s] [--warmup seconds] [--duration seconds]\n" +
+                "    [--mix searchById=30,searchByLastName=30,searchByClientType=20,add=10,update=8,delete=2]\n" +
+                "    [--zipf theta (0 for uniform)] [--seed n] [--output results.json]\n" +
+                "The open mode needs a rate.");
+    }
+
+    /**
+     * Opens the repository, samples the keys, then runs the warm-up and the measured phase
+     */
+    private void run() throws Exception {
+        RepositoryConfig repositoryConfig = RepositoryConfig.load(config);
+        // Periodic metric dumps would interleave with the report
+        repositoryConfig.metricsDumpSeconds = 0;
+        repository = repositoryConfig.createRepository();
+        try {
+            int maxId = repository.getMaxId();
+            if (maxId == 0) {
+                System.err.println("The repository is empty - configure a dataFile to fill it first");
+                return;
+            }
+            lastNames = sampleLastNames();
+            idKeys = new ZipfianGenerator(maxId, zipfTheta);
+            nameKeys = new ZipfianGenerator(lastNames.length, zipfTheta);
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new OperationStats();
+            }
+            System.out.printf("Driving %s loop, %d threads, %s, %d IDs, %d last names, zipf %.2f%n",
+                              openLoop ? "open" : "closed", threads,
+                              rate > 0 ? rate + " ops/s" : "unthrottled", maxId, lastNames.length,
+                              zipfTheta);
+
+            long start = System.nanoTime();
+            long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+            Thread phase = new Thread(() -> {
+                sleepUntil(measureStart);
+                measuring = true;
+                System.out.println("Warm-up done, measuring for " + durationSeconds + " s...");
+            }, "workload-phase");
+            phase.setDaemon(true);
+            phase.start();
+            if (openLoop) {
+                runOpen(start, end);
+            } else {
+                runClosed(start, end);
+            }
+            measuring = false;
+            report(Math.min(System.nanoTime(), end) - measureStart);
+        } finally {
+            // Leave the data set as it was found
+            Integer id;
+            while ((id = addedIds.poll()) != null) {
+                repository.deleteClient(id);
+            }
+            repository.close();
+        }
+    }
+
+    /**
+     * Closed loop: every thread runs operations back to back, paced to its share of the rate if one
+     * is set
+     */
+    private void runClosed(long start, long end) throws InterruptedException {
+        long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(seed + t);
+            // Threads are staggered over one interval so paced operations do not arrive in bursts
+            long first = start + (interval * t) / threads;
+            Thread worker = new Thread(() -> {
+                long next = first;
+                while (System.nanoTime() < end) {
+                    if (interval > 0) {
+                        sleepUntil(next);
+                    }
+                    int operation = pickOperation(random);
+                    long begin = System.nanoTime();
+                    Outcome outcome = execute(operation, random);
+                    long done = System.nanoTime();
+                    if (measuring) {
+                        stats[operation].record(outcome, done - begin, done - begin, interval);
+                    }
+                    if (interval > 0) {
+                        // The slots missed by a slow operation were recorded above, so they are
+                        // skipped rather than run late and counted twice
+                        next = Math.max(next + interval, done);
+                    }
+                }
+            }, "workload-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Open loop: a scheduler issues operations at the target rate into a queue served by the worker
+     * threads; an operation's response time runs from its scheduled start, so time spent queued
+     * behind slow operations is counted
+     */
+    private void runOpen(long start, long end) throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "workload-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        SplittableRandom scheduleRandom = new SplittableRandom(seed);
+        long interval = (long) (1e9 / rate);
+        for (long intended = start; intended < end; intended += interval) {
+            sleepUntil(intended);
+            int operation = pickOperation(scheduleRandom);
+            SplittableRandom random = scheduleRandom.split();
+            long scheduled = intended;
+            workers.execute(() -> {
+                long begin = System.nanoTime();
+                Outcome outcome = execute(operation, random);
+                long done = System.nanoTime();
+                // Operations scheduled in the measured phase count even if they ran after it
+                if (scheduled >= start + TimeUnit.SECONDS.toNanos(warmupSeconds)) {
+                    stats[operation].record(outcome, done - scheduled, done - begin, 0);
+                }
+            });
+        }
+        workers.shutdown();
+        // Let the backlog drain so the slowest operations are not left out of the results
+        if (!workers.awaitTermination(Math.max(60, durationSeconds), TimeUnit.SECONDS)) {
+            System.err.println("Operations still queued after the run were not measured");
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Result of one operation
+     */
+    private enum Outcome {
+        OK, MISS, ERROR
+    }
+
+    /**
+     * Helper method that runs one operation against the repository
+     */
+    private Outcome execute(int operation, SplittableRandom random) {
+        try {
+            switch (operation) {
+                case SEARCH_BY_ID:
+                    return hit(repository.getSearchResults("id", String.valueOf(nextId(random))));
+                case SEARCH_BY_LAST_NAME:
+                    return hit(repository.getSearchResults("lastName",
+                                                           lastNames[(int) nameKeys.next(random)]));
+                case SEARCH_BY_CLIENT_TYPE:
+                    return hit(repository.getSearchResults("clientType",
+                                                           random.nextBoolean() ? "R" : "C"));
+                case ADD:
+                    Client client = randomClient(random, randomName(random));
+                    repository.addClient(client);
+                    if (client.getId() == 0) {
+                        return Outcome.ERROR;
+                    }
+                    addedIds.add(client.getId());
+                    return Outcome.OK;
+                case UPDATE:
+                    // Taken off the queue while it is changed, so a delete cannot remove it meanwhile
+                    Integer id = addedIds.poll();
+                    if (id == null) {
+                        return Outcome.MISS;
+                    }
+                    try {
+                        // Keep to the sampled last names so updates do not empty the name searches
+                        Client update = randomClient(random, lastNames[(int) nameKeys.next(random)]);
+                        update.setId(id);
+                        repository.updateClient(id, update);
+                    } finally {
+                        addedIds.add(id);
+                    }
+                    return Outcome.OK;
+                default:
+                    Integer added = addedIds.poll();
+                    if (added == null) {
+                        return Outcome.MISS;
+                    }
+                    repository.deleteClient(added);
+                    return Outcome.OK;
+            }
+        } catch (RuntimeException e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    private static Outcome hit(List<Client> results) {
+        return results.isEmpty() ? Outcome.MISS : Outcome.OK;
+    }
+
+    private int nextId(SplittableRandom random) {
+        return (int) idKeys.next(random) + 1;
+    }
+
+    private int pickOperation(SplittableRandom random) {
+        double total = 0;
+        for (double weight : mix) {
+            total += weight;
+        }
+        double pick = random.nextDouble() * total;
+        for (int i = 0; i < mix.length; i++) {
+            pick -= mix[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return mix.length - 1;
+    }
+
+    /**
+     * Helper method that collects distinct last names from the start of the repository
+     */
+    private String[] sampleLastNames() throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        repository.scanClients(1, Integer.MAX_VALUE, client -> {
+            names.add(client.getLastName());
+            return names.size() < lastNameSample;
+        });
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Helper method that creates a valid client with random information
+     */
+    private static Client randomClient(SplittableRandom random, String lastName) {
+        return new Client(randomName(random), lastName,
+                          random.nextInt(1, 9999) + " " + randomName(random) + " Street",
+                          "" + letter(random) + random.nextInt(10) + letter(random) + " " +
+                                  random.nextInt(10) + letter(random) + random.nextInt(10),
+                          String.format("%03d-%03d-%04d", random.nextInt(200, 1000),
+                                        random.nextInt(1000), random.nextInt(10000)),
+                          random.nextBoolean() ? "R" : "C");
+    }
+
+    private static String randomName(SplittableRandom random) {
+        StringBuilder name = new StringBuilder();
+        for (int i = random.nextInt(2, 4); i > 0; i--) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+
+    private static char letter(SplittableRandom random) {
+        return (char) ('A' + random.nextInt(26));
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Prints the results and writes them as JSON if an output file is set
+     * @param measuredNanos length of the measured phase
+     */
+    private void report(long measuredNanos) throws IOException {
+        double seconds = measuredNanos / 1e9;
+        long totalOperations = 0;
+        System.out.printf("%-20s %9s %9s %7s %7s %9s %9s %9s %9s %9s   %9s %9s%n", "operation",
+                          "ops", "ops/s", "errors", "misses", "p50 ms", "p90 ms", "p99 ms",
+                          "p99.9 ms", "max ms", "svc p50", "svc p99");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram.Snapshot response = stats[i].responseTime.snapshot();
+            LatencyHistogram.Snapshot service = stats[i].serviceTime.snapshot();
+            long operations = service.getCount();
+            totalOperations += operations;
+            if (operations == 0) {
+                continue;
+            }
+            System.out.printf("%-20s %9d %9.1f %7d %7d %9.3f %9.3f %9.3f %9.3f %9.3f   %9.3f %9.3f%n",
+                              OPERATIONS[i], operations, operations / seconds,
+                              stats[i].errors.sum(), stats[i].misses.sum(),
+                              millis(response.getPercentile(50)), millis(response.getPercentile(90)),
+                              millis(response.getPercentile(99)), millis(response.getPercentile(99.9)),
+                              millis(response.getMax()), millis(service.getPercentile(50)),
+                              millis(service.getPercentile(99)));
+        }
+        System.out.printf("Total: %d operations in %.1f s = %.1f ops/s%n", totalOperations, seconds,
+                          totalOperations / seconds);
+        System.out.println("Latencies are response times corrected for coordinated omission; " +
+                           "'svc' columns are time spent in the repository call.");
+        if (output != null) {
+            writeJson(seconds);
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    private void writeJson(double seconds) throws IOException {
+        try (PrintWriter out = new PrintWriter(output, "UTF-8")) {
+            out.println("{");
+            out.printf("  \"mode\": \"%s\", \"threads\": %d, \"rate\": %.1f, \"zipf\": %.2f, " +
+                       "\"seconds\": %.3f,%n", openLoop ? "open" : "closed", threads, rate,
+                       zipfTheta, seconds);
+            out.println("  \"operations\": [");
+            boolean first = true;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                LatencyHistogram.Snapshot response = stats[i].responseTime.snapshot();
+                LatencyHistogram.Snapshot service = stats[i].serviceTime.snapshot();
+                if (service.getCount() == 0) {
+                    continue;
+                }
+                out.print(first ? "" : ",\n");
+                first = false;
+                out.printf("    {\"operation\": \"%s\", \"operations\": %d, \"throughput\": %.3f, " +
+                           "\"errors\": %d, \"misses\": %d, \"p50_ms\": %.4f, \"p90_ms\": %.4f, " +
+                           "\"p99_ms\": %.4f, \"p999_ms\": %.4f, \"max_ms\": %.4f, " +
+                           "\"service_p50_ms\": %.4f, \"service_p99_ms\": %.4f}",
+                           OPERATIONS[i], service.getCount(), service.getCount() / seconds,
+                           stats[i].errors.sum(), stats[i].misses.sum(),
+                           millis(response.getPercentile(50)), millis(response.getPercentile(90)),
+                           millis(response.getPercentile(99)), millis(response.getPercentile(99.9)),
+                           millis(response.getMax()), millis(service.getPercentile(50)),
+                           millis(service.getPercentile(99)));
+            }
+            out.println();
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static double millis(double nanos) {
+        return LatencyHistogram.toMillis(nanos);
+    }
+
+    /**
+     * Helper method that reads the command line options
+     * @return false if an option is invalid
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--config": config = value; break;
+                    case "--mode":
+                        if (!value.equals("open") && !value.equals("closed")) {
+                            return false;
+                        }
+                        openLoop = value.equals("open");
+                        break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--rate": rate = Double.parseDouble(value); break;
+                    case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                    case "--duration": durationSeconds = Integer.parseInt(value); break;
+                    case "--mix": mix = parseMix(value); break;
+                    case "--zipf": zipfTheta = Double.parseDouble(value); break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                    case "--output": output = value; break;
+                    default: return false;
+                }
+            }
+            return threads > 0 && durationSeconds > 0 && (!openLoop || rate > 0)
+                    && zipfTheta >= 0 && zipfTheta != 1;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Helper method that parses a mix such as 'searchById=80,add=20' (operations left out get 0)
+     */
+    private static double[] parseMix(String value) {
+        double[] weights = new double[OPERATIONS.length];
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            int operation = java.util.Arrays.asList(OPERATIONS).indexOf(parts[0].trim());
+            if (operation < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + entry);
+            }
+            weights[operation] = Double.parseDouble(parts[1]);
+        }
+        return weights;
+    }
+
+    /**
+     * Measurements of one operation
+     */
+    private static class OperationStats {
+        private final LatencyHistogram responseTime = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder(), misses = new LongAdder();
+
+        /**
+         * Records an operation
+         * @param response time from the intended start to the end
+         * @param service time spent in the repository call
+         * @param expectedInterval pacing interval of a closed loop (0 for none)
+         */
+        private void record(Outcome outcome, long response, long service, long expectedInterval) {
+            responseTime.recordWithExpectedInterval(response, expectedInterval);
+            serviceTime.record(service);
+            if (outcome == Outcome.ERROR) {
+                errors.increment();
+            } else if (outcome == Outcome.MISS) {
+                misses.increment();
+            }
+        }
+    }
+
+    /**
+     * Zipfian distribution over 0..n-1 (Gray et al., "Quickly Generating Billion-Record Synthetic
+     * Databases"), as used by YCSB. Ranks are scrambled with a hash so the hot items are spread over
+     * the key space instead of being the lowest IDs.
+     */
+    private static class ZipfianGenerator {
+        private final long items;
+        private final double theta, alpha, zetaN, eta;
+
+        private ZipfianGenerator(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            alpha = 1 / (1 - theta);
+            zetaN = zeta(items, theta);
+            double zeta2 = zeta(Math.min(2, items), theta);
+            eta = items < 2 ? 0 : (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        private long next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+            }
+            rank = Math.min(rank, items - 1);
+            return theta == 0 ? rank : Math.floorMod(fnvHash(rank), items);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        /**
+         * Helper method that scrambles a rank with the 64-bit FNV-1a hash of its bytes
+         */
+        private static long fnvHash(long value) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= value & 0xFF;
+                hash *= 0x100000001B3L;
+                value >>>= 8;
+            }
+            return hash;
+        }
+    }
+}